@@ -0,0 +1,319 @@
+package balancer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log kept off the request path. Handlers claim a slot in a bounded
+ * lock-free ring (Vyukov's MPSC scheme: a CAS on the tail plus a per-slot
+ * sequence) and fill in fixed fields - references to strings and objects the
+ * request already has, plus primitives - so logging a request neither locks
+ * nor allocates. A single background thread formats the records and writes
+ * them in batches through a FileChannel, optionally memory-mapped, rotating
+ * the file by size. When the ring is full the record is dropped and counted
+ * rather than stalling the handler.
+ *
+ * Line format:
+ *   time client "request line" status bytes backend ttfb_ms total_ms
+ */
+public final class AccessLog {
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    private static volatile boolean enabled = false;
+    private static volatile double sampleRate = 1.0;
+
+    // Ring slots as parallel arrays; sequence[i] says whose turn slot i is
+    private static int mask;
+    private static AtomicLongArray sequence;
+    private static long[] times;
+    private static InetAddress[] clients;
+    private static String[] requestLines;
+    private static int[] statuses;
+    private static long[] bytes;
+    private static ServerNode[] nodes;
+    private static long[] ttfbs;
+    private static long[] totals;
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head;
+
+    private static final LongAdder recorded = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder sampledOut = new LongAdder();
+    private static final LongAdder written = new LongAdder();
+
+    private static Path path;
+    private static long maxFileBytes;
+    private static int maxFiles;
+    private static boolean mapped;
+    private static FileChannel channel;
+    private static MappedByteBuffer map;
+    private static long fileBytes;
+    private static volatile boolean closing;
+    private static Thread writer;
+    private static final CountDownLatch closed = new CountDownLatch(1);
+
+    private AccessLog() {}
+
+    /**
+     * Applies LB_ACCESS_LOG (file path, or "off"), LB_ACCESS_LOG_BUFFER (ring
+     * slots), LB_ACCESS_LOG_SAMPLE (fraction of successful requests logged;
+     * errors are always kept), LB_ACCESS_LOG_MAX_BYTES and LB_ACCESS_LOG_MAX_FILES
+     * (rotation) and LB_ACCESS_LOG_MMAP, then starts the writer thread.
+     */
+    public static void configure(LoadBalancerConfig config) {
+        String file = config.getString("LB_ACCESS_LOG", "logs/access.log");
+        if (file.isBlank() || "off".equalsIgnoreCase(file)) {
+            System.out.println("[AccessLog] Disabled");
+            return;
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(64, config.getInt("LB_ACCESS_LOG_BUFFER", 8192)));
+        mask = capacity - 1;
+        sequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequence.set(i, i);
+        }
+        times = new long[capacity];
+        clients = new InetAddress[capacity];
+        requestLines = new String[capacity];
+        statuses = new int[capacity];
+        bytes = new long[capacity];
+        nodes = new ServerNode[capacity];
+        ttfbs = new long[capacity];
+        totals = new long[capacity];
+
+        sampleRate = Math.min(1.0, Math.max(0.0, config.getDouble("LB_ACCESS_LOG_SAMPLE", 1.0)));
+        maxFileBytes = Math.max(BATCH_BYTES, config.getLong("LB_ACCESS_LOG_MAX_BYTES", 64L * 1024 * 1024));
+        maxFiles = Math.max(1, config.getInt("LB_ACCESS_LOG_MAX_FILES", 5));
+        mapped = config.getBoolean("LB_ACCESS_LOG_MMAP", false);
+        if (mapped) {
+            // One mapping per file, and a mapping is limited to 2 GB
+            maxFileBytes = Math.min(maxFileBytes, Integer.MAX_VALUE);
+        }
+        path = Paths.get(file);
+        try {
+            openFile();
+        } catch (IOException e) {
+            System.err.println("[AccessLog] Cannot open " + path + ": " + e.getMessage());
+            return;
+        }
+
+        writer = new Thread(AccessLog::drain, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AccessLog::close));
+        enabled = true;
+        System.out.println("[AccessLog] Writing to " + path + (mapped ? " (mmap)" : "")
+                + ", " + capacity + " slots, sample rate " + sampleRate);
+    }
+
+    /**
+     * Queues one exchange. node may be null (no backend picked) and
+     * requestLine may be null when the engine does not track it.
+     */
+    public static void log(InetAddress client, String requestLine, int status, long responseBytes,
+                           ServerNode node, long ttfbNanos, long totalNanos) {
+        if (!enabled) return;
+        if (status < 500 && sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            sampledOut.increment();
+            return;
+        }
+
+        long slot;
+        while (true) {
+            slot = tail.get();
+            long seq = sequence.get((int) slot & mask);
+            if (seq < slot) {
+                // Writer has not caught up; never block a handler on the log
+                dropped.increment();
+                return;
+            }
+            if (seq == slot && tail.compareAndSet(slot, slot + 1)) break;
+        }
+
+        int i = (int) slot & mask;
+        times[i] = System.currentTimeMillis();
+        clients[i] = client;
+        requestLines[i] = requestLine;
+        statuses[i] = status;
+        bytes[i] = responseBytes;
+        nodes[i] = node;
+        ttfbs[i] = ttfbNanos;
+        totals[i] = totalNanos;
+        sequence.set(i, slot + 1);
+        recorded.increment();
+    }
+
+    public static long getRecorded() {
+        return recorded.sum();
+    }
+
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    public static long getSampledOut() {
+        return sampledOut.sum();
+    }
+
+    public static long getWritten() {
+        return written.sum();
+    }
+
+    private static void drain() {
+        ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            int i = (int) head & mask;
+            if (sequence.get(i) != head + 1) {
+                flush(batch);
+                if (closing) break;
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(2));
+                continue;
+            }
+
+            format(line, i);
+            clients[i] = null;
+            requestLines[i] = null;
+            nodes[i] = null;
+            sequence.set(i, head + mask + 1);
+            head++;
+
+            if (batch.remaining() < line.length()) {
+                flush(batch);
+            }
+            for (int c = 0; c < line.length() && batch.hasRemaining(); c++) {
+                batch.put((byte) line.charAt(c));
+            }
+            written.increment();
+        }
+        try {
+            closeFile();
+        } catch (IOException ignored) {}
+        closed.countDown();
+    }
+
+    private static void format(StringBuilder line, int i) {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(times[i])).append(' ')
+                .append(clients[i] == null ? "-" : clients[i].getHostAddress()).append(" \"")
+                .append(requestLines[i] == null ? "-" : requestLines[i]).append("\" ")
+                .append(statuses[i]).append(' ')
+                .append(bytes[i]).append(' ')
+                .append(nodes[i] == null ? "-" : nodes[i].getKey()).append(' ');
+        appendMillis(line, ttfbs[i]).append(' ');
+        appendMillis(line, totals[i]).append('\n');
+    }
+
+    private static StringBuilder appendMillis(StringBuilder line, long nanos) {
+        long micros = nanos / 1000;
+        line.append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) line.append('0');
+        if (fraction < 10) line.append('0');
+        return line.append(fraction);
+    }
+
+    private static void flush(ByteBuffer batch) {
+        if (batch.position() == 0) return;
+        batch.flip();
+        try {
+            if (fileBytes + batch.remaining() > maxFileBytes) {
+                rotate();
+            }
+            fileBytes += batch.remaining();
+            if (map != null) {
+                map.put(batch);
+            } else {
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[AccessLog] Write failed: " + e.getMessage());
+        }
+        batch.clear();
+    }
+
+    private static void openFile() throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        if (mapped) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            fileBytes = trimmedSize(channel);
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, maxFileBytes);
+            map.position((int) Math.min(fileBytes, maxFileBytes));
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileBytes = channel.size();
+        }
+    }
+
+    /**
+     * A mapped file is sized up front, so one left over from a crash ends in
+     * zero bytes; appending resumes after the last written line.
+     */
+    private static long trimmedSize(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (size > 0) {
+            one.clear();
+            channel.read(one, size - 1);
+            if (one.get(0) != 0) break;
+            size--;
+        }
+        return size;
+    }
+
+    private static void closeFile() throws IOException {
+        if (map != null) {
+            map.force();
+            map = null;
+            channel.truncate(fileBytes);
+        }
+        channel.close();
+    }
+
+    /** access.log -> access.log.1 -> ... -> access.log.(maxFiles - 1), oldest discarded. */
+    private static void rotate() throws IOException {
+        closeFile();
+        for (int n = maxFiles - 1; n >= 1; n--) {
+            Path from = n == 1 ? path : Paths.get(path + "." + (n - 1));
+            Path to = Paths.get(path + "." + n);
+            if (Files.exists(from)) {
+                Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles == 1) {
+            Files.deleteIfExists(path);
+        }
+        openFile();
+    }
+
+    /** Lets the writer drain what is already queued, then closes the file. */
+    private static void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            closed.await(500, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ignored) {}
+    }
+}
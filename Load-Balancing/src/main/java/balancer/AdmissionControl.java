@@ -0,0 +1,171 @@
+package balancer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Keeps overload at the edge instead of passing it on to the backends. New
+ * connections are admitted at up to LB_ACCEPT_RATE per second (token bucket,
+ * LB_ACCEPT_BURST deep). A request that finds every backend at its
+ * ConcurrencyLimit waits in a bounded queue of LB_QUEUE_SIZE for a slot to
+ * free up, for at most LB_QUEUE_TIMEOUT_MS; past either bound it is shed
+ * with an immediate 503 rather than left to queue without end.
+ */
+public final class AdmissionControl {
+    /** The answer given to shed requests and connections. */
+    static final byte[] OVERLOADED = ("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\n"
+            + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private static volatile double acceptRate = 0;
+    private static volatile double acceptBurst = 0;
+    private static volatile int queueSize = 1000;
+    private static volatile long queueTimeoutMillis = 1000;
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition released = lock.newCondition();
+    // Token bucket, guarded by lock
+    private static double tokens;
+    private static long refilledAt = System.nanoTime();
+
+    private static final AtomicInteger waiting = new AtomicInteger();
+    private static final LongAdder queued = new LongAdder();
+    private static final LongAdder shedRate = new LongAdder();
+    private static final LongAdder shedQueueFull = new LongAdder();
+    private static final LongAdder shedTimeout = new LongAdder();
+
+    private AdmissionControl() {}
+
+    /**
+     * Applies LB_ACCEPT_RATE (connections per second, 0 for no limit),
+     * LB_ACCEPT_BURST (defaults to one second's worth), LB_QUEUE_SIZE
+     * (0 sheds as soon as every backend is full) and LB_QUEUE_TIMEOUT_MS.
+     */
+    public static void configure(LoadBalancerConfig config) {
+        double rate = Math.max(0, config.getDouble("LB_ACCEPT_RATE", 0));
+        setAcceptRate(rate, config.getDouble("LB_ACCEPT_BURST", rate));
+        setQueue(config.getInt("LB_QUEUE_SIZE", 1000), config.getLong("LB_QUEUE_TIMEOUT_MS", 1000));
+        if (rate > 0) {
+            System.out.println("[Admission] Accepting up to " + rate + " connections/s");
+        }
+    }
+
+    public static void setAcceptRate(double rate, double burst) {
+        lock.lock();
+        try {
+            acceptRate = Math.max(0, rate);
+            acceptBurst = Math.max(1, burst);
+            tokens = acceptBurst;
+            refilledAt = System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static void setQueue(int size, long timeoutMillis) {
+        queueSize = Math.max(0, size);
+        queueTimeoutMillis = Math.max(0, timeoutMillis);
+    }
+
+    /** Called for each accepted connection; false means close it with OVERLOADED. */
+    public static boolean tryAccept() {
+        if (acceptRate <= 0) return true;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            tokens = Math.min(acceptBurst, tokens + (now - refilledAt) * acceptRate / 1e9);
+            refilledAt = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        shedRate.increment();
+        return false;
+    }
+
+    /**
+     * Retries attempt each time a backend slot frees up until it returns a
+     * node or the queue timeout passes. Returns null, counted as shed, on
+     * timeout or when the queue is already full.
+     */
+    public static ServerNode await(Supplier<ServerNode> attempt) {
+        if (waiting.incrementAndGet() > queueSize) {
+            waiting.decrementAndGet();
+            shedQueueFull.increment();
+            return null;
+        }
+        queued.increment();
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+            while (true) {
+                // Tried under the lock so a release cannot slip in between the attempt and the wait
+                ServerNode node = attempt.get();
+                if (node != null) return node;
+                if (remaining <= 0) break;
+                remaining = released.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+            waiting.decrementAndGet();
+        }
+        shedTimeout.increment();
+        return null;
+    }
+
+    /** A backend slot was released; wakes the queue if anyone is in it. */
+    static void onRelease() {
+        if (waiting.get() == 0) return;
+        lock.lock();
+        try {
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static double getAcceptRate() {
+        return acceptRate;
+    }
+
+    public static double getAcceptBurst() {
+        return acceptBurst;
+    }
+
+    public static int getQueueSize() {
+        return queueSize;
+    }
+
+    public static long getQueueTimeoutMillis() {
+        return queueTimeoutMillis;
+    }
+
+    public static int getWaiting() {
+        return waiting.get();
+    }
+
+    public static long getQueued() {
+        return queued.sum();
+    }
+
+    public static long getShedRate() {
+        return shedRate.sum();
+    }
+
+    public static long getShedQueueFull() {
+        return shedQueueFull.sum();
+    }
+
+    public static long getShedTimeout() {
+        return shedTimeout.sum();
+    }
+}
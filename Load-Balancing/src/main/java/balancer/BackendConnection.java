@@ -0,0 +1,97 @@
+package balancer;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A persistent connection to one backend, handed out by its node's
+ * BackendConnectionPool and returned after each complete exchange.
+ */
+public class BackendConnection implements Closeable {
+    private final ServerNode node;
+    private final Socket socket;
+    private final InputStream rawIn;
+    private final HttpInput in;
+    private final OutputStream out;
+    private long lastUsedNanos = System.nanoTime();
+    private int useCount;
+
+    BackendConnection(ServerNode node, Socket socket) throws IOException {
+        this.node = node;
+        this.socket = socket;
+        this.rawIn = socket.getInputStream();
+        this.in = new HttpInput(rawIn, false);
+        this.out = socket.getOutputStream();
+    }
+
+    public ServerNode getNode() {
+        return node;
+    }
+
+    public HttpInput getInput() {
+        return in;
+    }
+
+    /** Unbuffered; callers batch their writes (see HttpHead.encode). */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /** True once this connection has carried at least one earlier exchange. */
+    public boolean isReused() {
+        return useCount > 1;
+    }
+
+    void markLeased() {
+        useCount++;
+    }
+
+    void markIdle() {
+        lastUsedNanos = System.nanoTime();
+    }
+
+    long idleNanos() {
+        return System.nanoTime() - lastUsedNanos;
+    }
+
+    /**
+     * Cheap liveness check for an idle connection. The backend may have closed
+     * it (FIN) or sent something unsolicited; either way it must not be reused.
+     * Peeks with a 1 ms read timeout, so callers only do this after a long idle.
+     */
+    boolean isStale() {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return true;
+        }
+        int originalTimeout = 0;
+        try {
+            if (in.hasBuffered() || rawIn.available() > 0) {
+                return true;
+            }
+            originalTimeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            // Data or EOF on an idle connection both mean it is unusable
+            rawIn.read();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        } finally {
+            try {
+                if (!socket.isClosed()) {
+                    socket.setSoTimeout(originalTimeout);
+                }
+            } catch (IOException ignored) {}
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+        in.release();
+    }
+}
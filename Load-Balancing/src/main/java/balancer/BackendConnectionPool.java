@@ -0,0 +1,140 @@
+package balancer;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep-alive connections to a single ServerNode. Idle connections are reused
+ * most-recently-returned first, the total per node is capped, and connections
+ * that sat idle too long are validated or dropped before being handed out.
+ */
+public class BackendConnectionPool {
+    private static volatile int maxPerNode = 64;
+    private static volatile long acquireTimeoutMillis = 5000;
+    private static volatile long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    private static volatile long validateAfterNanos = TimeUnit.SECONDS.toNanos(2);
+    private static volatile int connectTimeoutMillis = 2000;
+    private static volatile int readTimeoutMillis = 30000;
+
+    private final ServerNode node;
+    private final Deque<BackendConnection> idle = new ConcurrentLinkedDeque<>();
+    private final Semaphore permits = new Semaphore(maxPerNode);
+    private final int capacity = maxPerNode;
+    private volatile boolean closed;
+
+    public BackendConnectionPool(ServerNode node) {
+        this.node = node;
+    }
+
+    /**
+     * Applies LB_BACKEND_POOL_* settings and the LB_BACKEND_CONNECT_TIMEOUT_MS /
+     * LB_BACKEND_READ_TIMEOUT_MS socket timeouts; call before any ServerNode is created.
+     */
+    public static void configure(LoadBalancerConfig config) {
+        maxPerNode = Math.max(1, config.getInt("LB_BACKEND_POOL_MAX", 64));
+        acquireTimeoutMillis = config.getLong("LB_BACKEND_POOL_WAIT_MS", 5000);
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("LB_BACKEND_POOL_IDLE_TIMEOUT_MS", 30000));
+        validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("LB_BACKEND_POOL_VALIDATE_AFTER_MS", 2000));
+        connectTimeoutMillis = Math.max(0, config.getInt("LB_BACKEND_CONNECT_TIMEOUT_MS", 2000));
+        readTimeoutMillis = Math.max(0, config.getInt("LB_BACKEND_READ_TIMEOUT_MS", 30000));
+    }
+
+    static int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public BackendConnection acquire() throws IOException {
+        if (closed) throw new PoolUnavailableException("Connection pool closed for " + node.getKey());
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new PoolUnavailableException("Connection pool exhausted for " + node.getKey());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PoolUnavailableException("Interrupted waiting for a backend connection");
+        }
+
+        try {
+            BackendConnection conn;
+            while ((conn = idle.pollFirst()) != null) {
+                long idleFor = conn.idleNanos();
+                if (idleFor > idleTimeoutNanos || (idleFor > validateAfterNanos && conn.isStale())) {
+                    conn.close();
+                    continue;
+                }
+                conn.markLeased();
+                return conn;
+            }
+
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(node.getHost(), node.getPort()), connectTimeoutMillis);
+                // Bounds every wait on the backend, so a hung one cannot pin a handler
+                socket.setSoTimeout(readTimeoutMillis);
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                conn = new BackendConnection(node, socket);
+            } catch (IOException e) {
+                socket.close();
+                throw new ConnectException("Cannot connect to " + node.getKey() + ": " + e.getMessage());
+            }
+            conn.markLeased();
+            return conn;
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a leased connection. Only pass reusable=true when the last
+     * response was fully read and the backend did not ask to close.
+     */
+    public void release(BackendConnection conn, boolean reusable) {
+        if (reusable && !closed) {
+            conn.markIdle();
+            idle.offerFirst(conn);
+        } else {
+            conn.close();
+        }
+        permits.release();
+        if (closed) {
+            closeIdle();
+        }
+    }
+
+    /** Closes connections that have outlived the idle timeout. */
+    public void evictIdle() {
+        for (BackendConnection conn : idle) {
+            if (conn.idleNanos() > idleTimeoutNanos && idle.remove(conn)) {
+                conn.close();
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        closeIdle();
+    }
+
+    private void closeIdle() {
+        BackendConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            conn.close();
+        }
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getLeasedCount() {
+        return capacity - permits.availablePermits();
+    }
+}
@@ -0,0 +1,51 @@
+package balancer;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * Picks the backend for a request. ServerManager hands every strategy the
+ * current array of healthy nodes; select runs on the request path and must
+ * not block, while update runs off the hot path whenever that set changes.
+ */
+public interface BalancingStrategy {
+    List<String> NAMES = List.of("round-robin", "least-connections", "weighted-least-connections", "p2c", "peak-ewma",
+            "consistent-hash");
+
+    String getName();
+
+    /** Called under the ServerManager lock with each new set of healthy nodes. */
+    default void update(ServerNode[] healthy) {}
+
+    /** Returns one of the healthy nodes, or null if there are none. */
+    ServerNode select(ServerNode[] healthy);
+
+    /**
+     * Picks a node for a specific request; strategies that route by a request
+     * key (ConsistentHashStrategy) override this. request is null when the
+     * engine routes a connection before reading from it.
+     */
+    default ServerNode select(ServerNode[] healthy, InetAddress client, HttpHead request) {
+        return select(healthy);
+    }
+
+    /** Creates a strategy from its config/API name, or null if unknown. */
+    static BalancingStrategy forName(String name) {
+        switch (name.trim().toLowerCase()) {
+            case "round-robin":
+                return new RoundRobinStrategy();
+            case "least-connections":
+                return new LeastConnectionsStrategy(false);
+            case "weighted-least-connections":
+                return new LeastConnectionsStrategy(true);
+            case "p2c":
+                return new PowerOfTwoChoicesStrategy();
+            case "peak-ewma":
+                return new PeakEwmaStrategy();
+            case "consistent-hash":
+                return new ConsistentHashStrategy();
+            default:
+                return null;
+        }
+    }
+}
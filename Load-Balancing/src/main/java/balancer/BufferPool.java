@@ -0,0 +1,64 @@
+package balancer;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared free lists of fixed-size I/O buffers so steady-state proxying does
+ * not allocate per request. Heap buffers back the stream-based ClientHandler
+ * path (socket streams read into arrays, so a direct buffer would only add a
+ * copy); direct buffers back the channel-based NIO engine.
+ */
+public final class BufferPool {
+    private static volatile int bufferSize = 16 * 1024;
+    private static volatile int maxPooled = 1024;
+
+    private static final Queue<ByteBuffer> heapBuffers = new ConcurrentLinkedQueue<>();
+    private static final Queue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger heapCount = new AtomicInteger();
+    private static final AtomicInteger directCount = new AtomicInteger();
+
+    private BufferPool() {}
+
+    /** Applies LB_BUFFER_SIZE and LB_BUFFER_POOL_MAX (per buffer kind). */
+    public static void configure(LoadBalancerConfig config) {
+        bufferSize = Math.max(4096, config.getInt("LB_BUFFER_SIZE", 16 * 1024));
+        maxPooled = Math.max(0, config.getInt("LB_BUFFER_POOL_MAX", 1024));
+    }
+
+    public static int getBufferSize() {
+        return bufferSize;
+    }
+
+    public static ByteBuffer acquireHeap() {
+        ByteBuffer buffer = heapBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+        heapCount.decrementAndGet();
+        return buffer.clear();
+    }
+
+    public static ByteBuffer acquireDirect() {
+        ByteBuffer buffer = directBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        directCount.decrementAndGet();
+        return buffer.clear();
+    }
+
+    /** Returns a buffer to its free list; the caller must not touch it afterwards. */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) return;
+        Queue<ByteBuffer> queue = buffer.isDirect() ? directBuffers : heapBuffers;
+        AtomicInteger count = buffer.isDirect() ? directCount : heapCount;
+        if (count.incrementAndGet() <= maxPooled) {
+            queue.offer(buffer);
+        } else {
+            count.decrementAndGet();
+        }
+    }
+}
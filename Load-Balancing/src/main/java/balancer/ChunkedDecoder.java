@@ -0,0 +1,70 @@
+package balancer;
+
+import java.io.IOException;
+
+/**
+ * Undoes chunked transfer coding on a body HttpInput has already checked
+ * and relayed: chunk data goes to the sink, while sizes, extensions and
+ * trailers are dropped. The framing may arrive split at any byte.
+ */
+final class ChunkedDecoder {
+    /** Takes the chunk data, in order. */
+    interface Sink {
+        void data(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    private static final int IN_SIZE = 0;
+    private static final int IN_DATA = 1;
+    private static final int IN_DATA_END = 2;
+    private static final int IN_TRAILERS = 3;
+    private static final int DONE = 4;
+
+    private final Sink sink;
+    private int state = IN_SIZE;
+    private long remaining;
+    private boolean extension;
+    private int lineLength;
+
+    ChunkedDecoder(Sink sink) {
+        this.sink = sink;
+    }
+
+    /** Decodes bytes[offset, end); anything after the end of the body is ignored. */
+    void write(byte[] bytes, int offset, int end) throws IOException {
+        while (offset < end && state != DONE) {
+            if (state == IN_DATA) {
+                int n = (int) Math.min(remaining, end - offset);
+                sink.data(bytes, offset, n);
+                offset += n;
+                remaining -= n;
+                if (remaining == 0) state = IN_DATA_END;
+                continue;
+            }
+            int b = bytes[offset++] & 0xff;
+            if (state == IN_SIZE) {
+                if (b == '\n') {
+                    state = remaining == 0 ? IN_TRAILERS : IN_DATA;
+                    extension = false;
+                    lineLength = 0;
+                } else if (b == ';') {
+                    extension = true;
+                } else if (!extension && Character.digit(b, 16) >= 0) {
+                    remaining = remaining * 16 + Character.digit(b, 16);
+                }
+            } else if (state == IN_DATA_END) {
+                if (b == '\n') state = IN_SIZE;
+            } else if (b == '\n') {
+                // Trailers end at an empty line
+                if (lineLength == 0) state = DONE;
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+            }
+        }
+    }
+
+    /** Whether the last chunk and its trailers have gone by. */
+    boolean isDone() {
+        return state == DONE;
+    }
+}
@@ -1,97 +1,443 @@
 package balancer;
 import java.io.*;
 import java.net.*;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 
 public class ClientHandler implements Runnable {
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static volatile boolean keepAlive = true;
+    private static volatile int idleTimeoutMillis = 15000;
+
     private Socket clientSocket;
-    private ServerNode backendServer;
+    private final ServerManager serverManager;
+    private HttpInput clientIn;
+    private OutputStream clientOut;
+    // Pooled buffer that heads are encoded into before each write
+    private ByteBuffer scratch;
+    // Progress of the current attempt, which decides whether it can be retried elsewhere
+    private boolean requestSent;
+    private boolean responseStarted;
+    // Set while this handler fills the cache for the current request
+    private String cacheKey;
+    private ResponseCache.Entry revalidating;
+    // Set while this handler's backend exchange is shared with identical requests
+    private SingleFlight.Flight flight;
+    // Content coding negotiated for the current request, or null for identity
+    private String coding;
 
-    public ClientHandler(Socket clientSocket, ServerNode backendServer) {
+    public ClientHandler(Socket clientSocket, ServerManager serverManager) {
         this.clientSocket = clientSocket;
-        this.backendServer = backendServer;
+        this.serverManager = serverManager;
     }
-    
-    private String getHeaderIgnoreCase(Map<String, String> headers, String key) {
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            if (entry.getKey().equalsIgnoreCase(key)) {
-                return entry.getValue();
-            }
-        }
-        return null;
+
+    /** Applies LB_CLIENT_KEEPALIVE and LB_CLIENT_IDLE_TIMEOUT_MS. */
+    public static void configure(LoadBalancerConfig config) {
+        keepAlive = config.getBoolean("LB_CLIENT_KEEPALIVE", true);
+        idleTimeoutMillis = config.getInt("LB_CLIENT_IDLE_TIMEOUT_MS", 15000);
     }
 
     @Override
     public void run() {
-        try (
-            Socket serverSocket = new Socket(backendServer.getHost(), backendServer.getPort());
-            BufferedReader clientReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            BufferedWriter serverWriter = new BufferedWriter(new OutputStreamWriter(serverSocket.getOutputStream()));
-            BufferedReader serverReader = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
-            OutputStream clientOut = clientSocket.getOutputStream()
-        ) {
-            // Read HTTP request from client
-            StringBuilder request = new StringBuilder();
-            String line;
-            int contentLength = 0;
-            boolean isPost = false;
-
-            while (!(line = clientReader.readLine()).isEmpty()) {
-                request.append(line).append("\r\n");
-            }
-            request.append("\r\n");
-
-            // Forward Request To Backend
-            serverWriter.write(request.toString());
-            serverWriter.flush();
-            
-            // Read Status Line from Backend
-            String statusLine = serverReader.readLine();
-            if (statusLine == null) throw new IOException("Empty from backend server");
-            clientOut.write((statusLine + "\r\n").getBytes());
-
-            // Read Headers from Backend
-            Map<String, String> headers = new LinkedHashMap<>();
-            while(!(line = serverReader.readLine()).isEmpty()) {
-                int colon = line.indexOf(':');
-                if (colon != -1){
-                    String key = line.substring(0, colon).trim();
-                    String value = line.substring(colon + 1).trim();
-                    headers.put(key, value);
+        try {
+            clientSocket.setSoTimeout(idleTimeoutMillis);
+            Listeners.configure(clientSocket);
+            InputStream in = clientSocket.getInputStream();
+            if (Http2Connection.isEnabled()) {
+                // h2c with prior knowledge opens with the preface instead of a request line
+                PushbackInputStream pushback = new PushbackInputStream(in, Http2Connection.PREFACE.length);
+                if (Http2Connection.hasPreface(pushback)) {
+                    new Http2Connection(clientSocket, pushback, serverManager).serve(null);
+                    return;
+                }
+                in = pushback;
+            }
+            clientIn = new HttpInput(in, true);
+            clientOut = clientSocket.getOutputStream();
+            scratch = BufferPool.acquireHeap();
+
+            // Every request on the connection is routed individually
+            while (true) {
+                HttpHead request = clientIn.readHead();
+                if (request == null) break;
+                if (Http2Connection.isEnabled() && Http2Connection.isUpgrade(request, clientIn)) {
+                    new Http2Connection(clientSocket, in, serverManager).upgrade(request);
+                    break;
+                }
+                if (!route(request)) break;
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle keep-alive connection, nothing to report
+        } catch (IOException e) {
+            System.err.println("Error handling client request: " + e.getMessage());
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {}
+            if (clientIn != null) {
+                clientIn.release();
+            }
+            BufferPool.release(scratch);
+        }
+    }
+
+    /**
+     * Sends one request to a backend, failing over to another node when the
+     * attempt fails before any of the response reached the client. A request
+     * is retried if it never left the balancer (connect failure, exhausted
+     * pool) or if it is idempotent and has no body to replay, as long as the
+     * per-request limit and the global RetryBudget allow. Returns true if the
+     * client connection can carry another request.
+     */
+    private boolean route(HttpHead request) throws IOException {
+        HttpParser requestFraming = clientIn.getParser();
+        boolean clientKeepAlive = keepAlive && requestFraming.isKeepAlive();
+        boolean expectContinue = request.hasToken("Expect", "100-continue");
+        boolean hasBody = requestFraming.getBodyLength() != 0;
+        boolean replayable = !hasBody && isIdempotent(request.getMethod());
+        String requestLine = request.getStartLine();
+
+        if (RateLimiter.isEnabled()) {
+            long retryAfter = RateLimiter.check(clientSocket.getInetAddress(), request);
+            if (retryAfter > 0) {
+                AccessLog.log(clientSocket.getInetAddress(), requestLine, 429, 0, null, 0, 0);
+                clientOut.write(RateLimiter.tooManyRequests(retryAfter));
+                return false;
+            }
+        }
+
+        request.removeHopByHop();
+        request.remove("Expect");
+        request.set("Connection", "keep-alive");
+        coding = Compression.negotiate(request);
+
+        cacheKey = null;
+        revalidating = null;
+        flight = null;
+        String key = ResponseCache.isEnabled() ? ResponseCache.keyFor(request, requestFraming) : null;
+        ResponseCache.Entry cached = key != null ? ResponseCache.lookup(key, request) : null;
+        if (cached != null && cached.isFresh()) {
+            return serveCached(cached, request, requestLine, clientKeepAlive);
+        }
+
+        // An identical request already waiting on a backend answers this one too
+        String flightKey = SingleFlight.isEnabled() ? SingleFlight.keyFor(request, requestFraming) : null;
+        if (flightKey != null) {
+            SingleFlight.Flight leader = SingleFlight.follow(flightKey);
+            if (leader != null) {
+                long start = System.nanoTime();
+                long bytes = leader.relay(clientOut, scratch, clientKeepAlive, coding);
+                if (bytes >= 0) {
+                    AccessLog.log(clientSocket.getInetAddress(), requestLine, leader.getStatus(), bytes, null, 0,
+                            System.nanoTime() - start);
+                    return clientKeepAlive && !leader.isUntilClose();
+                }
+            }
+        }
+
+        // Whoever takes the fill must complete it, however the request ends
+        try {
+            if (key != null) {
+                // Concurrent misses for one key wait for a single fill
+                CompletableFuture<ResponseCache.Entry> fill = ResponseCache.joinFill(key);
+                if (fill == null) {
+                    cacheKey = key;
+                } else {
+                    ResponseCache.Entry filled = ResponseCache.awaitFill(fill);
+                    if (filled != null) cached = filled;
+                }
+                if (cached != null && cached.isFresh()) {
+                    return serveCached(cached, request, requestLine, clientKeepAlive);
+                }
+                ResponseCache.recordMiss();
+                if (cacheKey != null && cached != null && cached.hasValidators()
+                        && request.get("If-None-Match") == null && request.get("If-Modified-Since") == null) {
+                    revalidating = cached;
+                    if (cached.etag != null) request.set("If-None-Match", cached.etag);
+                    if (cached.lastModified != null) request.set("If-Modified-Since", cached.lastModified);
                 }
             }
-            
-            // Log backend response headers
-            System.out.println("← " + backendServer + " responded: " + statusLine);
-            System.out.println("   Content-Type: " + getHeaderIgnoreCase(headers, "Content-Type"));
-            System.out.println("   Content-Length: " + headers.get("Content-Length"));
+            if (flightKey != null && revalidating == null) {
+                flight = SingleFlight.lead(flightKey);
+            }
+            return forward(request, requestLine, clientKeepAlive, expectContinue, hasBody, replayable);
+        } finally {
+            if (flight != null) {
+                flight.finish();
+                flight = null;
+            }
+            if (cacheKey != null) {
+                ResponseCache.completeFill(cacheKey);
+            }
+        }
+    }
+
+    private boolean forward(HttpHead request, String requestLine, boolean clientKeepAlive,
+                            boolean expectContinue, boolean hasBody, boolean replayable) throws IOException {
+        RetryBudget budget = serverManager.getRetryBudget();
+        budget.recordRequest();
+        ServerNode target = serverManager.getNextServer(clientSocket.getInetAddress(), request);
+        if (target != null) {
+            target = admit(target);
+            if (target == null) {
+                AccessLog.log(clientSocket.getInetAddress(), requestLine, 503, 0, null, 0, 0);
+                clientOut.write(AdmissionControl.OVERLOADED);
+                return false;
+            }
+        }
+        for (int attempt = 0; ; attempt++) {
+            if (target == null) {
+                System.err.println("No healthy backend servers available.");
+                AccessLog.log(clientSocket.getInetAddress(), requestLine, 503, 0, null, 0, 0);
+                writeError(503, "Service Unavailable");
+                return false;
+            }
+            serverManager.recordRequest(target);
+            if (attempt == 0 && expectContinue && hasBody) {
+                clientOut.write(CONTINUE);
+            }
+
+            requestSent = false;
+            responseStarted = false;
+            // admit() or tryAcquire() has already counted the node as active
+            ServerNode node = target;
+            try {
+                return proxy(request, node, requestLine, clientKeepAlive, hasBody);
+            } catch (ClientReadException e) {
+                // The client stopped sending its body; nothing to retry and not the backend's fault
+                if (responseStarted) throw e;
+                AccessLog.log(clientSocket.getInetAddress(), requestLine, e.isTimeout() ? 408 : 499, 0, node, 0, 0);
+                if (e.isTimeout()) {
+                    writeError(408, "Request Timeout");
+                }
+                return false;
+            } catch (IOException e) {
+                if (responseStarted) throw e;
+                System.err.println("Error handling client request: " + e.getMessage());
+                boolean poolUnavailable = e instanceof PoolUnavailableException;
+                if (!poolUnavailable) {
+                    serverManager.recordFailure(node);
+                }
+                boolean retry = (!requestSent || replayable) && attempt < RetryBudget.getMaxRetries();
+                target = retry ? serverManager.getNextServer(node) : null;
+                // Retries never queue; with every other node full the attempt fails as it is
+                target = target != null && budget.tryRetry() ? serverManager.tryAcquire(target, node) : null;
+                if (target == null) {
+                    // Client-side timeouts were handled above; this one is the backend's
+                    boolean timedOut = e instanceof SocketTimeoutException;
+                    int status = poolUnavailable ? 503 : timedOut ? 504 : 502;
+                    AccessLog.log(clientSocket.getInetAddress(), requestLine, status, 0, node, 0, 0);
+                    writeError(status, poolUnavailable ? "Service Unavailable"
+                            : timedOut ? "Gateway Timeout" : "Bad Gateway");
+                    return false;
+                }
+            } finally {
+                node.decrementActive();
+            }
+        }
+    }
+
+    /**
+     * Takes an in-flight slot on target, or another node with room. When
+     * every node is at its limit the request waits in the AdmissionControl
+     * queue; null means it was shed.
+     */
+    private ServerNode admit(ServerNode target) {
+        ServerNode node = serverManager.tryAcquire(target, null);
+        return node != null ? node : AdmissionControl.await(() -> serverManager.tryAcquire(target, null));
+    }
+
+    private boolean serveCached(ResponseCache.Entry entry, HttpHead request, String requestLine,
+                                boolean clientKeepAlive) throws IOException {
+        ResponseCache.recordHit(entry);
+        long start = System.nanoTime();
+        long bytes = ResponseCache.serve(entry, request, clientOut, scratch, clientKeepAlive, coding);
+        AccessLog.log(clientSocket.getInetAddress(), requestLine, entry.getStatus(), bytes, null, 0,
+                System.nanoTime() - start);
+        return clientKeepAlive;
+    }
+
+    /** Safe to send twice: RFC 9110 idempotent methods. */
+    private static boolean isIdempotent(String method) {
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "OPTIONS":
+            case "TRACE":
+            case "PUT":
+            case "DELETE":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Forwards one request over a pooled backend connection and relays the
+     * response. Failures before the response starts are thrown for route() to
+     * retry; the requestSent and responseStarted fields record how far it got.
+     */
+    private boolean proxy(HttpHead request, ServerNode target, String requestLine,
+                          boolean clientKeepAlive, boolean hasBody) throws IOException {
+        boolean isHead = clientIn.getParser().isHeadMethod();
+        BackendConnectionPool pool = target.getConnectionPool();
+        BackendConnection conn = null;
+        boolean reusable = false;
+        Compression.Encoder encoder = null;
+        ResponseCache.Capture capture = null;
+        try {
+            HttpHead response;
+            long sentAt = 0;
+            long requestBytes = 0;
+            for (int attempt = 0; ; attempt++) {
+                conn = pool.acquire();
+                try {
+                    OutputStream backendOut = conn.getOutputStream();
+                    requestSent = true;
+                    requestBytes = sendMessage(request, clientIn, backendOut);
+                    sentAt = System.nanoTime();
+                    response = readFinalResponse(conn.getInput(), isHead);
+                    break;
+                } catch (IOException e) {
+                    // A pooled connection may have been closed by the backend while idle; replay once
+                    // on a fresh one when the request is still in hand. Unless it is idempotent, only
+                    // if writing it failed: a failed read may come after the backend acted on it
+                    boolean retry = attempt == 0 && conn.isReused() && !hasBody && !responseStarted
+                            && !(e instanceof SocketTimeoutException)
+                            && (isIdempotent(request.getMethod()) || sentAt == 0)
+                            && serverManager.getRetryBudget().tryRetry();
+                    scratch.clear();
+                    pool.release(conn, false);
+                    conn = null;
+                    if (!retry) throw e;
+                }
+            }
+            long ttfb = System.nanoTime() - sentAt;
+
+            HttpParser responseFraming = conn.getInput().getParser();
+            boolean backendKeepAlive = responseFraming.isKeepAlive();
+            boolean clientCanContinue = clientKeepAlive && responseFraming.getBodyLength() != HttpParser.UNTIL_CLOSE;
 
             // Inject custom header
-            headers.put("X-Load-Balancer", "MyLoadBalancer JavaLB");
+            response.removeHopByHop();
+            response.set("X-Load-Balancer", "MyLoadBalancer JavaLB");
+            response.set("Connection", clientCanContinue ? "keep-alive" : "close");
 
-            // Forward headers to client
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                String headerLine = entry.getKey() + ": " + entry.getValue() + "\r\n";
-                clientOut.write(headerLine.getBytes());
+            if (revalidating != null && responseFraming.getStatus() == 304) {
+                // Still current: answer from the cache, without the validators we added
+                ResponseCache.refresh(revalidating, response);
+                request.remove("If-None-Match");
+                request.remove("If-Modified-Since");
+                responseStarted = true;
+                reusable = backendKeepAlive;
+                long responseBytes = ResponseCache.serve(revalidating, request, clientOut, scratch, clientKeepAlive,
+                        coding);
+                long total = System.nanoTime() - sentAt;
+                target.recordLatency(ttfb, total);
+                target.getMetrics().recordStatus(304);
+                serverManager.recordResponse(target, 304);
+                target.getMetrics().recordBytes(requestBytes, responseBytes);
+                AccessLog.log(clientSocket.getInetAddress(), requestLine, revalidating.getStatus(), responseBytes,
+                        target, ttfb, total);
+                return clientKeepAlive;
             }
-            clientOut.write("\r\n".getBytes());
 
-            // Forward body
-            InputStream backendIn = serverSocket.getInputStream();
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = backendIn.read(buffer)) != -1) {
-                clientOut.write(buffer, 0, bytesRead);
+            if (cacheKey != null) {
+                response.set("X-Cache", "MISS");
+            }
+            // Compression sits next to the client, so the cache and followers get the identity response
+            encoder = isHead ? null : Compression.encoder(coding, response, clientOut);
+            OutputStream out = encoder != null ? encoder : clientOut;
+            if (cacheKey != null) {
+                capture = ResponseCache.capture(out, request, response, responseFraming);
+                if (capture != null) out = capture;
+            }
+            SingleFlight.Flight.Tee tee = null;
+            if (flight != null) {
+                tee = flight.publish(response, responseFraming, out);
+                out = tee;
+            }
+            if (encoder != null) {
+                encoder.rewrite(response);
             }
 
-            clientOut.flush();
+            responseStarted = true;
+            int headLength = response.encode(scratch, out);
+            if (encoder != null) {
+                encoder.setBodyStart(headLength);
+            }
+            if (capture != null) {
+                capture.setBodyStart(headLength);
+            }
+            if (tee != null) {
+                tee.setBodyStart(headLength);
+            }
+            long responseBytes = headLength + conn.getInput().relayBody(out, scratch);
+            // What reached the client, which differs from what the backend sent once compressed
+            long sentBytes = encoder != null ? encoder.finish() : responseBytes;
+            if (capture != null) {
+                capture.finish(cacheKey, request);
+            }
+            if (flight != null) {
+                flight.complete();
+            }
+            long total = System.nanoTime() - sentAt;
+            target.recordLatency(ttfb, total);
+            NodeMetrics metrics = target.getMetrics();
+            metrics.recordStatus(responseFraming.getStatus());
+            serverManager.recordResponse(target, responseFraming.getStatus());
+            metrics.recordBytes(requestBytes, responseBytes);
+            AccessLog.log(clientSocket.getInetAddress(), requestLine, responseFraming.getStatus(), sentBytes,
+                    target, ttfb, total);
 
-        } catch (IOException e) {
-            System.err.println("Error handling client request: " + e.getMessage());
+            reusable = backendKeepAlive;
+            return clientCanContinue;
         } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException ignored) {}
+            if (encoder != null) {
+                encoder.close();
+            }
+            if (capture != null) {
+                capture.release();
+            }
+            if (conn != null) {
+                pool.release(conn, reusable);
+            }
+        }
+    }
+
+    /**
+     * Writes a head and relays its body from source, framed by the parser.
+     * Body bytes that arrived with the head ride in the same write as the head.
+     * Returns the number of bytes written.
+     */
+    private long sendMessage(HttpHead head, HttpInput source, OutputStream out) throws IOException {
+        int headLength = head.encode(scratch, out);
+        return headLength + source.relayBody(out, scratch);
+    }
+
+    /**
+     * Reads the backend response, passing interim 1xx responses straight
+     * through; after the first one the exchange counts as started.
+     */
+    private HttpHead readFinalResponse(HttpInput backendIn, boolean isHead) throws IOException {
+        while (true) {
+            HttpHead response = backendIn.readHead(isHead);
+            if (response == null) throw new IOException("Empty from backend server");
+            if (!backendIn.getParser().isInterim()) {
+                return response;
+            }
+            // The client has seen part of this exchange now, so it can no longer be retried
+            responseStarted = true;
+            response.writeTo(clientOut, scratch);
         }
     }
+
+    private void writeError(int status, String reason) {
+        try {
+            clientOut.write(("HTTP/1.1 " + status + " " + reason
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        } catch (IOException ignored) {}
+    }
 }
@@ -0,0 +1,22 @@
+package balancer;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Reading a request body from the client failed: it went away or stopped
+ * sending. Handlers tell this apart from backend failures so a slow or
+ * aborted upload is neither retried elsewhere nor held against the backend.
+ */
+final class ClientReadException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ClientReadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /** The client's socket read timed out, as opposed to the client going away. */
+    boolean isTimeout() {
+        return getCause() instanceof SocketTimeoutException;
+    }
+}
@@ -0,0 +1,415 @@
+package balancer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * On-the-fly gzip/deflate of backend responses for the thread engine, so
+ * backends can send identity bodies and leave the CPU work to the balancer.
+ * When enabled, the client's Accept-Encoding is taken off the request and the
+ * coding is chosen here; the cache and request coalescing keep working on
+ * the identity response, and each client gets its own compressed copy.
+ *
+ * Deflaters hold native memory, so they are pooled and reset rather than
+ * made per response, and output goes through a pooled BufferPool buffer. The
+ * pool is also the CPU budget: at most LB_COMPRESSION_MAX_CONCURRENT
+ * responses are compressed at once, and the rest go out uncompressed.
+ */
+public final class Compression {
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    // Room left in front of each chunk for its size line ("ffffff\r\n") and behind it for the CRLF
+    private static final int CHUNK_HEADER = 8;
+    private static final int CHUNK_TRAILER = 2;
+
+    private static volatile boolean enabled = false;
+    private static int level = 6;
+    private static long minSize = 1024;
+    private static String[] types = { "text/", "application/json", "application/javascript", "application/xml",
+            "application/xhtml+xml", "image/svg+xml" };
+    private static int maxConcurrent = Runtime.getRuntime().availableProcessors();
+
+    // gzip frames raw deflate itself; deflate is the zlib format, which the Deflater frames
+    private static final Queue<Deflater> rawDeflaters = new ConcurrentLinkedQueue<>();
+    private static final Queue<Deflater> zlibDeflaters = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger active = new AtomicInteger();
+
+    private static final LongAdder compressed = new LongAdder();
+    private static final LongAdder skipped = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+
+    private Compression() {}
+
+    /**
+     * Applies LB_COMPRESSION, LB_COMPRESSION_LEVEL, LB_COMPRESSION_MIN_SIZE,
+     * LB_COMPRESSION_TYPES and LB_COMPRESSION_MAX_CONCURRENT.
+     */
+    public static void configure(LoadBalancerConfig config) {
+        level = Math.max(1, Math.min(9, config.getInt("LB_COMPRESSION_LEVEL", 6)));
+        minSize = Math.max(0, config.getLong("LB_COMPRESSION_MIN_SIZE", 1024));
+        types = Arrays.stream(config.getString("LB_COMPRESSION_TYPES", String.join(",", types)).split(","))
+                .map(s -> s.trim().toLowerCase(Locale.ROOT)).filter(s -> !s.isEmpty()).toArray(String[]::new);
+        maxConcurrent = Math.max(1, config.getInt("LB_COMPRESSION_MAX_CONCURRENT",
+                Runtime.getRuntime().availableProcessors()));
+        enabled = config.getBoolean("LB_COMPRESSION", false);
+        if (enabled) {
+            System.out.println("[Compression] Enabled, level " + level + ", at most " + maxConcurrent
+                    + " at once, bodies from " + minSize + " bytes");
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The coding to answer request with, "gzip" or "deflate", or null for
+     * none. Takes Accept-Encoding off the request so the backend answers
+     * with identity; q-values are honoured and gzip wins a tie. HTTP/1.0
+     * clients get identity, as the compressed body needs chunked framing.
+     */
+    public static String negotiate(HttpHead request) {
+        if (!enabled) return null;
+        String accept = request.get("Accept-Encoding");
+        request.remove("Accept-Encoding");
+        if (accept == null || "HEAD".equals(request.getMethod()) || !"HTTP/1.1".equals(request.getVersion())) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String part : accept.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            switch (coding) {
+                case "gzip":
+                case "x-gzip":
+                    gzip = q;
+                    break;
+                case "deflate":
+                    deflate = q;
+                    break;
+                case "*":
+                    any = q;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+        if (gzip > 0 && gzip >= deflate) return "gzip";
+        return deflate > 0 ? "deflate" : null;
+    }
+
+    /**
+     * An encoder that compresses the identity response described by head on
+     * its way to out, or null if coding is null or the response is not worth
+     * compressing: not a 2xx with a body, already encoded, no-transform, a
+     * content type outside LB_COMPRESSION_TYPES or shorter than the minimum.
+     * Also null, and counted as skipped, when the concurrency budget is spent.
+     * The caller must rewrite() its head and close() the encoder when done.
+     */
+    public static Encoder encoder(String coding, HttpHead head, OutputStream out) {
+        if (coding == null || !isCompressible(head)) return null;
+        if (active.incrementAndGet() > maxConcurrent) {
+            active.decrementAndGet();
+            skipped.increment();
+            return null;
+        }
+        boolean gzip = "gzip".equals(coding);
+        Deflater deflater = (gzip ? rawDeflaters : zlibDeflaters).poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, gzip);
+        }
+        boolean chunked = head.hasToken("Transfer-Encoding", "chunked");
+        return new Encoder(coding, deflater, chunked, chunked || head.get("Content-Length") == null, out);
+    }
+
+    private static boolean isCompressible(HttpHead head) {
+        int status = head.getStatusCode();
+        if (status < 200 || status >= 300 || status == 204 || status == 206) return false;
+        String encoding = head.get("Content-Encoding");
+        if (encoding != null && !encoding.trim().equalsIgnoreCase("identity")) return false;
+        if (head.hasToken("Cache-Control", "no-transform") || head.get("Content-Range") != null) return false;
+        String type = head.get("Content-Type");
+        if (type == null) return false;
+        type = type.trim().toLowerCase(Locale.ROOT);
+        boolean listed = false;
+        for (String prefix : types) {
+            if (type.startsWith(prefix)) {
+                listed = true;
+                break;
+            }
+        }
+        if (!listed) return false;
+        String length = head.get("Content-Length");
+        if (length != null && !head.hasToken("Transfer-Encoding", "chunked")) {
+            try {
+                return Long.parseLong(length.trim()) >= Math.max(1, minSize);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void release(Deflater deflater, boolean gzip) {
+        deflater.reset();
+        deflater.setLevel(level);
+        (gzip ? rawDeflaters : zlibDeflaters).offer(deflater);
+        active.decrementAndGet();
+    }
+
+    public static long getCompressed() {
+        return compressed.sum();
+    }
+
+    public static long getSkipped() {
+        return skipped.sum();
+    }
+
+    /** Identity body bytes that went into compressed responses. */
+    public static long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /** Compressed body bytes sent for them, chunk framing included. */
+    public static long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Sits between a response writer and the client. The head is passed
+     * through as written; from setBodyStart() on, the backend's body framing
+     * (Content-Length, chunked or until close) is undone, the bytes are
+     * deflated, and they go out chunked. Chunked and until-close bodies may
+     * be streams, so the deflater is flushed at the end of each write; a
+     * body of known length is only flushed as the output buffer fills.
+     */
+    public static final class Encoder extends OutputStream {
+        private final String coding;
+        private final boolean gzip;
+        // Undoes the backend's chunked framing; null for other bodies
+        private final ChunkedDecoder unchunker;
+        private final boolean streaming;
+        private final OutputStream out;
+        private Deflater deflater;
+        private ByteBuffer buffer;
+        private final CRC32 crc = new CRC32();
+        private int filled;
+        private long position;
+        private long bodyStart = -1;
+        private long consumed;
+        private long written;
+        private boolean started;
+        // Input went in since the last sync flush
+        private boolean pending;
+        private boolean finishing;
+
+        private Encoder(String coding, Deflater deflater, boolean chunked, boolean streaming, OutputStream out) {
+            this.coding = coding;
+            this.gzip = "gzip".equals(coding);
+            this.deflater = deflater;
+            this.unchunker = chunked ? new ChunkedDecoder(this::deflate) : null;
+            this.streaming = streaming;
+            this.out = out;
+            this.buffer = BufferPool.acquireHeap();
+        }
+
+        /**
+         * Turns the identity head into the one the client gets: chunked, with
+         * Content-Encoding, Vary: Accept-Encoding and a weakened ETag, since
+         * the compressed bytes are a different representation.
+         */
+        public void rewrite(HttpHead head) {
+            head.remove("Content-Length");
+            head.remove("Accept-Ranges");
+            head.set("Transfer-Encoding", "chunked");
+            head.set("Content-Encoding", coding);
+            String vary = head.get("Vary");
+            if (vary == null) {
+                head.set("Vary", "Accept-Encoding");
+            } else if (!head.hasToken("Vary", "Accept-Encoding")) {
+                head.set("Vary", vary + ", Accept-Encoding");
+            }
+            String etag = head.get("ETag");
+            if (etag != null && !etag.startsWith("W/")) {
+                head.set("ETag", "W/" + etag);
+            }
+        }
+
+        public void setBodyStart(long offset) {
+            bodyStart = offset;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (bodyStart < 0 || position + len <= bodyStart) {
+                out.write(b, off, len);
+                written += len;
+                position += len;
+                return;
+            }
+            int head = (int) Math.max(0, bodyStart - position);
+            if (head > 0) {
+                out.write(b, off, head);
+                written += head;
+            }
+            position += len;
+            if (unchunker != null) {
+                unchunker.write(b, off + head, off + len);
+            } else {
+                deflate(b, off + head, len - head);
+            }
+            if (streaming && pending) {
+                drain(Deflater.SYNC_FLUSH);
+                pending = false;
+                emit();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        /**
+         * Ends the compressed stream and the chunked body after the last body
+         * byte and returns the deflater to the pool. Returns the bytes sent to
+         * the client, head included.
+         */
+        public long finish() throws IOException {
+            if (!started) {
+                start();
+            }
+            finishing = true;
+            deflater.finish();
+            drain(Deflater.NO_FLUSH);
+            if (gzip) {
+                if (space() < 8) emit();
+                int at = CHUNK_HEADER + filled;
+                byte[] array = buffer.array();
+                putIntLE(array, at, (int) crc.getValue());
+                putIntLE(array, at + 4, (int) consumed);
+                filled += 8;
+            }
+            emit();
+            out.write(LAST_CHUNK);
+            written += LAST_CHUNK.length;
+            out.flush();
+            compressed.increment();
+            bytesIn.add(consumed);
+            close();
+            return written;
+        }
+
+        /** Hands the deflater and buffer back; safe to call more than once. */
+        @Override
+        public void close() {
+            if (deflater != null) {
+                Compression.release(deflater, gzip);
+                deflater = null;
+            }
+            if (buffer != null) {
+                BufferPool.release(buffer);
+                buffer = null;
+            }
+        }
+
+        private void deflate(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return;
+            if (!started) {
+                start();
+            }
+            if (gzip) {
+                crc.update(bytes, offset, length);
+            }
+            consumed += length;
+            pending = true;
+            deflater.setInput(bytes, offset, length);
+            while (!deflater.needsInput()) {
+                if (space() == 0) emit();
+                filled += deflater.deflate(buffer.array(), CHUNK_HEADER + filled, space(), Deflater.NO_FLUSH);
+            }
+        }
+
+        /** Takes what the deflater holds: all of it once finishing, else up to a full sync flush. */
+        private void drain(int mode) throws IOException {
+            while (true) {
+                if (space() == 0) emit();
+                int room = space();
+                filled += deflater.deflate(buffer.array(), CHUNK_HEADER + filled, room, mode);
+                if (finishing ? deflater.finished() : filled < buffer.capacity() - CHUNK_HEADER - CHUNK_TRAILER) {
+                    break;
+                }
+            }
+        }
+
+        private void start() {
+            started = true;
+            if (gzip) {
+                System.arraycopy(GZIP_HEADER, 0, buffer.array(), CHUNK_HEADER, GZIP_HEADER.length);
+                filled = GZIP_HEADER.length;
+            }
+        }
+
+        private int space() {
+            return buffer.capacity() - CHUNK_HEADER - CHUNK_TRAILER - filled;
+        }
+
+        /** Writes what has been compressed so far as one chunk, size line and all, in a single write. */
+        private void emit() throws IOException {
+            if (filled == 0) return;
+            byte[] array = buffer.array();
+            String size = Integer.toHexString(filled);
+            int start = CHUNK_HEADER - size.length() - 2;
+            for (int i = 0; i < size.length(); i++) {
+                array[start + i] = (byte) size.charAt(i);
+            }
+            array[CHUNK_HEADER - 2] = '\r';
+            array[CHUNK_HEADER - 1] = '\n';
+            int end = CHUNK_HEADER + filled;
+            array[end] = '\r';
+            array[end + 1] = '\n';
+            out.write(array, start, end + 2 - start);
+            written += end + 2 - start;
+            bytesOut.add(end + 2 - start);
+            filled = 0;
+        }
+
+        private static void putIntLE(byte[] array, int at, int value) {
+            array[at] = (byte) value;
+            array[at + 1] = (byte) (value >>> 8);
+            array[at + 2] = (byte) (value >>> 16);
+            array[at + 3] = (byte) (value >>> 24);
+        }
+    }
+}
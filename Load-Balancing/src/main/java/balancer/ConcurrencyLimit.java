@@ -0,0 +1,114 @@
+package balancer;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * How many exchanges one backend may have in flight. LB_MAX_INFLIGHT is a
+ * fixed cap; with LB_ADAPTIVE_LIMIT the cap is found at runtime instead,
+ * AIMD-style against latency: while time-to-first-byte stays within
+ * LB_LIMIT_TOLERANCE times the node's no-load latency the limit grows by
+ * about one per round trip, and when it rises above that (queueing in the
+ * backend) or an exchange fails the limit is cut by LB_LIMIT_BACKOFF, at most
+ * once per round trip. The no-load latency is the lowest sample seen,
+ * drifting slowly upwards so a backend that got slower for good is relearned.
+ */
+public class ConcurrencyLimit {
+    private static volatile int maxInFlight = 0;
+    private static volatile boolean adaptive = false;
+    private static volatile int initialLimit = 20;
+    private static volatile int minLimit = 1;
+    private static volatile int maxLimit = 1000;
+    private static volatile double tolerance = 2.0;
+    private static volatile double backoff = 0.9;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock; limit is volatile so get() can read it without
+    private volatile double limit = initialLimit;
+    private long noLoadNanos = Long.MAX_VALUE;
+    private long lastDecrease = System.nanoTime();
+
+    /**
+     * Applies LB_MAX_INFLIGHT (0 for no fixed cap), LB_ADAPTIVE_LIMIT,
+     * LB_LIMIT_INITIAL, LB_LIMIT_MIN, LB_LIMIT_MAX, LB_LIMIT_TOLERANCE and
+     * LB_LIMIT_BACKOFF.
+     */
+    public static void configure(LoadBalancerConfig config) {
+        maxInFlight = Math.max(0, config.getInt("LB_MAX_INFLIGHT", 0));
+        adaptive = config.getBoolean("LB_ADAPTIVE_LIMIT", false);
+        minLimit = Math.max(1, config.getInt("LB_LIMIT_MIN", 1));
+        maxLimit = Math.max(minLimit, config.getInt("LB_LIMIT_MAX", 1000));
+        initialLimit = Math.min(maxLimit, Math.max(minLimit, config.getInt("LB_LIMIT_INITIAL", 20)));
+        tolerance = Math.max(1.0, config.getDouble("LB_LIMIT_TOLERANCE", 2.0));
+        backoff = Math.min(0.99, Math.max(0.1, config.getDouble("LB_LIMIT_BACKOFF", 0.9)));
+        if (maxInFlight > 0 || adaptive) {
+            System.out.println("[Limit] Per-backend in-flight limit: "
+                    + (adaptive ? "adaptive from " + initialLimit : "") + (maxInFlight > 0 && adaptive ? ", " : "")
+                    + (maxInFlight > 0 ? "at most " + maxInFlight : ""));
+        }
+    }
+
+    public static int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /** Changes the fixed cap at runtime; 0 removes it. */
+    public static void setMaxInFlight(int max) {
+        maxInFlight = Math.max(0, max);
+    }
+
+    public static boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public static void setAdaptive(boolean enabled) {
+        adaptive = enabled;
+    }
+
+    /** The current limit; Integer.MAX_VALUE when nothing caps the node. */
+    public int get() {
+        int cap = maxInFlight;
+        if (!adaptive) {
+            return cap > 0 ? cap : Integer.MAX_VALUE;
+        }
+        int current = (int) limit;
+        return cap > 0 ? Math.min(cap, current) : current;
+    }
+
+    /** Feeds one time-to-first-byte sample, taken with inFlight exchanges outstanding. */
+    public void onSample(long ttfbNanos, int inFlight) {
+        if (!adaptive || ttfbNanos <= 0 || !lock.tryLock()) return;
+        try {
+            if (ttfbNanos < noLoadNanos) {
+                noLoadNanos = ttfbNanos;
+            } else {
+                noLoadNanos += (ttfbNanos - noLoadNanos) >> 10;
+            }
+            if (ttfbNanos > noLoadNanos * tolerance) {
+                decrease(ttfbNanos);
+            } else if (inFlight * 2 >= limit) {
+                // Only grow while the limit is actually being used
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** An exchange failed or timed out. */
+    public void onDrop() {
+        if (!adaptive) return;
+        lock.lock();
+        try {
+            decrease(noLoadNanos == Long.MAX_VALUE ? 0 : noLoadNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease(long roundTripNanos) {
+        long now = System.nanoTime();
+        if (now - lastDecrease < roundTripNanos) return;
+        lastDecrease = now;
+        limit = Math.max(minLimit, limit * backoff);
+    }
+}
@@ -0,0 +1,205 @@
+package balancer;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Consistent hashing on a ring of virtual nodes, for backends that keep
+ * per-user state: requests with the same key (LB_HASH_KEY) keep landing on
+ * the same node, and adding or removing a node only moves the keys on its own
+ * arcs, about 1/N of them. Each node gets LB_HASH_VNODES points per unit of
+ * weight. The ring is rebuilt off the hot path and published whole, so a
+ * lookup is a lock-free binary search.
+ *
+ * With LB_HASH_LOAD_FACTOR above 0 this is consistent hashing with bounded
+ * loads (Mirrokni et al.): a node already carrying more than factor times its
+ * weighted share of in-flight requests is passed over for the next one
+ * clockwise, so one hot key cannot swamp its node.
+ */
+public class ConsistentHashStrategy implements BalancingStrategy {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_POINTS = 1 << 20;
+
+    private static volatile String keySource = "ip";
+    private static volatile String keyName = "";
+    private static volatile int vnodesPerWeight = 100;
+    private static volatile double loadFactor = 1.25;
+
+    private volatile Ring ring = new Ring(new long[0], new ServerNode[0], new LongAdder(), 0);
+
+    private static final class Ring {
+        // Sorted; owners[i] holds the arc ending at points[i]
+        final long[] points;
+        final ServerNode[] owners;
+        // In-flight exchanges on this ring's nodes alone, kept up by the nodes themselves
+        final LongAdder inFlight;
+        final int totalWeight;
+
+        Ring(long[] points, ServerNode[] owners, LongAdder inFlight, int totalWeight) {
+            this.points = points;
+            this.owners = owners;
+            this.inFlight = inFlight;
+            this.totalWeight = totalWeight;
+        }
+    }
+
+    /**
+     * Applies LB_HASH_KEY ("ip", "path", "header:Name" or "cookie:name"),
+     * LB_HASH_VNODES and LB_HASH_LOAD_FACTOR (0 turns bounded loads off).
+     */
+    public static void configure(LoadBalancerConfig config) {
+        String key = config.getString("LB_HASH_KEY", "ip").trim();
+        int colon = key.indexOf(':');
+        keySource = (colon < 0 ? key : key.substring(0, colon)).trim().toLowerCase();
+        keyName = colon < 0 ? "" : key.substring(colon + 1).trim();
+        vnodesPerWeight = Math.min(1000, Math.max(1, config.getInt("LB_HASH_VNODES", 100)));
+        loadFactor = Math.max(0.0, config.getDouble("LB_HASH_LOAD_FACTOR", 1.25));
+    }
+
+    @Override
+    public String getName() {
+        return "consistent-hash";
+    }
+
+    @Override
+    public void update(ServerNode[] healthy) {
+        int totalWeight = 0;
+        for (ServerNode node : healthy) {
+            totalWeight += node.getWeight();
+        }
+        int perWeight = Math.max(1, Math.min(vnodesPerWeight, MAX_POINTS / Math.max(1, totalWeight)));
+
+        long[][] entries = new long[totalWeight * perWeight][];
+        int count = 0;
+        for (int n = 0; n < healthy.length; n++) {
+            String key = healthy[n].getKey();
+            for (int v = 0; v < healthy[n].getWeight() * perWeight; v++) {
+                String point = key + "#" + v;
+                entries[count++] = new long[] { hash(point, 0, point.length()), n };
+            }
+        }
+        Arrays.sort(entries, Comparator.comparingLong(e -> e[0]));
+
+        long[] points = new long[count];
+        ServerNode[] owners = new ServerNode[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = entries[i][0];
+            owners[i] = healthy[(int) entries[i][1]];
+        }
+        // Seeded from the nodes' own counts, so every rebuild resynchronizes it; an exchange
+        // starting or ending during the swap may leave it one off until the next
+        LongAdder inFlight = new LongAdder();
+        for (ServerNode node : healthy) {
+            node.setRingActive(inFlight);
+            inFlight.add(node.getActiveConnections());
+        }
+        ring = new Ring(points, owners, inFlight, totalWeight);
+    }
+
+    /** Without a request to hash (retries), any point on the ring will do. */
+    @Override
+    public ServerNode select(ServerNode[] healthy) {
+        return lookup(ThreadLocalRandom.current().nextLong());
+    }
+
+    @Override
+    public ServerNode select(ServerNode[] healthy, InetAddress client, HttpHead request) {
+        return lookup(keyHash(client, request));
+    }
+
+    private ServerNode lookup(long hash) {
+        Ring current = ring;
+        int n = current.points.length;
+        if (n == 0) return null;
+        int start = Arrays.binarySearch(current.points, hash);
+        if (start < 0) start = -start - 1;
+
+        double factor = loadFactor;
+        // Other pools and draining nodes of older topologies do not move this ring's bound
+        double perWeight = factor > 0 ? factor * (Math.max(0, current.inFlight.sum()) + 1) / current.totalWeight : 0;
+        ServerNode fallback = null;
+        for (int step = 0; step < n; step++) {
+            ServerNode node = current.owners[(start + step) % n];
+            // Went down after this ring was built; a new one is being published
+            if (!node.isAvailable()) continue;
+            if (factor <= 0 || node.getActiveConnections() < Math.ceil(perWeight * node.getWeight())) {
+                return node;
+            }
+            if (fallback == null) fallback = node;
+        }
+        return fallback;
+    }
+
+    /** Hash of the configured key; falls back to the client address when the key is absent. */
+    static long keyHash(InetAddress client, HttpHead request) {
+        if (request != null) {
+            switch (keySource) {
+                case "path": {
+                    String line = request.getStartLine();
+                    int from = line.indexOf(' ') + 1;
+                    int to = line.indexOf(' ', from);
+                    if (to < 0) to = line.length();
+                    int query = line.indexOf('?', from);
+                    if (query >= 0 && query < to) to = query;
+                    return hash(line, from, to);
+                }
+                case "header": {
+                    String value = request.get(keyName);
+                    if (value != null) return hash(value, 0, value.length());
+                    break;
+                }
+                case "cookie": {
+                    String cookies = request.get("Cookie");
+                    int from = cookies == null ? -1 : cookieValueStart(cookies, keyName);
+                    if (from >= 0) {
+                        int to = cookies.indexOf(';', from);
+                        return hash(cookies, from, to < 0 ? cookies.length() : to);
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+        return client == null ? 0 : mix(client.hashCode());
+    }
+
+    /** Index where the value of cookie name starts in a Cookie header, or -1. */
+    private static int cookieValueStart(String cookies, String name) {
+        int i = 0;
+        int length = cookies.length();
+        while (i < length) {
+            while (i < length && (cookies.charAt(i) == ' ' || cookies.charAt(i) == ';')) i++;
+            int end = cookies.indexOf(';', i);
+            if (end < 0) end = length;
+            if (i + name.length() < end && cookies.charAt(i + name.length()) == '='
+                    && cookies.regionMatches(i, name, 0, name.length())) {
+                return i + name.length() + 1;
+            }
+            i = end + 1;
+        }
+        return -1;
+    }
+
+    /** FNV-1a over the chars, finished with a murmur3 mix so nearby keys spread over the ring. */
+    static long hash(String s, int from, int to) {
+        long h = FNV_OFFSET;
+        for (int i = from; i < to; i++) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
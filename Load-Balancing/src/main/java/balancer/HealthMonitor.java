@@ -1,50 +1,213 @@
 package balancer;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URI;
 import java.net.http.*;
 import java.time.Duration;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.function.Supplier;
 
+/**
+ * Active health checks. Every node is probed on its own schedule with random
+ * jitter, so probes do not arrive at the backends in lockstep, and a node that
+ * has started failing is re-probed at a shorter interval. A node is marked
+ * down after LB_HEALTH_FALL consecutive failed probes and back up after
+ * LB_HEALTH_RISE consecutive successful ones, so a single lost probe does not
+ * flap it. Faster reaction to live failures comes from OutlierDetector.
+ * Backends that do not speak HTTP (behind a passthrough listener) can be
+ * probed with a plain TCP connect instead (LB_HEALTH_TYPE=tcp). A pool in
+ * servers.txt can set its own check path, or "tcp", for its members.
+ */
 public class HealthMonitor {
-    private final List<ServerNode> servers;
+    private static volatile boolean tcp = false;
+    private static volatile String path = "/";
+    private static volatile String method = "GET";
+    private static volatile boolean[] expectedStatus = parseStatuses("200-399");
+    private static volatile long intervalMillis = 5000;
+    private static volatile long failingIntervalMillis = 1000;
+    private static volatile double jitter = 0.1;
+    private static volatile long timeoutMillis = 1000;
+    private static volatile int rise = 2;
+    private static volatile int fall = 3;
+
+    // The live server list, read on every discovery pass so reloads are picked up
+    private final Supplier<List<ServerNode>> servers;
+    private final Map<ServerNode, ProbeState> probes = new ConcurrentHashMap<>();
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
     private final HttpClient client;
+    // Runs the blocking connects of tcp probes
+    private final ExecutorService connectProbes = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Consecutive results for one node; only one probe per node is in flight
+    private static final class ProbeState {
+        int successes;
+        int failures;
+    }
 
-    public HealthMonitor(List<ServerNode> servers) {
+    public HealthMonitor(Supplier<List<ServerNode>> servers) {
         this.servers = servers;
         this.client = HttpClient.newBuilder()
-                                .connectTimeout(Duration.ofSeconds(1))
+                                .connectTimeout(Duration.ofMillis(timeoutMillis))
                                 .version(HttpClient.Version.HTTP_1_1)
                                 .build();
     }
 
+    /**
+     * Applies LB_HEALTH_TYPE ("http" or "tcp"), LB_HEALTH_PATH, LB_HEALTH_METHOD, LB_HEALTH_EXPECTED_STATUS
+     * (e.g. "200-399" or "200,204"), LB_HEALTH_INTERVAL_MS,
+     * LB_HEALTH_FAILING_INTERVAL_MS, LB_HEALTH_JITTER (fraction of the
+     * interval), LB_HEALTH_TIMEOUT_MS, LB_HEALTH_RISE and LB_HEALTH_FALL.
+     */
+    public static void configure(LoadBalancerConfig config) {
+        tcp = "tcp".equalsIgnoreCase(config.getString("LB_HEALTH_TYPE", "http"));
+        path = config.getString("LB_HEALTH_PATH", "/");
+        method = config.getString("LB_HEALTH_METHOD", "GET").toUpperCase();
+        // Checked here so a typo is reported at startup rather than failing every probe
+        try {
+            HttpRequest.newBuilder().uri(URI.create("http://localhost" + path));
+        } catch (IllegalArgumentException e) {
+            System.err.println("[Config] Invalid LB_HEALTH_PATH: " + path + ", using /");
+            path = "/";
+        }
+        try {
+            HttpRequest.newBuilder().method(method, HttpRequest.BodyPublishers.noBody());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[Config] Invalid LB_HEALTH_METHOD: " + method + ", using GET");
+            method = "GET";
+        }
+        String statuses = config.getString("LB_HEALTH_EXPECTED_STATUS", "200-399");
+        try {
+            expectedStatus = parseStatuses(statuses);
+        } catch (NumberFormatException e) {
+            System.err.println("[Config] Invalid status list for LB_HEALTH_EXPECTED_STATUS: " + statuses
+                    + ", using 200-399");
+            expectedStatus = parseStatuses("200-399");
+        }
+        intervalMillis = Math.max(100, config.getLong("LB_HEALTH_INTERVAL_MS", 5000));
+        failingIntervalMillis = Math.max(100, config.getLong("LB_HEALTH_FAILING_INTERVAL_MS", 1000));
+        jitter = Math.min(0.5, Math.max(0.0, config.getDouble("LB_HEALTH_JITTER", 0.1)));
+        timeoutMillis = Math.max(100, config.getLong("LB_HEALTH_TIMEOUT_MS", 1000));
+        rise = Math.max(1, config.getInt("LB_HEALTH_RISE", 2));
+        fall = Math.max(1, config.getInt("LB_HEALTH_FALL", 3));
+    }
+
     public void start() {
-        scheduler.scheduleAtFixedRate(this::checkServers, 0, 5, TimeUnit.SECONDS);
+        // Picks up nodes added at runtime; each one then runs its own probe loop
+        scheduler.scheduleAtFixedRate(this::discoverServers, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void discoverServers() {
+        for (ServerNode server : servers.get()) {
+            if (probes.putIfAbsent(server, new ProbeState()) == null) {
+                // Stagger the first probes a little rather than firing them together
+                schedule(server, ThreadLocalRandom.current().nextLong(intervalMillis / 10 + 1));
+            }
+        }
     }
 
-    private void checkServers() {
-        for (ServerNode server : servers) {
-            pingServer(server).thenAccept(isHealthy -> {
-                server.setHealthy(isHealthy);
-                System.out.println("[HealthCheck] " + server + " is " + (isHealthy ? "HEALTHY" : "DOWN"));
-            });
+    private void schedule(ServerNode server, long delayMillis) {
+        try {
+            scheduler.schedule(() -> probe(server), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+
+    private void probe(ServerNode server) {
+        ProbeState state = probes.get(server);
+        if (state == null) return;
+        if (!servers.get().contains(server)) {
+            probes.remove(server);
+            return;
+        }
+        CompletableFuture<Boolean> result;
+        try {
+            server.getConnectionPool().evictIdle();
+            result = pingServer(server);
+        } catch (RuntimeException e) {
+            // e.g. a pool's check path that is not a valid URI; a failed probe, and the loop goes on
+            System.err.println("[HealthCheck] Cannot probe " + server + ": " + e.getMessage());
+            result = CompletableFuture.completedFuture(false);
+        }
+        result.whenComplete((passed, error) -> {
+            record(server, state, error == null && passed);
+            boolean failing = !server.isHealthy() || state.failures > 0;
+            long interval = failing ? failingIntervalMillis : intervalMillis;
+            long spread = (long) (interval * jitter);
+            schedule(server, interval + (spread > 0 ? ThreadLocalRandom.current().nextLong(-spread, spread + 1) : 0));
+        });
+    }
+
+    private void record(ServerNode server, ProbeState state, boolean passed) {
+        if (passed) {
+            state.failures = 0;
+            state.successes++;
+            if (!server.isHealthy() && state.successes >= rise) {
+                server.setHealthy(true);
+                System.out.println("[HealthCheck] " + server + " is HEALTHY");
+            }
+        } else {
+            state.successes = 0;
+            state.failures++;
+            if (server.isHealthy() && state.failures >= fall) {
+                server.setHealthy(false);
+                System.out.println("[HealthCheck] " + server + " is DOWN");
+            }
         }
     }
 
     private CompletableFuture<Boolean> pingServer(ServerNode server) {
+        // A pool can override the check for its members
+        String check = server.getHealthCheck();
+        if (check == null ? tcp : check.equals("tcp")) {
+            return CompletableFuture.supplyAsync(() -> canConnect(server), connectProbes);
+        }
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://" + server.getHost() + ":" + server.getPort() + "/"))
-                .timeout(Duration.ofSeconds(1))
-                .GET()
+                .uri(URI.create("http://" + server.getHost() + ":" + server.getPort() + (check != null ? check : path)))
+                .timeout(Duration.ofMillis(timeoutMillis))
+                .method(method, HttpRequest.BodyPublishers.noBody())
                 .build();
 
+        boolean[] expected = expectedStatus;
         return client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
-                .thenApply(response -> response.statusCode() >= 200 && response.statusCode() < 400)
+                .thenApply(response -> response.statusCode() < expected.length && expected[response.statusCode()])
                 .exceptionally(ex -> false);
     }
 
+    private static boolean canConnect(ServerNode server) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(server.getHost(), server.getPort()), (int) timeoutMillis);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * "200-399" or "200,204,301-302" to a lookup table indexed by status
+     * code; throws NumberFormatException on anything else.
+     */
+    private static boolean[] parseStatuses(String spec) {
+        boolean[] statuses = new boolean[600];
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) continue;
+            int dash = part.indexOf('-');
+            int from = Integer.parseInt((dash < 0 ? part : part.substring(0, dash)).trim());
+            int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1).trim());
+            for (int code = Math.max(100, from); code <= Math.min(599, to); code++) {
+                statuses[code] = true;
+            }
+        }
+        return statuses;
+    }
+
     public void stop() {
         scheduler.shutdown();
+        connectProbes.shutdown();
     }
 }
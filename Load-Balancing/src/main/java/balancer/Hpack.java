@@ -0,0 +1,312 @@
+package balancer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HPACK header compression (RFC 7541) for Http2Connection. The Decoder keeps
+ * the dynamic table a client's encoder builds up and reads every
+ * representation, Huffman-coded strings included. Encoding is stateless: a
+ * field is sent as a static-table index when the table has it, otherwise as
+ * a literal that is never added to the table, Huffman-coded when that is
+ * shorter. Responses leave the balancer slightly larger than with a dynamic
+ * table, but no state has to be kept in step with the client's decoder.
+ */
+final class Hpack {
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""}
+    };
+    // Per-entry overhead counted against the table size
+    private static final int ENTRY_OVERHEAD = 32;
+
+    // RFC 7541 Appendix B: the code of each byte value, right-aligned, and its length in bits
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    // Decoding trie: node n has children at 2n (bit 0) and 2n + 1 (bit 1); a negative
+    // entry is the leaf for symbol -entry - 1, zero a path no code takes (such as EOS)
+    private static final int[] HUFFMAN_TREE = buildTree();
+
+    private Hpack() {}
+
+    private static int[] buildTree() {
+        int[] tree = new int[2 * 256];
+        int nodes = 1;
+        for (int symbol = 0; symbol < 256; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int slot = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    tree[slot] = -symbol - 1;
+                } else {
+                    if (tree[slot] == 0) tree[slot] = nodes++;
+                    node = tree[slot];
+                }
+            }
+        }
+        return tree;
+    }
+
+    /** Decoding state for one connection; header blocks must be decoded in the order they arrived. */
+    static final class Decoder {
+        private final int maxTableSize;
+        // Oldest entry first; HPACK index 62 is the newest, i.e. the last element
+        private final List<String[]> table = new ArrayList<>();
+        private int tableSize;
+        private int tableLimit;
+
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.tableLimit = maxTableSize;
+        }
+
+        /**
+         * Decodes one complete header block, appending names and values
+         * alternately to fields. Throws on anything malformed, after which the
+         * table can no longer be trusted and the connection has to end.
+         */
+        void decode(byte[] block, int from, int to, List<String> fields) throws IOException {
+            int[] pos = {from};
+            while (pos[0] < to) {
+                int b = block[pos[0]] & 0xff;
+                if ((b & 0x80) != 0) {
+                    String[] entry = entry(readInt(block, pos, to, 7));
+                    fields.add(entry[0]);
+                    fields.add(entry[1]);
+                } else if ((b & 0xc0) == 0x40) {
+                    String[] entry = readLiteral(block, pos, to, 6);
+                    fields.add(entry[0]);
+                    fields.add(entry[1]);
+                    insert(entry);
+                } else if ((b & 0xe0) == 0x20) {
+                    int size = readInt(block, pos, to, 5);
+                    if (size > maxTableSize) throw new IOException("HPACK table size " + size + " above limit");
+                    tableLimit = size;
+                    evict(0);
+                } else {
+                    // Without indexing (0000) or never indexed (0001): same to a proxy that does not re-encode
+                    String[] entry = readLiteral(block, pos, to, 4);
+                    fields.add(entry[0]);
+                    fields.add(entry[1]);
+                }
+            }
+        }
+
+        private String[] readLiteral(byte[] block, int[] pos, int to, int prefix) throws IOException {
+            int index = readInt(block, pos, to, prefix);
+            String name = index == 0 ? readString(block, pos, to) : entry(index)[0];
+            return new String[] {name, readString(block, pos, to)};
+        }
+
+        private String[] entry(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1];
+            int dynamic = index - STATIC_TABLE.length - 1;
+            if (index < 1 || dynamic >= table.size()) throw new IOException("HPACK index " + index + " out of range");
+            return table.get(table.size() - 1 - dynamic);
+        }
+
+        private void insert(String[] entry) {
+            int size = entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+            evict(size);
+            // An entry larger than the whole table just empties it
+            if (size <= tableLimit) {
+                table.add(entry);
+                tableSize += size;
+            }
+        }
+
+        /** Drops the oldest entries until room more bytes fit. */
+        private void evict(int room) {
+            int oldest = 0;
+            while (tableSize + room > tableLimit && oldest < table.size()) {
+                String[] entry = table.get(oldest++);
+                tableSize -= entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+            }
+            table.subList(0, oldest).clear();
+        }
+    }
+
+    static int readInt(byte[] block, int[] pos, int to, int prefix) throws IOException {
+        int mask = (1 << prefix) - 1;
+        int value = block[pos[0]++] & mask;
+        if (value < mask) return value;
+        for (int shift = 0; shift <= 21; shift += 7) {
+            if (pos[0] >= to) throw new IOException("Truncated HPACK integer");
+            int b = block[pos[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("HPACK integer too large");
+    }
+
+    private static String readString(byte[] block, int[] pos, int to) throws IOException {
+        if (pos[0] >= to) throw new IOException("Truncated HPACK string");
+        boolean huffman = (block[pos[0]] & 0x80) != 0;
+        int length = readInt(block, pos, to, 7);
+        if (length > to - pos[0]) throw new IOException("Truncated HPACK string");
+        int start = pos[0];
+        pos[0] += length;
+        if (!huffman) {
+            return new String(block, start, length, StandardCharsets.ISO_8859_1);
+        }
+        StringBuilder decoded = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int pending = 0;
+        boolean padding = true;
+        for (int i = start; i < start + length; i++) {
+            int b = block[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int next = HUFFMAN_TREE[2 * node + one];
+                if (next == 0) throw new IOException("Invalid Huffman code");
+                if (next < 0) {
+                    decoded.append((char) (-next - 1));
+                    node = 0;
+                    pending = 0;
+                    padding = true;
+                } else {
+                    node = next;
+                    pending++;
+                    padding &= one == 1;
+                }
+            }
+        }
+        // What is left must be a prefix of EOS (all ones) shorter than a byte
+        if (pending > 7 || !padding) throw new IOException("Invalid Huffman padding");
+        return decoded.toString();
+    }
+
+    /** Appends one field; name must already be lower case. */
+    static void encode(String name, String value, ByteArrayOutputStream out) {
+        int nameIndex = 0;
+        for (int i = 0; i < STATIC_TABLE.length; i++) {
+            if (STATIC_TABLE[i][0].equals(name)) {
+                if (STATIC_TABLE[i][1].equals(value)) {
+                    writeInt(out, 0x80, 7, i + 1);
+                    return;
+                }
+                if (nameIndex == 0) nameIndex = i + 1;
+            }
+        }
+        // Literal without indexing, static name where there is one
+        writeInt(out, 0x00, 4, nameIndex);
+        if (nameIndex == 0) {
+            writeString(out, name);
+        }
+        writeString(out, value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String text) {
+        long bits = 0;
+        for (int i = 0; i < text.length(); i++) {
+            bits += HUFFMAN_LENGTHS[text.charAt(i) & 0xff];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= text.length()) {
+            writeInt(out, 0x00, 7, text.length());
+            for (int i = 0; i < text.length(); i++) {
+                out.write(text.charAt(i));
+            }
+            return;
+        }
+        writeInt(out, 0x80, 7, huffmanLength);
+        long buffer = 0;
+        int buffered = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int symbol = text.charAt(i) & 0xff;
+            buffer = (buffer << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            buffered += HUFFMAN_LENGTHS[symbol];
+            while (buffered >= 8) {
+                buffered -= 8;
+                out.write((int) (buffer >>> buffered));
+            }
+        }
+        if (buffered > 0) {
+            // Pad with the most significant bits of EOS, i.e. ones
+            out.write((int) ((buffer << (8 - buffered)) | (0xff >>> buffered)));
+        }
+    }
+}
@@ -0,0 +1,1236 @@
+package balancer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * HTTP/2 over cleartext (h2c) for the thread engine. ClientHandler hands a
+ * connection over when it opens with the HTTP/2 preface (prior knowledge) or
+ * asks to upgrade with "Upgrade: h2c". The handler's thread then only reads
+ * frames: each request stream is routed through ServerManager on its own and
+ * proxied on a virtual thread over the chosen node's pooled HTTP/1.1
+ * connections, so many concurrent requests share one client connection and a
+ * slow response holds up nothing but its own stream. Headers are HPACK-coded,
+ * both directions are flow controlled per stream and per connection, and at
+ * most LB_H2_MAX_STREAMS streams run at once; frames from all streams are
+ * written under one lock.
+ */
+public class Http2Connection {
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int CANCEL = 0x8;
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    // The largest frame we accept; not raised, so the RFC default
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int HEADER_TABLE_SIZE = 4096;
+
+    private static volatile boolean enabled = false;
+    private static volatile int maxStreams = 100;
+    private static volatile int windowSize = 1 << 20;
+    private static volatile int maxHeaderListSize = 65536;
+
+    private static final LongAdder connections = new LongAdder();
+    private static final LongAdder streamsOpened = new LongAdder();
+    private static final LongAdder streamsRefused = new LongAdder();
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ServerManager serverManager;
+    private final InetAddress clientAddress;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(HEADER_TABLE_SIZE);
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    // Settings fixed for this connection, so a reconfigure does not change them midway
+    private final int receiveWindow = windowSize;
+    private final int streamLimit = maxStreams;
+    private final int headerListLimit = maxHeaderListSize;
+
+    // Reader thread only
+    private final byte[] frameHeader = new byte[9];
+    private byte[] payload = new byte[MAX_FRAME_SIZE];
+    private int lastStreamId;
+    private boolean goingAway;
+
+    // Every frame goes out whole under writeLock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final byte[] writeHeader = new byte[9];
+
+    // Send-side flow control, guarded by flowLock
+    private final ReentrantLock flowLock = new ReentrantLock();
+    private final Condition windowOpened = flowLock.newCondition();
+    private long connectionSendWindow = DEFAULT_WINDOW;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private int peerMaxFrameSize = MAX_FRAME_SIZE;
+    private volatile boolean closed;
+
+    // Receive-side flow control for the connection, guarded by receiveLock
+    private final ReentrantLock receiveLock = new ReentrantLock();
+    private long connectionReceiveWindow;
+    private int connectionUnacked;
+
+    /** One request/response exchange on the connection. */
+    private final class Stream {
+        final int id;
+        final HttpHead request;
+        // Null when the request had no body
+        final RequestBody body;
+        // Guarded by flowLock
+        long sendWindow;
+        volatile boolean reset;
+        boolean requestSent;
+        boolean responseStarted;
+
+        Stream(int id, HttpHead request, boolean hasBody, long declaredLength) {
+            this.id = id;
+            this.request = request;
+            this.body = hasBody ? new RequestBody(this, declaredLength) : null;
+            this.sendWindow = peerInitialWindow;
+        }
+    }
+
+    public Http2Connection(Socket socket, InputStream in, ServerManager serverManager) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedInputStream(in, BufferPool.getBufferSize());
+        this.out = new BufferedOutputStream(socket.getOutputStream(), MAX_FRAME_SIZE + 9);
+        this.serverManager = serverManager;
+        this.clientAddress = socket.getInetAddress();
+        this.connectionReceiveWindow = receiveWindow;
+    }
+
+    /**
+     * Applies LB_HTTP2 (accept h2c on the thread engine), LB_H2_MAX_STREAMS
+     * (concurrent streams per connection), LB_H2_WINDOW (receive window per
+     * stream and per connection) and LB_H2_MAX_HEADER_LIST (largest request
+     * head, decoded).
+     */
+    public static void configure(LoadBalancerConfig config) {
+        enabled = config.getBoolean("LB_HTTP2", false);
+        maxStreams = Math.max(1, config.getInt("LB_H2_MAX_STREAMS", 100));
+        windowSize = Math.max(DEFAULT_WINDOW, Math.min(Integer.MAX_VALUE, config.getInt("LB_H2_WINDOW", 1 << 20)));
+        maxHeaderListSize = Math.max(1024, config.getInt("LB_H2_MAX_HEADER_LIST", 65536));
+        if (enabled) {
+            System.out.println("[HTTP2] h2c enabled, " + maxStreams + " streams per connection, window " + windowSize);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Whether the client opens with the HTTP/2 preface. Reads only as far as
+     * the first byte that differs, which is the first or second byte of any
+     * HTTP/1.x request, and pushes everything read back.
+     */
+    static boolean hasPreface(PushbackInputStream in) throws IOException {
+        byte[] read = new byte[PREFACE.length];
+        int n = 0;
+        try {
+            while (n < PREFACE.length) {
+                int b = in.read();
+                if (b < 0) return false;
+                read[n++] = (byte) b;
+                if (b != (PREFACE[n - 1] & 0xff)) return false;
+            }
+            return true;
+        } finally {
+            in.unread(read, 0, n);
+        }
+    }
+
+    /**
+     * Whether request asks for h2c (RFC 7540 section 3.2) in a way we take
+     * up: no body, and nothing pipelined behind it.
+     */
+    static boolean isUpgrade(HttpHead request, HttpInput clientIn) {
+        return request.hasToken("Upgrade", "h2c") && request.get("HTTP2-Settings") != null
+                && clientIn.getParser().getBodyLength() == 0 && !clientIn.hasBuffered();
+    }
+
+    /** Answers the upgrade request with 101, then serves the connection; the request becomes stream 1. */
+    public void upgrade(HttpHead request) throws IOException {
+        try {
+            applySettings(Base64.getUrlDecoder().decode(request.get("HTTP2-Settings").trim()), -1);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed HTTP2-Settings");
+        }
+        socket.getOutputStream().write(SWITCHING_PROTOCOLS);
+        request.removeHopByHop();
+        request.remove("HTTP2-Settings");
+        request.set("Connection", "keep-alive");
+        serve(request);
+    }
+
+    /**
+     * Reads frames until the client goes away; upgraded is stream 1 of an
+     * upgraded connection, null with prior knowledge.
+     */
+    public void serve(HttpHead upgraded) throws IOException {
+        connections.increment();
+        try {
+            writeSettings();
+            if (upgraded != null) {
+                lastStreamId = 1;
+                open(new Stream(1, upgraded, false, 0));
+            }
+            readPreface();
+            while (readFrame()) {
+                // Each frame is handled as it is read
+            }
+        } catch (ConnectionError e) {
+            goAway(e.code, e.getMessage());
+        } finally {
+            closed = true;
+            flowLock.lock();
+            try {
+                windowOpened.signalAll();
+            } finally {
+                flowLock.unlock();
+            }
+            for (Stream stream : streams.values()) {
+                stream.reset = true;
+                if (stream.body != null) stream.body.abort();
+            }
+        }
+    }
+
+    private void readPreface() throws IOException {
+        byte[] preface = new byte[PREFACE.length];
+        if (!readFully(preface, preface.length, true)) throw new EOFException("Connection closed before preface");
+        for (int i = 0; i < PREFACE.length; i++) {
+            if (preface[i] != PREFACE[i]) throw new ConnectionError(PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+
+    /** Reads and handles one frame; false at a clean end of the connection. */
+    private boolean readFrame() throws IOException {
+        if (!readFully(frameHeader, 9, true)) return false;
+        int length = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+        int type = frameHeader[3] & 0xff;
+        int flags = frameHeader[4] & 0xff;
+        int streamId = readInt31(frameHeader, 5);
+        if (length > MAX_FRAME_SIZE) throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        if (!readFully(payload, length, false)) throw new EOFException("Connection closed inside a frame");
+
+        switch (type) {
+            case DATA:
+                onData(streamId, flags, length);
+                break;
+            case HEADERS:
+                onHeaders(streamId, flags, length);
+                break;
+            case PRIORITY:
+                break;
+            case RST_STREAM:
+                if (streamId == 0 || length != 4) throw new ConnectionError(PROTOCOL_ERROR, "Malformed RST_STREAM");
+                Stream reset = streams.get(streamId);
+                if (reset != null) {
+                    reset.reset = true;
+                    if (reset.body != null) reset.body.abort();
+                    signalWindows();
+                }
+                break;
+            case SETTINGS:
+                if (streamId != 0 || length % 6 != 0) throw new ConnectionError(PROTOCOL_ERROR, "Malformed SETTINGS");
+                if ((flags & FLAG_ACK) == 0) {
+                    applySettings(payload, length);
+                    writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+                }
+                break;
+            case PING:
+                if (streamId != 0 || length != 8) throw new ConnectionError(PROTOCOL_ERROR, "Malformed PING");
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+                }
+                break;
+            case GOAWAY:
+                // Streams already open run to completion; the client closes when it has its answers
+                goingAway = true;
+                break;
+            case WINDOW_UPDATE:
+                onWindowUpdate(streamId, length);
+                break;
+            case PUSH_PROMISE:
+            case CONTINUATION:
+                throw new ConnectionError(PROTOCOL_ERROR, "Unexpected frame type " + type);
+            default:
+                // Unknown frame types are ignored
+        }
+        return true;
+    }
+
+    /**
+     * Fills buf with n bytes. An idle timeout at a frame boundary ends the
+     * connection if no stream is open; anywhere else the read just goes on.
+     * Returns false on EOF at a frame boundary.
+     */
+    private boolean readFully(byte[] buf, int n, boolean boundary) throws IOException {
+        int read = 0;
+        while (read < n) {
+            int r;
+            try {
+                r = in.read(buf, read, n - read);
+            } catch (SocketTimeoutException e) {
+                if (boundary && read == 0 && streams.isEmpty()) {
+                    goAway(NO_ERROR, null);
+                    return false;
+                }
+                continue;
+            }
+            if (r < 0) {
+                if (boundary && read == 0) return false;
+                throw new EOFException("Connection closed inside a frame");
+            }
+            read += r;
+        }
+        return true;
+    }
+
+    private void onHeaders(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) throw new ConnectionError(PROTOCOL_ERROR, "Bad stream id " + streamId);
+        int from = 0;
+        int to = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length < 1) throw new ConnectionError(PROTOCOL_ERROR, "Malformed HEADERS");
+            to -= payload[0] & 0xff;
+            from = 1;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) from += 5;
+        if (from > to) throw new ConnectionError(PROTOCOL_ERROR, "Malformed HEADERS");
+
+        // The block may go on in CONTINUATION frames, which nothing may interleave with
+        ByteArrayOutputStream block = null;
+        byte[] bytes = payload;
+        if ((flags & FLAG_END_HEADERS) == 0) {
+            block = new ByteArrayOutputStream(2 * (to - from));
+            block.write(payload, from, to - from);
+            while (true) {
+                if (!readFully(frameHeader, 9, false)) throw new EOFException("Connection closed inside headers");
+                int n = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+                if ((frameHeader[3] & 0xff) != CONTINUATION || readInt31(frameHeader, 5) != streamId) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Expected CONTINUATION");
+                }
+                if (n > MAX_FRAME_SIZE) throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + n + " bytes");
+                if (block.size() + n > 2 * headerListLimit) throw new ConnectionError(PROTOCOL_ERROR, "Header block too large");
+                readFully(payload, n, false);
+                block.write(payload, 0, n);
+                if ((frameHeader[4] & FLAG_END_HEADERS) != 0) break;
+            }
+            bytes = block.toByteArray();
+            from = 0;
+            to = bytes.length;
+        }
+
+        List<String> fields = new ArrayList<>();
+        try {
+            decoder.decode(bytes, from, to, fields);
+        } catch (IOException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+
+        Stream existing = streams.get(streamId);
+        if (existing != null) {
+            // Trailers: they end the request body and are not passed on
+            if (existing.body == null || !endStream) {
+                writeRst(streamId, PROTOCOL_ERROR);
+            } else if (!existing.body.count(0, true)) {
+                resetStream(existing, PROTOCOL_ERROR);
+            } else {
+                existing.body.finish();
+            }
+            return;
+        }
+        if (streamId <= lastStreamId) throw new ConnectionError(STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+        lastStreamId = streamId;
+        if (goingAway) return;
+        if (streams.size() >= streamLimit) {
+            streamsRefused.increment();
+            writeRst(streamId, REFUSED_STREAM);
+            return;
+        }
+
+        HttpHead request = toRequest(fields);
+        if (request == null) {
+            writeRst(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        int listSize = 0;
+        for (String field : fields) {
+            listSize += field.length() + 16;
+        }
+        if (listSize > headerListLimit) {
+            writeSimpleResponse(streamId, 431, null);
+            return;
+        }
+        String contentLength = request.get("Content-Length");
+        long declaredLength = contentLength == null ? -1 : Long.parseLong(contentLength);
+        if (endStream && declaredLength > 0) {
+            // Announces a body it does not send (RFC 9113 section 8.1.1)
+            writeRst(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        if (!endStream && contentLength == null) {
+            request.set("Transfer-Encoding", "chunked");
+        }
+        open(new Stream(streamId, request, !endStream, declaredLength));
+    }
+
+    /**
+     * The HTTP/1.1 request a header list stands for: pseudo-headers become
+     * the request line and Host, cookie crumbs are joined again. Null if the
+     * list is malformed, which includes anything HTTP/1.1 could not carry
+     * as-is (RFC 9113 section 8.2.1): a CR or LF in a value would otherwise
+     * end up as a header or a request of its own on the backend connection.
+     */
+    static HttpHead toRequest(List<String> fields) {
+        String method = null;
+        String path = null;
+        String authority = null;
+        StringBuilder cookie = null;
+        List<String> regular = new ArrayList<>();
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            if (!isValidValue(value)) return null;
+            if (name.startsWith(":")) {
+                // Pseudo-headers must come first
+                if (!regular.isEmpty()) return null;
+                switch (name) {
+                    case ":method": method = value; break;
+                    case ":path": path = value; break;
+                    case ":authority": authority = value; break;
+                    case ":scheme": break;
+                    default: return null;
+                }
+            } else if (!isValidName(name)) {
+                return null;
+            } else if (name.equals("content-length") && (!isDigits(value) || hasField(regular, name))) {
+                return null;
+            } else if (name.equals("cookie")) {
+                cookie = cookie == null ? new StringBuilder(value) : cookie.append("; ").append(value);
+            } else if (!name.equals("connection") && !name.equals("keep-alive") && !name.equals("proxy-connection")
+                    && !name.equals("transfer-encoding") && !name.equals("upgrade") && !name.equals("te")) {
+                regular.add(name);
+                regular.add(value);
+            }
+        }
+        if (method == null || path == null || method.equals("CONNECT") || !isValidName(method.toLowerCase(Locale.ROOT))
+                || !isValidTarget(method, path) || (authority != null && !isValidTarget(null, authority))) {
+            return null;
+        }
+
+        HttpHead request = new HttpHead(method + " " + path + " HTTP/1.1");
+        boolean hasHost = false;
+        for (int i = 0; i < regular.size(); i += 2) {
+            hasHost |= regular.get(i).equals("host");
+            request.add(regular.get(i), regular.get(i + 1));
+        }
+        if (authority != null && !hasHost) {
+            request.add("host", authority);
+        }
+        if (cookie != null) {
+            request.add("cookie", cookie.toString());
+        }
+        request.remove("Expect");
+        request.set("Connection", "keep-alive");
+        return request;
+    }
+
+    /** A field name HTTP/1.1 can carry: a non-empty token, in lower case as HTTP/2 requires. */
+    private static boolean isValidName(String name) {
+        if (name.isEmpty()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c > 0xff || !HttpParser.isTokenChar((byte) c) || (c >= 'A' && c <= 'Z')) return false;
+        }
+        return true;
+    }
+
+    /** No NUL, CR or LF anywhere, and no whitespace at either end. */
+    private static boolean isValidValue(String value) {
+        int last = value.length() - 1;
+        if (last >= 0 && (isBlank(value.charAt(0)) || isBlank(value.charAt(last)))) return false;
+        for (int i = 0; i <= last; i++) {
+            char c = value.charAt(i);
+            if (c == 0 || c == '\r' || c == '\n') return false;
+        }
+        return true;
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * A :path that can stand in a request line: "/..." or, for OPTIONS,
+     * "*"; with method null, an :authority. Visible ASCII only.
+     */
+    private static boolean isValidTarget(String method, String target) {
+        if (target.isEmpty()) return false;
+        if (method != null && !target.startsWith("/") && !(target.equals("*") && method.equals("OPTIONS"))) return false;
+        for (int i = 0; i < target.length(); i++) {
+            char c = target.charAt(i);
+            if (c <= ' ' || c >= 0x7f) return false;
+        }
+        return true;
+    }
+
+    /** A Content-Length value: decimal digits, short enough for a long. */
+    private static boolean isDigits(String value) {
+        if (value.isEmpty() || value.length() > 18) return false;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+    private static boolean hasField(List<String> fields, String name) {
+        for (int i = 0; i < fields.size(); i += 2) {
+            if (fields.get(i).equals(name)) return true;
+        }
+        return false;
+    }
+
+    private void open(Stream stream) {
+        streamsOpened.increment();
+        streams.put(stream.id, stream);
+        Thread.ofVirtual().name("h2-stream-" + stream.id).start(() -> handle(stream));
+    }
+
+    private void onData(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        int from = 0;
+        int to = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length < 1 || (payload[0] & 0xff) >= length) throw new ConnectionError(PROTOCOL_ERROR, "Malformed DATA");
+            to -= payload[0] & 0xff;
+            from = 1;
+        }
+        receiveLock.lock();
+        try {
+            connectionReceiveWindow -= length;
+            if (connectionReceiveWindow < 0) throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window exceeded");
+        } finally {
+            receiveLock.unlock();
+        }
+
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.body == null || stream.body.isFinished()) {
+            // Nobody reads it, so the connection window gets the bytes back at once
+            consumed(null, length);
+            if (streamId > lastStreamId) throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            writeRst(streamId, STREAM_CLOSED);
+            return;
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        if (!stream.body.count(to - from, endStream)) {
+            // More or less than the Content-Length the head announced; the excess must not reach the backend
+            consumed(null, length);
+            resetStream(stream, PROTOCOL_ERROR);
+            return;
+        }
+        if (!stream.body.offer(payload, from, to - from, length)) {
+            consumed(null, length);
+            resetStream(stream, FLOW_CONTROL_ERROR);
+            return;
+        }
+        // Padding is flow controlled too but never read
+        if (length > to - from) {
+            consumed(stream, length - (to - from));
+        }
+        if (endStream) {
+            stream.body.finish();
+        }
+    }
+
+    /**
+     * Resets a stream whose body is still arriving. The exchange sees the
+     * body aborted and closes its backend connection rather than reuse it.
+     */
+    private void resetStream(Stream stream, int code) throws IOException {
+        writeRst(stream.id, code);
+        stream.reset = true;
+        int unread = stream.body.abort();
+        if (unread > 0) {
+            consumed(null, unread);
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) throw new ConnectionError(FRAME_SIZE_ERROR, "Malformed WINDOW_UPDATE");
+        int increment = readInt31(payload, 0);
+        if (increment == 0) {
+            if (streamId == 0) throw new ConnectionError(PROTOCOL_ERROR, "Zero window increment");
+            writeRst(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        flowLock.lock();
+        try {
+            if (streamId == 0) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > Integer.MAX_VALUE) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream == null) return;
+                stream.sendWindow += increment;
+                if (stream.sendWindow > Integer.MAX_VALUE) {
+                    stream.reset = true;
+                    writeRst(streamId, FLOW_CONTROL_ERROR);
+                }
+            }
+            windowOpened.signalAll();
+        } finally {
+            flowLock.unlock();
+        }
+    }
+
+    /** Applies a SETTINGS payload; length -1 takes the whole array (HTTP2-Settings of an upgrade). */
+    private void applySettings(byte[] settings, int length) throws IOException {
+        if (length < 0) length = settings.length - settings.length % 6;
+        for (int i = 0; i + 6 <= length; i += 6) {
+            int id = ((settings[i] & 0xff) << 8) | (settings[i + 1] & 0xff);
+            long value = ((settings[i + 2] & 0xffL) << 24) | ((settings[i + 3] & 0xff) << 16)
+                    | ((settings[i + 4] & 0xff) << 8) | (settings[i + 5] & 0xff);
+            if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                if (value > Integer.MAX_VALUE) throw new ConnectionError(FLOW_CONTROL_ERROR, "Initial window too large");
+                flowLock.lock();
+                try {
+                    // Applies to open streams too, by the difference
+                    int delta = (int) value - peerInitialWindow;
+                    peerInitialWindow = (int) value;
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                    }
+                    windowOpened.signalAll();
+                } finally {
+                    flowLock.unlock();
+                }
+            } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                if (value < 16384 || value > 16777215) throw new ConnectionError(PROTOCOL_ERROR, "Invalid max frame size");
+                peerMaxFrameSize = (int) value;
+            }
+            // The peer's table size only matters to an encoder that indexes; ours does not
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] settings = new byte[24];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, streamLimit);
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, receiveWindow);
+        putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, headerListLimit);
+        putSetting(settings, 18, SETTINGS_HEADER_TABLE_SIZE, HEADER_TABLE_SIZE);
+        writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+        if (receiveWindow > DEFAULT_WINDOW) {
+            writeWindowUpdate(0, receiveWindow - DEFAULT_WINDOW);
+        }
+    }
+
+    private static void putSetting(byte[] settings, int at, int id, int value) {
+        settings[at] = (byte) (id >>> 8);
+        settings[at + 1] = (byte) id;
+        settings[at + 2] = (byte) (value >>> 24);
+        settings[at + 3] = (byte) (value >>> 16);
+        settings[at + 4] = (byte) (value >>> 8);
+        settings[at + 5] = (byte) value;
+    }
+
+    /**
+     * Credits n bytes the proxy has taken off a request body back to the
+     * client: to the connection window and, when stream is given and still
+     * receiving, to its window too. Updates are batched to half a window.
+     */
+    private void consumed(Stream stream, int n) throws IOException {
+        int connectionIncrement = 0;
+        receiveLock.lock();
+        try {
+            connectionUnacked += n;
+            if (connectionUnacked >= receiveWindow / 2) {
+                connectionIncrement = connectionUnacked;
+                connectionReceiveWindow += connectionUnacked;
+                connectionUnacked = 0;
+            }
+        } finally {
+            receiveLock.unlock();
+        }
+        if (connectionIncrement > 0) {
+            writeWindowUpdate(0, connectionIncrement);
+        }
+        if (stream != null && stream.body != null) {
+            int streamIncrement = stream.body.credit(n);
+            if (streamIncrement > 0 && !stream.reset) {
+                writeWindowUpdate(stream.id, streamIncrement);
+            }
+        }
+    }
+
+    /**
+     * Proxies one stream. Backend selection, admission, failover and the
+     * retry budget work as in ClientHandler; the response is not cached or
+     * shared with identical requests.
+     */
+    private void handle(Stream stream) {
+        HttpHead request = stream.request;
+        String requestLine = request.getMethod() + " " + request.getTarget() + " HTTP/2";
+        ByteBuffer scratch = BufferPool.acquireHeap();
+        try {
+            if (RateLimiter.isEnabled()) {
+                long retryAfter = RateLimiter.check(clientAddress, request);
+                if (retryAfter > 0) {
+                    AccessLog.log(clientAddress, requestLine, 429, 0, null, 0, 0);
+                    writeSimpleResponse(stream.id, 429, String.valueOf(retryAfter));
+                    return;
+                }
+            }
+            RetryBudget budget = serverManager.getRetryBudget();
+            budget.recordRequest();
+            ServerNode target = serverManager.getNextServer(clientAddress, request);
+            if (target != null) {
+                ServerNode preferred = target;
+                target = serverManager.tryAcquire(preferred, null);
+                if (target == null) {
+                    target = AdmissionControl.await(() -> serverManager.tryAcquire(preferred, null));
+                    if (target == null) {
+                        AccessLog.log(clientAddress, requestLine, 503, 0, null, 0, 0);
+                        writeSimpleResponse(stream.id, 503, "1");
+                        return;
+                    }
+                }
+            }
+            boolean replayable = stream.body == null && isIdempotent(request.getMethod());
+            for (int attempt = 0; ; attempt++) {
+                if (target == null) {
+                    System.err.println("No healthy backend servers available.");
+                    AccessLog.log(clientAddress, requestLine, 503, 0, null, 0, 0);
+                    writeSimpleResponse(stream.id, 503, null);
+                    return;
+                }
+                serverManager.recordRequest(target);
+                ServerNode node = target;
+                try {
+                    exchange(stream, node, requestLine, scratch);
+                    return;
+                } catch (ClientReadException e) {
+                    // The client reset the stream or the connection mid-upload; the backend is not to blame
+                    if (stream.responseStarted) throw e;
+                    AccessLog.log(clientAddress, requestLine, 499, 0, node, 0, 0);
+                    return;
+                } catch (IOException e) {
+                    if (stream.responseStarted || stream.reset || closed) throw e;
+                    System.err.println("Error handling client request: " + e.getMessage());
+                    // A full or closed pool is ours, not the backend's
+                    boolean poolUnavailable = e instanceof PoolUnavailableException;
+                    if (!poolUnavailable) {
+                        serverManager.recordFailure(node);
+                    }
+                    boolean retry = (!stream.requestSent || replayable) && attempt < RetryBudget.getMaxRetries();
+                    target = retry ? serverManager.getNextServer(node) : null;
+                    target = target != null && budget.tryRetry() ? serverManager.tryAcquire(target, node) : null;
+                    if (target == null) {
+                        // The client socket belongs to the reader thread, so a timeout here is the backend's
+                        boolean timedOut = e instanceof SocketTimeoutException;
+                        int status = poolUnavailable ? 503 : timedOut ? 504 : 502;
+                        AccessLog.log(clientAddress, requestLine, status, 0, node, 0, 0);
+                        writeSimpleResponse(stream.id, status, null);
+                        return;
+                    }
+                } finally {
+                    node.decrementActive();
+                }
+            }
+        } catch (IOException e) {
+            if (!closed && !stream.reset) {
+                System.err.println("Error handling client request: " + e.getMessage());
+                try {
+                    writeRst(stream.id, INTERNAL_ERROR);
+                } catch (IOException ignored) {}
+            }
+        } finally {
+            BufferPool.release(scratch);
+            streams.remove(stream.id);
+            if (stream.body != null) {
+                int unread = stream.body.abort();
+                if (unread > 0 && !closed) {
+                    try {
+                        consumed(null, unread);
+                        // Tell a client still sending that the rest is not wanted
+                        writeRst(stream.id, CANCEL);
+                    } catch (IOException ignored) {}
+                }
+            }
+        }
+    }
+
+    /** One attempt on node over a pooled connection; throws before the response starts if it can be retried. */
+    private void exchange(Stream stream, ServerNode node, String requestLine, ByteBuffer scratch) throws IOException {
+        HttpHead request = stream.request;
+        boolean isHead = request.getMethod().equals("HEAD");
+        BackendConnectionPool pool = node.getConnectionPool();
+        BackendConnection conn = pool.acquire();
+        boolean reusable = false;
+        try {
+            OutputStream backendOut = conn.getOutputStream();
+            stream.requestSent = true;
+            scratch.clear();
+            long requestBytes = request.encode(scratch, backendOut);
+            HttpHead.flush(scratch, backendOut);
+            if (stream.body != null) {
+                requestBytes += stream.body.relayTo(backendOut, request.get("Transfer-Encoding") != null);
+            }
+            long sentAt = System.nanoTime();
+
+            HttpInput backendIn = conn.getInput();
+            HttpHead response;
+            do {
+                response = backendIn.readHead(isHead);
+                if (response == null) throw new IOException("Empty from backend server");
+            } while (backendIn.getParser().isInterim());
+            long ttfb = System.nanoTime() - sentAt;
+            HttpParser framing = backendIn.getParser();
+            int status = framing.getStatus();
+            boolean noBody = isHead || framing.getBodyLength() == 0;
+
+            stream.responseStarted = true;
+            ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+            Hpack.encode(":status", String.valueOf(status), block);
+            response.removeHopByHop();
+            response.remove("Transfer-Encoding");
+            response.set("X-Load-Balancer", "MyLoadBalancer JavaLB");
+            encodeFields(response, block);
+            writeHeaders(stream.id, block, noBody);
+
+            long responseBytes = 0;
+            if (!noBody) {
+                scratch.clear();
+                boolean chunked = framing.getBodyLength() == HttpParser.CHUNKED;
+                responseBytes = backendIn.relayBody(new DataOutput(stream, chunked), scratch);
+                writeData(stream, EMPTY, 0, 0, true);
+            }
+            long total = System.nanoTime() - sentAt;
+            node.recordLatency(ttfb, total);
+            NodeMetrics metrics = node.getMetrics();
+            metrics.recordStatus(status);
+            serverManager.recordResponse(node, status);
+            metrics.recordBytes(requestBytes, responseBytes);
+            AccessLog.log(clientAddress, requestLine, status, responseBytes, node, ttfb, total);
+            reusable = framing.isKeepAlive() && framing.getBodyLength() != HttpParser.UNTIL_CLOSE;
+        } finally {
+            pool.release(conn, reusable);
+        }
+    }
+
+    /** Lower-cases header names into HPACK; HTTP/2 forbids upper case. */
+    private static void encodeFields(HttpHead head, ByteArrayOutputStream block) {
+        for (int i = 0; i < head.size(); i++) {
+            Hpack.encode(head.getName(i).toLowerCase(Locale.ROOT), head.getValue(i), block);
+        }
+    }
+
+    private static boolean isIdempotent(String method) {
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "OPTIONS":
+            case "TRACE":
+            case "PUT":
+            case "DELETE":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** A response with no body, e.g. an error; retryAfter is sent as Retry-After when given. */
+    private void writeSimpleResponse(int streamId, int status, String retryAfter) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(64);
+        Hpack.encode(":status", String.valueOf(status), block);
+        if (retryAfter != null) {
+            Hpack.encode("retry-after", retryAfter, block);
+        }
+        Hpack.encode("content-length", "0", block);
+        writeHeaders(streamId, block, true);
+    }
+
+    /** Writes a header block as HEADERS plus CONTINUATION frames, back to back. */
+    private void writeHeaders(int streamId, ByteArrayOutputStream block, boolean endStream) throws IOException {
+        byte[] bytes = block.toByteArray();
+        writeLock.lock();
+        try {
+            int frameSize = peerMaxFrameSize;
+            int offset = 0;
+            int type = HEADERS;
+            do {
+                int n = Math.min(frameSize, bytes.length - offset);
+                boolean last = offset + n == bytes.length;
+                int flags = (last ? FLAG_END_HEADERS : 0) | (type == HEADERS && endStream ? FLAG_END_STREAM : 0);
+                writeFrame(type, flags, streamId, bytes, offset, n);
+                offset += n;
+                type = CONTINUATION;
+            } while (offset < bytes.length);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends body bytes on stream, each frame no larger than the peer allows
+     * and only as much as both send windows have room for, waiting for
+     * WINDOW_UPDATE otherwise.
+     */
+    private void writeData(Stream stream, byte[] bytes, int offset, int length, boolean endStream) throws IOException {
+        do {
+            int n = length == 0 ? 0 : reserveWindow(stream, length);
+            writeFrame(DATA, endStream && n == length ? FLAG_END_STREAM : 0, stream.id, bytes, offset, n);
+            offset += n;
+            length -= n;
+        } while (length > 0);
+    }
+
+    private int reserveWindow(Stream stream, int wanted) throws IOException {
+        flowLock.lock();
+        try {
+            while (!closed && !stream.reset && (connectionSendWindow <= 0 || stream.sendWindow <= 0)) {
+                windowOpened.await();
+            }
+            if (closed || stream.reset) throw new IOException("Stream " + stream.id + " reset by client");
+            int n = (int) Math.min(Math.min(wanted, peerMaxFrameSize), Math.min(connectionSendWindow, stream.sendWindow));
+            connectionSendWindow -= n;
+            stream.sendWindow -= n;
+            return n;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for flow-control window");
+        } finally {
+            flowLock.unlock();
+        }
+    }
+
+    private void signalWindows() {
+        flowLock.lock();
+        try {
+            windowOpened.signalAll();
+        } finally {
+            flowLock.unlock();
+        }
+    }
+
+    private void writeRst(int streamId, int code) throws IOException {
+        byte[] body = new byte[4];
+        putInt(body, 0, code);
+        writeFrame(RST_STREAM, 0, streamId, body, 0, 4);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] body = new byte[4];
+        putInt(body, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, body, 0, 4);
+    }
+
+    private void goAway(int code, String reason) {
+        if (reason != null) {
+            System.err.println("[HTTP2] Closing connection from " + clientAddress.getHostAddress() + ": " + reason);
+        }
+        byte[] body = new byte[8];
+        putInt(body, 0, lastStreamId);
+        putInt(body, 4, code);
+        try {
+            writeFrame(GOAWAY, 0, 0, body, 0, 8);
+        } catch (IOException ignored) {}
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] bytes, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            writeHeader[0] = (byte) (length >>> 16);
+            writeHeader[1] = (byte) (length >>> 8);
+            writeHeader[2] = (byte) length;
+            writeHeader[3] = (byte) type;
+            writeHeader[4] = (byte) flags;
+            putInt(writeHeader, 5, streamId);
+            out.write(writeHeader, 0, 9);
+            out.write(bytes, offset, length);
+            // Held back while this thread still has frames to add, e.g. CONTINUATION
+            if (writeLock.getHoldCount() == 1) {
+                out.flush();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static void putInt(byte[] bytes, int at, int value) {
+        bytes[at] = (byte) (value >>> 24);
+        bytes[at + 1] = (byte) (value >>> 16);
+        bytes[at + 2] = (byte) (value >>> 8);
+        bytes[at + 3] = (byte) value;
+    }
+
+    private static int readInt31(byte[] bytes, int at) {
+        return ((bytes[at] & 0x7f) << 24) | ((bytes[at + 1] & 0xff) << 16) | ((bytes[at + 2] & 0xff) << 8)
+                | (bytes[at + 3] & 0xff);
+    }
+
+    public static long getConnections() {
+        return connections.sum();
+    }
+
+    public static long getStreams() {
+        return streamsOpened.sum();
+    }
+
+    public static long getRefused() {
+        return streamsRefused.sum();
+    }
+
+    /**
+     * Turns a response body relayed by HttpInput into DATA frames on one
+     * stream. HTTP/2 frames the body itself, so a chunked body is unwrapped
+     * here: chunk sizes, extensions and trailers are dropped.
+     */
+    private final class DataOutput extends OutputStream {
+        private final Stream stream;
+        // Null when the body is not chunked and goes out as it comes
+        private final ChunkedDecoder unchunker;
+
+        DataOutput(Stream stream, boolean chunked) {
+            this.stream = stream;
+            this.unchunker = chunked ? new ChunkedDecoder((b, off, n) -> writeData(stream, b, off, n, false)) : null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (unchunker != null) {
+                unchunker.write(bytes, offset, offset + length);
+            } else if (length > 0) {
+                writeData(stream, bytes, offset, length, false);
+            }
+        }
+    }
+
+    /**
+     * A request body on its way from the reader thread, which offers DATA
+     * payloads, to the stream's thread, which relays them to the backend and
+     * hands the window back as it goes.
+     */
+    private final class RequestBody {
+        private final Stream stream;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition arrived = lock.newCondition();
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        // Guarded by lock
+        private long window = receiveWindow;
+        private int unacked;
+        private int buffered;
+        private boolean finished;
+        private boolean aborted;
+        // Reader thread only; declaredLength is -1 without a Content-Length
+        private final long declaredLength;
+        private long received;
+
+        RequestBody(Stream stream, long declaredLength) {
+            this.stream = stream;
+            this.declaredLength = declaredLength;
+        }
+
+        /**
+         * Counts DATA bytes against the declared Content-Length, last when the
+         * stream ends with them. False once they disagree (RFC 9113 section 8.1.1).
+         */
+        boolean count(int length, boolean last) {
+            received += length;
+            if (declaredLength < 0) return true;
+            return last ? received == declaredLength : received <= declaredLength;
+        }
+
+        /** Queues a copy of the data; false if it overruns the stream window. */
+        boolean offer(byte[] bytes, int offset, int length, int flowLength) {
+            lock.lock();
+            try {
+                window -= flowLength;
+                if (window < 0) return false;
+                if (aborted) return true;
+                if (length > 0) {
+                    byte[] chunk = new byte[length];
+                    System.arraycopy(bytes, offset, chunk, 0, length);
+                    chunks.add(chunk);
+                    buffered += length;
+                }
+                arrived.signalAll();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void finish() {
+            lock.lock();
+            try {
+                finished = true;
+                arrived.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isFinished() {
+            lock.lock();
+            try {
+                return finished || aborted;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Stops the body; returns the bytes received but never read. */
+        int abort() {
+            lock.lock();
+            try {
+                aborted = true;
+                int unread = buffered;
+                buffered = 0;
+                chunks.clear();
+                arrived.signalAll();
+                return unread;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Returns the stream window increment to send now, if any. */
+        int credit(int n) {
+            lock.lock();
+            try {
+                if (finished || aborted) return 0;
+                unacked += n;
+                if (unacked < receiveWindow / 2) return 0;
+                int increment = unacked;
+                window += unacked;
+                unacked = 0;
+                return increment;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Writes the body to the backend as it arrives, in HTTP/1.1 chunked
+         * framing when the client sent no Content-Length. Returns the bytes
+         * written.
+         */
+        long relayTo(OutputStream backendOut, boolean chunked) throws IOException {
+            long written = 0;
+            while (true) {
+                byte[] chunk;
+                lock.lock();
+                try {
+                    while (chunks.isEmpty() && !finished && !aborted) {
+                        arrived.await();
+                    }
+                    if (aborted) throw new ClientReadException("Stream " + stream.id + " reset by client", null);
+                    chunk = chunks.poll();
+                    if (chunk == null) break;
+                    buffered -= chunk.length;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted reading request body");
+                } finally {
+                    lock.unlock();
+                }
+                if (chunked) {
+                    byte[] size = (Integer.toHexString(chunk.length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                    backendOut.write(size);
+                    backendOut.write(chunk);
+                    backendOut.write('\r');
+                    backendOut.write('\n');
+                    written += size.length + chunk.length + 2;
+                } else {
+                    backendOut.write(chunk);
+                    written += chunk.length;
+                }
+                consumed(stream, chunk.length);
+            }
+            if (chunked) {
+                backendOut.write(LAST_CHUNK);
+                written += LAST_CHUNK.length;
+            }
+            return written;
+        }
+    }
+
+    /** A connection error (RFC 9113 section 5.4.1): answered with GOAWAY, then the connection closes. */
+    private static final class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        ConnectionError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package balancer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Start line plus headers of an HTTP/1.x request or response. Header order and
+ * repeated names (e.g. Set-Cookie) are preserved, lookups ignore case.
+ */
+public class HttpHead {
+    private String startLine;
+    private final List<String> names = new ArrayList<>();
+    private final List<String> values = new ArrayList<>();
+
+    public HttpHead(String startLine) {
+        this.startLine = startLine;
+    }
+
+    public String getStartLine() {
+        return startLine;
+    }
+
+    public void setStartLine(String startLine) {
+        this.startLine = startLine;
+    }
+
+    /** Request method, e.g. "GET". */
+    public String getMethod() {
+        int space = startLine.indexOf(' ');
+        return space == -1 ? startLine : startLine.substring(0, space);
+    }
+
+    /** Request target, e.g. "/index.html?x=1". */
+    public String getTarget() {
+        int from = startLine.indexOf(' ') + 1;
+        int to = startLine.indexOf(' ', from);
+        return startLine.substring(from, to == -1 ? startLine.length() : to);
+    }
+
+    /** Protocol version of either a request ("GET / HTTP/1.1") or response ("HTTP/1.1 200 OK"). */
+    public String getVersion() {
+        if (startLine.startsWith("HTTP/")) {
+            int space = startLine.indexOf(' ');
+            return space == -1 ? startLine : startLine.substring(0, space);
+        }
+        return startLine.substring(startLine.lastIndexOf(' ') + 1);
+    }
+
+    /** Response status code, or -1 if the start line is not a valid status line. */
+    public int getStatusCode() {
+        int space = startLine.indexOf(' ');
+        if (space == -1 || startLine.length() < space + 4) return -1;
+        try {
+            return Integer.parseInt(startLine.substring(space + 1, space + 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String get(String name) {
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                return values.get(i);
+            }
+        }
+        return null;
+    }
+
+    /** True if the comma-separated header contains the given token, e.g. Connection: close. */
+    public boolean hasToken(String name, String token) {
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                for (String part : values.get(i).split(",")) {
+                    if (part.trim().equalsIgnoreCase(token)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    public void add(String name, String value) {
+        names.add(name);
+        values.add(value);
+    }
+
+    public void set(String name, String value) {
+        remove(name);
+        add(name, value);
+    }
+
+    public void remove(String name) {
+        for (int i = names.size() - 1; i >= 0; i--) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                names.remove(i);
+                values.remove(i);
+            }
+        }
+    }
+
+    /** Number of header fields; with getName and getValue, walks them in order. */
+    public int size() {
+        return names.size();
+    }
+
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    public String getValue(int index) {
+        return values.get(index);
+    }
+
+    /** Independent copy, e.g. of a cached head that each hit then edits. */
+    public HttpHead copy() {
+        HttpHead copy = new HttpHead(startLine);
+        copy.names.addAll(names);
+        copy.values.addAll(values);
+        return copy;
+    }
+
+    /** Whether the sender of this head expects the connection to stay open afterwards. */
+    public boolean isKeepAlive() {
+        if (hasToken("Connection", "close")) return false;
+        if ("HTTP/1.0".equals(getVersion())) return hasToken("Connection", "keep-alive");
+        return true;
+    }
+
+    /**
+     * Strips hop-by-hop headers that must not be forwarded to the next hop,
+     * and a Content-Length that Transfer-Encoding overrides: a lenient next
+     * hop that frames by it instead would read the rest of a chunked body as
+     * a request of its own (RFC 9112 section 6.1).
+     */
+    public void removeHopByHop() {
+        if (get("Transfer-Encoding") != null) {
+            remove("Content-Length");
+        }
+        String connection = get("Connection");
+        if (connection != null) {
+            for (String token : connection.split(",")) {
+                remove(token.trim());
+            }
+        }
+        remove("Connection");
+        remove("Keep-Alive");
+        remove("Proxy-Connection");
+        remove("TE");
+        remove("Upgrade");
+    }
+
+    /**
+     * Serializes the head into scratch as ISO-8859-1 bytes, spilling to out
+     * whenever scratch fills up. Whatever fits stays in scratch, so the caller
+     * can append body bytes and send head and body in one write. Returns the
+     * encoded length.
+     */
+    public int encode(ByteBuffer scratch, OutputStream out) throws IOException {
+        int length = startLine.length() + 4;
+        put(startLine, scratch, out);
+        putCrlf(scratch, out);
+        for (int i = 0; i < names.size(); i++) {
+            put(names.get(i), scratch, out);
+            put(": ", scratch, out);
+            put(values.get(i), scratch, out);
+            putCrlf(scratch, out);
+            length += names.get(i).length() + values.get(i).length() + 4;
+        }
+        putCrlf(scratch, out);
+        return length;
+    }
+
+    /** Encodes and writes the head on its own. */
+    public void writeTo(OutputStream out, ByteBuffer scratch) throws IOException {
+        encode(scratch, out);
+        flush(scratch, out);
+    }
+
+    /** Writes out and clears whatever has accumulated in scratch. */
+    static void flush(ByteBuffer scratch, OutputStream out) throws IOException {
+        if (scratch.position() > 0) {
+            out.write(scratch.array(), 0, scratch.position());
+            scratch.clear();
+        }
+    }
+
+    private static void put(String text, ByteBuffer scratch, OutputStream out) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (!scratch.hasRemaining()) {
+                flush(scratch, out);
+            }
+            scratch.put((byte) text.charAt(i));
+        }
+    }
+
+    private static void putCrlf(ByteBuffer scratch, OutputStream out) throws IOException {
+        if (scratch.remaining() < 2) {
+            flush(scratch, out);
+        }
+        scratch.put((byte) '\r').put((byte) '\n');
+    }
+}
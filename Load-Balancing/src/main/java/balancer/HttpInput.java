@@ -0,0 +1,140 @@
+package balancer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads HTTP/1.x messages from a socket stream through one pooled buffer.
+ * An HttpParser walks the buffered bytes to find where each head and body
+ * ends, and bodies are relayed from that same buffer to the next hop, so no
+ * bytes are decoded to characters and nothing is allocated per body chunk.
+ * Bytes past the end of a message stay buffered for the next (pipelined) one.
+ */
+public class HttpInput {
+    private final InputStream in;
+    private final HttpParser parser;
+    private final boolean requests;
+    // Read mode: unread bytes are between position and limit
+    private ByteBuffer buffer;
+
+    /** requests selects the parser flavour: true for a client stream, false for a backend stream. */
+    public HttpInput(InputStream in, boolean requests) {
+        this.in = in;
+        this.requests = requests;
+        this.buffer = BufferPool.acquireHeap().flip();
+        this.parser = new HttpParser(requests, buffer.capacity());
+    }
+
+    /** Framing facts (body length, keep-alive, method, status) of the last head read. */
+    public HttpParser getParser() {
+        return parser;
+    }
+
+    /**
+     * Reads a head up to and including the blank line. Returns null if the
+     * stream ends before the first byte of a new message.
+     */
+    public HttpHead readHead() throws IOException {
+        return readHead(false);
+    }
+
+    /** Reads a response head; noBody marks it as the answer to a HEAD request. */
+    public HttpHead readHead(boolean noBody) throws IOException {
+        parser.reset();
+        parser.setNoBody(noBody);
+        int start = buffer.position();
+        int scanned = start;
+        while (true) {
+            scanned += parser.parseHead(buffer, scanned, buffer.limit());
+            if (parser.isHeadComplete()) {
+                HttpHead head = parser.toHead(buffer, start);
+                buffer.position(scanned);
+                return head;
+            }
+            // The head stays in the buffer until it is complete; fill moves it to the front
+            if (!fill()) {
+                if (parser.hasStarted()) throw new IOException("Connection closed inside message head");
+                return null;
+            }
+            scanned -= start;
+            start = 0;
+        }
+    }
+
+    /** Whether bytes beyond the last message have already been received. */
+    public boolean hasBuffered() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Relays the body of the last head read to out. Whatever part of it is
+     * already buffered is appended to pending (which may hold the encoded head)
+     * when it fits, so head and body leave in one write. Returns the number of
+     * body bytes relayed.
+     */
+    public long relayBody(OutputStream out, ByteBuffer pending) throws IOException {
+        int n = parser.consumeBody(buffer, buffer.position(), buffer.limit());
+        long relayed = n;
+        if (n <= pending.remaining()) {
+            pending.put(pending.position(), buffer, buffer.position(), n);
+            pending.position(pending.position() + n);
+            HttpHead.flush(pending, out);
+        } else {
+            HttpHead.flush(pending, out);
+            out.write(buffer.array(), buffer.position(), n);
+        }
+        buffer.position(buffer.position() + n);
+
+        while (!parser.isMessageComplete()) {
+            if (!fillBody()) {
+                if (parser.getBodyLength() == HttpParser.UNTIL_CLOSE) return relayed;
+                if (requests) throw new ClientReadException("Client closed before end of body", null);
+                throw new IOException("Connection closed before end of body");
+            }
+            n = parser.consumeBody(buffer, buffer.position(), buffer.limit());
+            out.write(buffer.array(), buffer.position(), n);
+            buffer.position(buffer.position() + n);
+            relayed += n;
+        }
+        return relayed;
+    }
+
+    /** fill() for a body; on a client stream a failed read is a ClientReadException. */
+    private boolean fillBody() throws IOException {
+        if (!requests) return fill();
+        try {
+            return fill();
+        } catch (IOException e) {
+            throw new ClientReadException("Reading request body from client: " + e.getMessage(), e);
+        }
+    }
+
+    /** Blocks for at least one more byte; false on EOF. */
+    private boolean fill() throws IOException {
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            buffer.flip();
+            throw new IOException("Message head larger than " + buffer.capacity() + " bytes");
+        }
+        int n;
+        try {
+            n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+        } finally {
+            buffer.flip();
+        }
+        if (n > 0) {
+            buffer.limit(buffer.limit() + n);
+        }
+        return n > 0;
+    }
+
+    /** Returns the buffer to the pool; the input must not be used afterwards. */
+    public void release() {
+        if (buffer != null) {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+}
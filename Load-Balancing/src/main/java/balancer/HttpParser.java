@@ -0,0 +1,646 @@
+package balancer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental HTTP/1.x parser: a byte-at-a-time state machine that can be fed
+ * a message in arbitrary slices and never needs earlier bytes again. While the
+ * head streams past it records the framing facts a proxy needs - method,
+ * status, version, Content-Length, Transfer-Encoding and Connection tokens -
+ * without creating any objects, then walks the body (fixed length, chunked
+ * with extensions and trailers, or read-to-close) to find exactly where the
+ * message ends so the next pipelined message can follow.
+ *
+ * Header offsets are kept relative to the message start; callers that still
+ * hold the head bytes can turn them into an HttpHead with toHead.
+ */
+public final class HttpParser {
+    /** Body length markers returned by getBodyLength. */
+    public static final long CHUNKED = -1;
+    public static final long UNTIL_CLOSE = -2;
+
+    private static final int MAX_HEADERS = 100;
+
+    // Head states
+    private static final int LEADING_CRLF = 0;
+    private static final int METHOD = 1;
+    private static final int TARGET = 2;
+    private static final int REQUEST_VERSION = 3;
+    private static final int RESPONSE_VERSION = 4;
+    private static final int STATUS = 5;
+    private static final int REASON = 6;
+    private static final int LINE_START = 7;
+    private static final int NAME = 8;
+    private static final int VALUE = 9;
+    private static final int BODY = 10;
+
+    // Body states
+    private static final int FIXED = 0;
+    private static final int UNTIL_EOF = 1;
+    private static final int CHUNK_SIZE = 2;
+    private static final int CHUNK_EXT = 3;
+    private static final int CHUNK_DATA = 4;
+    private static final int CHUNK_DATA_END = 5;
+    private static final int TRAILERS = 6;
+    private static final int COMPLETE = 7;
+
+    // Headers that affect framing, matched while the name streams past
+    private static final byte[][] FRAMING_HEADERS = {
+            bytes("content-length"), bytes("transfer-encoding"), bytes("connection") };
+    private static final int CONTENT_LENGTH = 0;
+    private static final int TRANSFER_ENCODING = 1;
+    private static final int CONNECTION = 2;
+    private static final int OTHER = -1;
+
+    private static final byte[][] TE_TOKENS = { bytes("chunked") };
+    private static final byte[][] CONNECTION_TOKENS = { bytes("close"), bytes("keep-alive") };
+    private static final byte[] HEAD = bytes("HEAD");
+    private static final byte[] HTTP_1 = bytes("HTTP/1.");
+
+    private final boolean request;
+    private final int maxHeadSize;
+
+    private int state;
+    private int bodyState;
+    private int consumed;
+    private int crAt;
+    private boolean started;
+    private boolean noBody;
+
+    // Start line
+    private int startLineStart;
+    private int startLineEnd;
+    private int fieldLength;
+    private boolean methodIsHead;
+    private int versionMinor;
+    private int status;
+    private int statusDigits;
+
+    // Header offsets, relative to the message start
+    private int headerCount;
+    private final int[] nameStarts = new int[MAX_HEADERS];
+    private final int[] nameEnds = new int[MAX_HEADERS];
+    private final int[] valueStarts = new int[MAX_HEADERS];
+    private final int[] valueEnds = new int[MAX_HEADERS];
+    private int nameStart;
+    private int nameEnd;
+    private int valueFirst;
+    private int valueLast;
+    private int candidates;
+    private int currentHeader;
+
+    // Value tokens of Transfer-Encoding / Connection
+    private int tokenLength;
+    private boolean tokenClosed;
+    private int tokenCandidates;
+    private boolean lastTokenChunked;
+
+    // Framing facts
+    private long contentLength;
+    private long valueNumber;
+    private int valueDigits;
+    private boolean digitsClosed;
+    private boolean sawTransferEncoding;
+    private boolean chunked;
+    private boolean connectionClose;
+    private boolean connectionKeepAlive;
+    private int headLength;
+    private int blankLineLength;
+    private long bodyLength;
+
+    // Body
+    private long remaining;
+    private int chunkDigits;
+    private int trailerLineLength;
+
+    public HttpParser(boolean request, int maxHeadSize) {
+        this.request = request;
+        this.maxHeadSize = maxHeadSize;
+        reset();
+    }
+
+    /** Prepares for the next message on the same connection. */
+    public void reset() {
+        state = LEADING_CRLF;
+        bodyState = COMPLETE;
+        consumed = 0;
+        crAt = -2;
+        started = false;
+        noBody = false;
+        startLineStart = 0;
+        startLineEnd = 0;
+        fieldLength = 0;
+        methodIsHead = true;
+        versionMinor = -1;
+        status = 0;
+        statusDigits = 0;
+        headerCount = 0;
+        contentLength = -1;
+        sawTransferEncoding = false;
+        chunked = false;
+        lastTokenChunked = false;
+        connectionClose = false;
+        connectionKeepAlive = false;
+        headLength = 0;
+        blankLineLength = 0;
+        bodyLength = 0;
+        remaining = 0;
+    }
+
+    /** Marks the response being parsed as the answer to a HEAD request, so it has no body. */
+    public void setNoBody(boolean noBody) {
+        this.noBody = noBody;
+    }
+
+    /**
+     * Feeds head bytes buf[from, to) and returns how many were consumed. Stops
+     * right after the blank line that ends the head; isHeadComplete says
+     * whether that happened within this slice.
+     */
+    public int parseHead(ByteBuffer buf, int from, int to) throws IOException {
+        int i = from;
+        while (i < to && state != BODY) {
+            if (consumed >= maxHeadSize) throw new IOException("Message head larger than " + maxHeadSize + " bytes");
+            headByte(buf.get(i));
+            i++;
+            consumed++;
+        }
+        return i - from;
+    }
+
+    private void headByte(byte c) throws IOException {
+        int pos = consumed;
+        switch (state) {
+            case LEADING_CRLF:
+                // Tolerate stray CRLFs between pipelined messages
+                if (c == '\r' || c == '\n') return;
+                started = true;
+                startLineStart = pos;
+                fieldLength = 0;
+                state = request ? METHOD : RESPONSE_VERSION;
+                headByte(c);
+                return;
+
+            case METHOD:
+                if (c == ' ') {
+                    methodIsHead &= fieldLength == HEAD.length;
+                    fieldLength = 0;
+                    state = TARGET;
+                } else if (isTokenChar(c)) {
+                    methodIsHead &= fieldLength < HEAD.length && HEAD[fieldLength] == c;
+                    fieldLength++;
+                } else {
+                    throw new IOException("Malformed request line");
+                }
+                return;
+
+            case TARGET:
+                if (c == ' ') {
+                    if (fieldLength == 0) throw new IOException("Malformed request line");
+                    fieldLength = 0;
+                    state = REQUEST_VERSION;
+                } else if (c == '\r' || c == '\n') {
+                    throw new IOException("Malformed request line");
+                } else {
+                    fieldLength++;
+                }
+                return;
+
+            case REQUEST_VERSION:
+                if (c == '\r') {
+                    crAt = pos;
+                } else if (c == '\n') {
+                    checkVersion();
+                    endStartLine(pos);
+                } else {
+                    versionByte(c);
+                }
+                return;
+
+            case RESPONSE_VERSION:
+                if (c == ' ') {
+                    checkVersion();
+                    state = STATUS;
+                } else if (c == '\r' || c == '\n') {
+                    throw new IOException("Malformed status line");
+                } else {
+                    versionByte(c);
+                }
+                return;
+
+            case STATUS:
+                if (c >= '0' && c <= '9' && statusDigits < 3) {
+                    status = status * 10 + (c - '0');
+                    statusDigits++;
+                } else if (statusDigits == 3 && c == ' ') {
+                    state = REASON;
+                } else if (statusDigits == 3 && c == '\r') {
+                    crAt = pos;
+                    state = REASON;
+                } else if (statusDigits == 3 && c == '\n') {
+                    endStartLine(pos);
+                } else {
+                    throw new IOException("Malformed status line");
+                }
+                return;
+
+            case REASON:
+                if (c == '\r') {
+                    crAt = pos;
+                } else if (c == '\n') {
+                    endStartLine(pos);
+                }
+                return;
+
+            case LINE_START:
+                if (c == '\r') {
+                    crAt = pos;
+                } else if (c == '\n') {
+                    blankLineLength = crAt == pos - 1 ? 2 : 1;
+                    endHead(pos + 1);
+                } else if (crAt == pos - 1) {
+                    throw new IOException("Bare CR in message head");
+                } else if (c == ' ' || c == '\t') {
+                    throw new IOException("Obsolete header line folding");
+                } else {
+                    nameStart = pos;
+                    candidates = (1 << FRAMING_HEADERS.length) - 1;
+                    fieldLength = 0;
+                    state = NAME;
+                    headByte(c);
+                }
+                return;
+
+            case NAME:
+                if (c == ':') {
+                    if (fieldLength == 0) throw new IOException("Empty header name");
+                    nameEnd = pos;
+                    currentHeader = OTHER;
+                    for (int k = 0; k < FRAMING_HEADERS.length; k++) {
+                        if ((candidates & (1 << k)) != 0 && FRAMING_HEADERS[k].length == fieldLength) {
+                            currentHeader = k;
+                        }
+                    }
+                    startValue();
+                    state = VALUE;
+                } else if (isTokenChar(c)) {
+                    byte lower = toLower(c);
+                    for (int k = 0; k < FRAMING_HEADERS.length; k++) {
+                        byte[] name = FRAMING_HEADERS[k];
+                        if (fieldLength >= name.length || name[fieldLength] != lower) {
+                            candidates &= ~(1 << k);
+                        }
+                    }
+                    fieldLength++;
+                } else {
+                    throw new IOException("Malformed header line");
+                }
+                return;
+
+            case VALUE:
+                if (c == '\r') {
+                    crAt = pos;
+                } else if (c == '\n') {
+                    endHeader();
+                } else {
+                    if (c != ' ' && c != '\t') {
+                        if (valueFirst < 0) valueFirst = pos;
+                        valueLast = pos;
+                    }
+                    valueByte(c);
+                }
+                return;
+
+            default:
+                throw new IllegalStateException("Head already complete");
+        }
+    }
+
+    private void versionByte(byte c) throws IOException {
+        if (fieldLength < HTTP_1.length) {
+            if (c != HTTP_1[fieldLength]) throw new IOException("Unsupported protocol version");
+        } else if (fieldLength == HTTP_1.length && c >= '0' && c <= '9') {
+            versionMinor = c - '0';
+        } else {
+            throw new IOException("Unsupported protocol version");
+        }
+        fieldLength++;
+    }
+
+    private void checkVersion() throws IOException {
+        if (versionMinor < 0) throw new IOException("Unsupported protocol version");
+        fieldLength = 0;
+    }
+
+    private void endStartLine(int pos) {
+        startLineEnd = crAt == pos - 1 ? pos - 1 : pos;
+        state = LINE_START;
+    }
+
+    private void startValue() {
+        valueFirst = -1;
+        valueLast = -1;
+        valueNumber = 0;
+        valueDigits = 0;
+        digitsClosed = false;
+        tokenLength = 0;
+        tokenClosed = false;
+        tokenCandidates = -1;
+        if (currentHeader == TRANSFER_ENCODING) {
+            sawTransferEncoding = true;
+            lastTokenChunked = false;
+        }
+    }
+
+    private void valueByte(byte c) throws IOException {
+        switch (currentHeader) {
+            case CONTENT_LENGTH:
+                if (c >= '0' && c <= '9' && !digitsClosed) {
+                    if (valueNumber > (Long.MAX_VALUE - 9) / 10) throw new IOException("Content-Length too large");
+                    valueNumber = valueNumber * 10 + (c - '0');
+                    valueDigits++;
+                } else if (c == ' ' || c == '\t') {
+                    digitsClosed = valueDigits > 0;
+                } else {
+                    throw new IOException("Invalid Content-Length");
+                }
+                return;
+            case TRANSFER_ENCODING:
+                tokenByte(c, TE_TOKENS);
+                return;
+            case CONNECTION:
+                tokenByte(c, CONNECTION_TOKENS);
+                return;
+            default:
+        }
+    }
+
+    private void tokenByte(byte c, byte[][] tokens) {
+        if (c == ',') {
+            endToken(tokens);
+            return;
+        }
+        if (c == ' ' || c == '\t') {
+            tokenClosed = tokenLength > 0;
+            return;
+        }
+        if (tokenClosed) {
+            tokenCandidates = 0;
+        }
+        byte lower = toLower(c);
+        for (int k = 0; k < tokens.length; k++) {
+            if (tokenLength >= tokens[k].length || tokens[k][tokenLength] != lower) {
+                tokenCandidates &= ~(1 << k);
+            }
+        }
+        tokenLength++;
+    }
+
+    private void endToken(byte[][] tokens) {
+        if (tokenLength > 0) {
+            int matched = -1;
+            for (int k = 0; k < tokens.length; k++) {
+                if ((tokenCandidates & (1 << k)) != 0 && tokens[k].length == tokenLength) {
+                    matched = k;
+                }
+            }
+            if (currentHeader == TRANSFER_ENCODING) {
+                // chunked only frames the message when it is the final coding
+                lastTokenChunked = matched == 0;
+            } else if (matched == 0) {
+                connectionClose = true;
+            } else if (matched == 1) {
+                connectionKeepAlive = true;
+            }
+        }
+        tokenLength = 0;
+        tokenClosed = false;
+        tokenCandidates = -1;
+    }
+
+    private void endHeader() throws IOException {
+        if (headerCount >= MAX_HEADERS) throw new IOException("Too many headers");
+        nameStarts[headerCount] = nameStart;
+        nameEnds[headerCount] = nameEnd;
+        valueStarts[headerCount] = valueFirst < 0 ? nameEnd + 1 : valueFirst;
+        valueEnds[headerCount] = valueFirst < 0 ? nameEnd + 1 : valueLast + 1;
+        headerCount++;
+
+        switch (currentHeader) {
+            case CONTENT_LENGTH:
+                if (valueDigits == 0) throw new IOException("Invalid Content-Length");
+                if (contentLength >= 0 && contentLength != valueNumber) throw new IOException("Conflicting Content-Length");
+                contentLength = valueNumber;
+                break;
+            case TRANSFER_ENCODING:
+                endToken(TE_TOKENS);
+                chunked = lastTokenChunked;
+                break;
+            case CONNECTION:
+                endToken(CONNECTION_TOKENS);
+                break;
+            default:
+        }
+        state = LINE_START;
+    }
+
+    private void endHead(int length) throws IOException {
+        headLength = length;
+        state = BODY;
+
+        if (request) {
+            if (sawTransferEncoding) {
+                if (!chunked) throw new IOException("Unsupported Transfer-Encoding");
+                // Both framings present is a smuggling vector: honour chunked, then close
+                if (contentLength >= 0) connectionClose = true;
+                bodyLength = CHUNKED;
+            } else {
+                bodyLength = Math.max(0, contentLength);
+            }
+        } else if (noBody || (status >= 100 && status < 200) || status == 204 || status == 304) {
+            bodyLength = 0;
+        } else if (sawTransferEncoding) {
+            bodyLength = chunked ? CHUNKED : UNTIL_CLOSE;
+        } else {
+            bodyLength = contentLength >= 0 ? contentLength : UNTIL_CLOSE;
+        }
+
+        if (bodyLength == CHUNKED) {
+            bodyState = CHUNK_SIZE;
+            remaining = 0;
+            chunkDigits = 0;
+        } else if (bodyLength == UNTIL_CLOSE) {
+            bodyState = UNTIL_EOF;
+        } else {
+            remaining = bodyLength;
+            bodyState = remaining == 0 ? COMPLETE : FIXED;
+        }
+    }
+
+    /**
+     * Feeds body bytes buf[from, to) and returns how many belong to the
+     * current message. Anything after that is the start of the next message.
+     */
+    public int consumeBody(ByteBuffer buf, int from, int to) throws IOException {
+        int i = from;
+        while (i < to && bodyState != COMPLETE) {
+            switch (bodyState) {
+                case FIXED:
+                case CHUNK_DATA: {
+                    int n = (int) Math.min(remaining, to - i);
+                    i += n;
+                    remaining -= n;
+                    if (remaining == 0) {
+                        bodyState = bodyState == FIXED ? COMPLETE : CHUNK_DATA_END;
+                    }
+                    break;
+                }
+                case UNTIL_EOF:
+                    i = to;
+                    break;
+                case CHUNK_SIZE: {
+                    byte c = buf.get(i++);
+                    int digit = Character.digit(c, 16);
+                    if (digit >= 0) {
+                        if (remaining > (Long.MAX_VALUE >> 4)) throw new IOException("Chunk size too large");
+                        remaining = (remaining << 4) | digit;
+                        chunkDigits++;
+                    } else if (c == ';' || c == ' ' || c == '\t') {
+                        bodyState = CHUNK_EXT;
+                    } else if (c == '\n') {
+                        endChunkSize();
+                    } else if (c != '\r') {
+                        throw new IOException("Invalid chunk size");
+                    }
+                    break;
+                }
+                case CHUNK_EXT:
+                    if (buf.get(i++) == '\n') {
+                        endChunkSize();
+                    }
+                    break;
+                case CHUNK_DATA_END: {
+                    byte c = buf.get(i++);
+                    if (c == '\n') {
+                        bodyState = CHUNK_SIZE;
+                        remaining = 0;
+                        chunkDigits = 0;
+                    } else if (c != '\r') {
+                        throw new IOException("Missing CRLF after chunk data");
+                    }
+                    break;
+                }
+                case TRAILERS: {
+                    byte c = buf.get(i++);
+                    if (c == '\n') {
+                        if (trailerLineLength == 0) {
+                            bodyState = COMPLETE;
+                        }
+                        trailerLineLength = 0;
+                    } else if (c != '\r') {
+                        trailerLineLength++;
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown body state");
+            }
+        }
+        return i - from;
+    }
+
+    private void endChunkSize() throws IOException {
+        if (chunkDigits == 0) throw new IOException("Invalid chunk size");
+        if (remaining == 0) {
+            bodyState = TRAILERS;
+            trailerLineLength = 0;
+        } else {
+            bodyState = CHUNK_DATA;
+        }
+    }
+
+    /** True once any byte of a message (other than leading CRLFs) has been seen. */
+    public boolean hasStarted() {
+        return started;
+    }
+
+    public boolean isHeadComplete() {
+        return state == BODY;
+    }
+
+    public boolean isMessageComplete() {
+        return state == BODY && bodyState == COMPLETE;
+    }
+
+    /** Bytes from the message start through the blank line, including leading CRLFs. */
+    public int getHeadLength() {
+        return headLength;
+    }
+
+    /** 2 if the head ended with CRLF CRLF, 1 for a bare LF. */
+    public int getBlankLineLength() {
+        return blankLineLength;
+    }
+
+    /** Content length, CHUNKED, UNTIL_CLOSE, or 0 for no body. */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isHeadMethod() {
+        return request && methodIsHead;
+    }
+
+    /** A 1xx response other than 101; the real response follows on the same connection. */
+    public boolean isInterim() {
+        return !request && status >= 100 && status < 200 && status != 101;
+    }
+
+    /** Whether the sender expects the connection to stay open after this message. */
+    public boolean isKeepAlive() {
+        if (connectionClose || bodyLength == UNTIL_CLOSE) return false;
+        return versionMinor >= 1 || connectionKeepAlive;
+    }
+
+    /**
+     * Builds an HttpHead from the head bytes, which must still be in buf
+     * starting at messageStart.
+     */
+    public HttpHead toHead(ByteBuffer buf, int messageStart) {
+        HttpHead head = new HttpHead(string(buf, messageStart + startLineStart, messageStart + startLineEnd));
+        for (int i = 0; i < headerCount; i++) {
+            head.add(string(buf, messageStart + nameStarts[i], messageStart + nameEnds[i]),
+                    string(buf, messageStart + valueStarts[i], messageStart + valueEnds[i]));
+        }
+        return head;
+    }
+
+    private static String string(ByteBuffer buf, int from, int to) {
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + from, to - from, StandardCharsets.ISO_8859_1);
+        }
+        byte[] bytes = new byte[to - from];
+        buf.get(from, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    static boolean isTokenChar(byte c) {
+        return c > 32 && c < 127 && c != ':' && c != '"' && c != '(' && c != ')' && c != ','
+                && c != '/' && c != ';' && c != '<' && c != '=' && c != '>' && c != '?' && c != '@'
+                && c != '[' && c != '\\' && c != ']' && c != '{' && c != '}';
+    }
+
+    private static byte toLower(byte c) {
+        return (c >= 'A' && c <= 'Z') ? (byte) (c + 32) : c;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
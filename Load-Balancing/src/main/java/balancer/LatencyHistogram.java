@@ -0,0 +1,110 @@
+package balancer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size, lock-free latency histogram in the style of HdrHistogram.
+ * Values below 128 get a bucket each; above that every power of two is split
+ * into 64 linear sub-buckets, so any recorded value is reported to within
+ * about 1.5% however large it is. Recording is one atomic increment on its
+ * bucket plus striped count, sum and max cells that threads do not contend
+ * on, and never allocates, so it can sit on the request path of many
+ * threads at once.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 128;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final long highestTrackableValue;
+    private final AtomicLongArray counts;
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalValue = new LongAdder();
+    private final LongAccumulator maxValue = new LongAccumulator(Math::max, 0);
+
+    /** Values above highestTrackableValue are recorded as highestTrackableValue. */
+    public LatencyHistogram(long highestTrackableValue) {
+        this.highestTrackableValue = Math.max(SUB_BUCKETS, highestTrackableValue);
+        this.counts = new AtomicLongArray(indexOf(this.highestTrackableValue) + 1);
+    }
+
+    public void record(long value) {
+        long v = Math.min(Math.max(0, value), highestTrackableValue);
+        counts.incrementAndGet(indexOf(v));
+        totalCount.increment();
+        totalValue.add(v);
+        maxValue.accumulate(v);
+    }
+
+    public long getTotalCount() {
+        return totalCount.sum();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /** Sum of all recorded values. */
+    public long getSum() {
+        return totalValue.sum();
+    }
+
+    public double getMean() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) totalValue.sum() / count;
+    }
+
+    /**
+     * Smallest bucket bound that at least percentile% of recorded values fall
+     * under (percentile in 0..100), or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.sum();
+        if (count == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    /** Adds every sample of other into this histogram; both must track the same range. */
+    public void add(LatencyHistogram other) {
+        int n = Math.min(counts.length(), other.counts.length());
+        for (int i = 0; i < n; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+        totalCount.add(other.totalCount.sum());
+        totalValue.add(other.totalValue.sum());
+        maxValue.accumulate(other.maxValue.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.reset();
+        totalValue.reset();
+        maxValue.reset();
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+    }
+
+    /** Largest value that lands in bucket index. */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
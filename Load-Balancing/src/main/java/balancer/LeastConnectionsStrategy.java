@@ -0,0 +1,50 @@
+package balancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends each request to the node with the fewest in-flight exchanges. The
+ * weighted variant compares (active + 1) / weight, so a weight-3 node takes
+ * roughly three times the concurrency of a weight-1 node. Scans start at a
+ * rotating offset so ties do not all land on the first node.
+ */
+public class LeastConnectionsStrategy implements BalancingStrategy {
+    private final boolean weighted;
+    private final AtomicInteger offset = new AtomicInteger(0);
+
+    public LeastConnectionsStrategy(boolean weighted) {
+        this.weighted = weighted;
+    }
+
+    @Override
+    public String getName() {
+        return weighted ? "weighted-least-connections" : "least-connections";
+    }
+
+    @Override
+    public ServerNode select(ServerNode[] healthy) {
+        int n = healthy.length;
+        if (n == 0) return null;
+
+        int start = Math.floorMod(offset.getAndIncrement(), n);
+        ServerNode best = null;
+        for (int i = 0; i < n; i++) {
+            ServerNode node = healthy[(start + i) % n];
+            if (!node.isAvailable()) continue;
+            if (best == null || isLessLoaded(node, best, weighted)) {
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    /** Cross-multiplied (active + 1) / weight comparison, no division or allocation. */
+    static boolean isLessLoaded(ServerNode a, ServerNode b, boolean weighted) {
+        long loadA = a.getActiveConnections() + 1L;
+        long loadB = b.getActiveConnections() + 1L;
+        if (!weighted) {
+            return loadA < loadB;
+        }
+        return loadA * Math.max(1, b.getWeight()) < loadB * Math.max(1, a.getWeight());
+    }
+}
@@ -0,0 +1,223 @@
+package balancer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Where the balancer listens and how its sockets are set up. LB_LISTEN names
+ * one or more addresses; each gets LB_ACCEPTORS accept threads. Where the
+ * platform has SO_REUSEPORT (Linux, the BSDs) every acceptor binds its own
+ * socket to the address and the kernel spreads incoming connections across
+ * them, so accepts are no longer serialized on one socket; elsewhere the
+ * acceptors share a single socket.
+ *
+ * An address can be marked as a layer-4 passthrough listener ("/tcp"): its
+ * connections are relayed to a backend byte for byte, without HTTP parsing.
+ */
+public final class Listeners {
+    private static final boolean REUSE_PORT_SUPPORTED = probeReusePort();
+    private static final long ACCEPT_BACKOFF_MILLIS = 50;
+
+    private static volatile int acceptors = 1;
+    private static volatile boolean reusePort = true;
+    private static volatile int backlog = 1024;
+    private static volatile boolean tcpNoDelay = true;
+    private static volatile boolean keepAlive = false;
+    private static volatile int sendBuffer = 0;
+    private static volatile int receiveBuffer = 0;
+    private static volatile Set<InetSocketAddress> passthrough = Set.of();
+
+    private Listeners() {}
+
+    /**
+     * Applies LB_ACCEPTORS, LB_REUSEPORT, LB_BACKLOG, LB_TCP_NODELAY,
+     * LB_SO_KEEPALIVE, LB_SO_SNDBUF and LB_SO_RCVBUF (0 leaves the OS default)
+     * for client connections.
+     */
+    public static void configure(LoadBalancerConfig config) {
+        acceptors = Math.max(1, config.getInt("LB_ACCEPTORS", 1));
+        reusePort = config.getBoolean("LB_REUSEPORT", true);
+        backlog = Math.max(1, config.getInt("LB_BACKLOG", 1024));
+        tcpNoDelay = config.getBoolean("LB_TCP_NODELAY", true);
+        keepAlive = config.getBoolean("LB_SO_KEEPALIVE", false);
+        sendBuffer = Math.max(0, config.getInt("LB_SO_SNDBUF", 0));
+        receiveBuffer = Math.max(0, config.getInt("LB_SO_RCVBUF", 0));
+        passthrough = Set.copyOf(parse(config, true));
+    }
+
+    /**
+     * Addresses from LB_LISTEN, a comma-separated list of "port", "host:port"
+     * or "[v6]:port", each optionally followed by "/http" (the default) or
+     * "/tcp" for passthrough; just LB_PORT on all interfaces when it is not set.
+     * Malformed entries are logged and skipped, and LB_PORT is used if none is left.
+     */
+    public static List<InetSocketAddress> addresses(LoadBalancerConfig config) {
+        return parse(config, false);
+    }
+
+    private static List<InetSocketAddress> parse(LoadBalancerConfig config, boolean passthroughOnly) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        String listen = config.getString("LB_LISTEN", null);
+        if (listen == null) {
+            if (!passthroughOnly) {
+                addresses.add(new InetSocketAddress(config.getInt("LB_PORT", 8080)));
+            }
+            return addresses;
+        }
+        for (String entry : listen.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            try {
+                InetSocketAddress address = parseEntry(entry, passthroughOnly);
+                if (address != null) {
+                    addresses.add(address);
+                }
+            } catch (IllegalArgumentException e) {
+                // Reported once, by the full parse; the passthrough one sees the same entries
+                if (!passthroughOnly) {
+                    System.err.println("[Config] Ignoring LB_LISTEN entry \"" + entry + "\": " + e.getMessage());
+                }
+            }
+        }
+        if (addresses.isEmpty() && !passthroughOnly) {
+            System.err.println("[Config] No usable address in LB_LISTEN, using LB_PORT");
+            addresses.add(new InetSocketAddress(config.getInt("LB_PORT", 8080)));
+        }
+        return addresses;
+    }
+
+    /** One LB_LISTEN entry, or null if it is an HTTP listener and only passthrough ones are wanted. */
+    private static InetSocketAddress parseEntry(String entry, boolean passthroughOnly) {
+        boolean tcp = false;
+        int slash = entry.lastIndexOf('/');
+        if (slash >= 0) {
+            String mode = entry.substring(slash + 1).trim().toLowerCase();
+            if (!mode.equals("tcp") && !mode.equals("http")) {
+                throw new IllegalArgumentException("unknown listener mode \"" + mode + "\"");
+            }
+            tcp = mode.equals("tcp");
+            entry = entry.substring(0, slash).trim();
+        }
+        if (passthroughOnly && !tcp) return null;
+        int colon = entry.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(Integer.parseInt(entry));
+        }
+        String host = entry.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        int port = Integer.parseInt(entry.substring(colon + 1));
+        return host.isEmpty() || host.equals("*") ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+    }
+
+    /**
+     * Pause after a failed accept. The usual cause, running out of file
+     * descriptors, does not clear by retrying at once, and the pending
+     * connection would fail the next accept straight away too.
+     */
+    static void acceptBackoff() {
+        try {
+            Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Whether connections on address are relayed as plain TCP rather than proxied as HTTP. */
+    public static boolean isPassthrough(InetSocketAddress address) {
+        return passthrough.contains(address);
+    }
+
+    public static int getAcceptors() {
+        return acceptors;
+    }
+
+    /** Whether each acceptor gets its own socket: asked for and supported here. */
+    public static boolean isReusePort() {
+        return reusePort && REUSE_PORT_SUPPORTED;
+    }
+
+    private static boolean probeReusePort() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Sockets each acceptor of one address should accept on: one per acceptor, or one shared. */
+    public static int socketsPerAddress() {
+        return isReusePort() ? acceptors : 1;
+    }
+
+    /** A bound listening socket for the thread engine. */
+    public static ServerSocket openServerSocket(InetSocketAddress address) throws IOException {
+        ServerSocket socket = new ServerSocket();
+        try {
+            socket.setReuseAddress(true);
+            if (isReusePort()) {
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            // Inherited by accepted sockets; has to be set before bind to allow windows above 64 KB
+            if (receiveBuffer > 0) {
+                socket.setReceiveBufferSize(receiveBuffer);
+            }
+            socket.bind(address, backlog);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /** A bound, blocking listening channel for the nio engine. */
+    public static ServerSocketChannel openServerChannel(InetSocketAddress address) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (isReusePort()) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            if (receiveBuffer > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+            }
+            channel.bind(address, backlog);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Applies the client socket options to an accepted connection. */
+    public static void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+        if (sendBuffer > 0) {
+            socket.setSendBufferSize(sendBuffer);
+        }
+    }
+
+    public static void configure(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+        if (sendBuffer > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+        }
+    }
+
+    /** "host:port" for log lines. */
+    static String describe(InetSocketAddress address) {
+        return (address.getAddress() == null || address.getAddress().isAnyLocalAddress()
+                ? "*" : address.getAddress().getHostAddress()) + ":" + address.getPort();
+    }
+}
@@ -2,31 +2,56 @@ package balancer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.github.cdimascio.dotenv.Dotenv;
 
 public class LoadBalancer {
 
-    private static ServerSocket loadBalancerSocket;
+    private static final List<ServerSocket> listenSockets = new CopyOnWriteArrayList<>();
 
     public static void main(String[] args) {
         // Load .env file using dotenv-java
         Dotenv dotenv = Dotenv.configure().directory(".").ignoreIfMissing().load();
+        LoadBalancerConfig config = new LoadBalancerConfig(dotenv);
+        List<InetSocketAddress> addresses = Listeners.addresses(config);
+        BufferPool.configure(config);
+        BackendConnectionPool.configure(config);
+        ClientHandler.configure(config);
+        Http2Connection.configure(config);
+        PeakEwma.configure(config);
+        AccessLog.configure(config);
+        HealthMonitor.configure(config);
+        OutlierDetector.configure(config);
+        RetryBudget.configure(config);
+        ConsistentHashStrategy.configure(config);
+        ResponseCache.configure(config);
+        SingleFlight.configure(config);
+        Compression.configure(config);
+        ConcurrencyLimit.configure(config);
+        AdmissionControl.configure(config);
+        RateLimiter.configure(config);
+        Listeners.configure(config);
+        ServerListWatcher.configure(config);
 
-        List<ServerNode> serverList;
         ServerManager serverManager;
 
         try {
-            serverList = loadServers("servers.txt");
-            serverManager = new ServerManager(serverList);
+            serverManager = ServerManager.create(ServerListWatcher.read(Path.of(ServerListWatcher.getFileName())),
+                    createStrategy(config));
         } catch (IOException e) {
             System.err.println("Failed to load server list: " + e.getMessage());
             return;
         }
 
+        // Apply edits to the server list without a restart
+        new ServerListWatcher(serverManager).start();
+
         // Start health checks
-        HealthMonitor healthMonitor = new HealthMonitor(serverList);
+        HealthMonitor healthMonitor = new HealthMonitor(serverManager::getAllServers);
         healthMonitor.start();
 
         // Start web admin
@@ -37,62 +62,191 @@ public class LoadBalancer {
             System.err.println("Failed to start WebAdminServer: " + e.getMessage());
         }
 
-        // Start load balancer socket
+        // Selector-based engine: a few event loops instead of a thread per connection
+        if ("nio".equalsIgnoreCase(config.getString("LB_ENGINE", "thread"))) {
+            int loops = config.getInt("LB_NIO_LOOPS", Runtime.getRuntime().availableProcessors());
+            NioProxyEngine engine = new NioProxyEngine(serverManager, addresses, Listeners.getAcceptors(), loops);
+            Runtime.getRuntime().addShutdownHook(new Thread(engine::close));
+            try {
+                engine.serve();
+            } catch (IOException e) {
+                System.err.println("Server error: " + e.getMessage());
+            } finally {
+                engine.close();
+            }
+            return;
+        }
+
+        // Each acceptor thread hands its connections to a worker group of its own
+        int acceptorsPerAddress = Listeners.getAcceptors();
+        int socketsPerAddress = Listeners.socketsPerAddress();
+        List<ExecutorService> workerGroups = new ArrayList<>();
+        List<Thread> acceptors = new ArrayList<>();
+
+        // Start load balancer sockets
         try {
-            loadBalancerSocket = new ServerSocket(8080);
-            System.out.println("Load balancer listening on port 8080...");
+            for (InetSocketAddress address : addresses) {
+                ServerSocket shared = null;
+                for (int i = 0; i < acceptorsPerAddress; i++) {
+                    if (i < socketsPerAddress) {
+                        shared = Listeners.openServerSocket(address);
+                        listenSockets.add(shared);
+                    }
+                    ServerSocket socket = shared;
+                    boolean passthrough = Listeners.isPassthrough(address);
+                    ExecutorService workers = createHandlerExecutor(config, addresses.size() * acceptorsPerAddress,
+                            workerGroups.isEmpty());
+                    workerGroups.add(workers);
+                    acceptors.add(new Thread(() -> acceptLoop(socket, workers, serverManager, passthrough),
+                            "acceptor-" + address.getPort() + "-" + i));
+                }
+                System.out.println("Load balancer listening on " + Listeners.describe(address)
+                        + (Listeners.isPassthrough(address) ? " (tcp passthrough)" : "") + " with "
+                        + acceptorsPerAddress + " acceptor(s)"
+                        + (socketsPerAddress > 1 ? " on SO_REUSEPORT sockets" : "") + "...");
+            }
 
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                try {
-                    if (loadBalancerSocket != null && !loadBalancerSocket.isClosed()) {
-                        loadBalancerSocket.close();
-                        System.out.println("Load balancer socket closed.");
-                    }
-                } catch (IOException e) {
-                    System.err.println("Error closing socket on shutdown: " + e.getMessage());
+                if (closeListenSockets()) {
+                    System.out.println("Load balancer socket closed.");
                 }
             }));
 
-            // Handle client requests
-            while (true) {
-                Socket clientSocket = loadBalancerSocket.accept();
-                ServerNode targetServer = serverManager.getNextServer();
-                serverManager.recordRequest(targetServer);
-                if (targetServer == null) {
-                    System.err.println("No healthy backend servers available.");
-                    clientSocket.close();
-                    continue;
-                }
-                System.out.println("Forwarding to: " + targetServer);
-                new Thread(new ClientHandler(clientSocket, targetServer)).start();
+            for (Thread acceptor : acceptors) {
+                acceptor.start();
+            }
+            for (Thread acceptor : acceptors) {
+                acceptor.join();
             }
-
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
+            if (closeListenSockets()) {
+                System.out.println("Socket closed in finally block.");
+            }
+            for (ExecutorService workers : workerGroups) {
+                workers.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Accepts on one socket until it is closed. Several acceptors may share a
+     * socket when SO_REUSEPORT is not available. Connections on a passthrough
+     * listener are relayed as plain TCP.
+     */
+    private static void acceptLoop(ServerSocket serverSocket, ExecutorService workers, ServerManager serverManager,
+                                   boolean passthrough) {
+        while (!serverSocket.isClosed()) {
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) break;
+                // e.g. out of file descriptors; keep serving the connections we have
+                System.err.println("Accept failed: " + e.getMessage());
+                Listeners.acceptBackoff();
+                continue;
+            }
+            if (!AdmissionControl.tryAccept()) {
+                shed(clientSocket, passthrough);
+                continue;
+            }
+            // Backend selection happens per request inside the handler, per connection for passthrough
+            try {
+                workers.execute(passthrough ? new TcpPassthroughHandler(clientSocket, serverManager)
+                        : new ClientHandler(clientSocket, serverManager));
+            } catch (RejectedExecutionException e) {
+                rejectClient(clientSocket, passthrough);
+            }
+        }
+    }
+
+    /** Returns true if any socket was still open. */
+    private static boolean closeListenSockets() {
+        boolean closed = false;
+        for (ServerSocket socket : listenSockets) {
             try {
-                if (loadBalancerSocket != null && !loadBalancerSocket.isClosed()) {
-                    loadBalancerSocket.close();
-                    System.out.println("Socket closed in finally block.");
+                if (!socket.isClosed()) {
+                    socket.close();
+                    closed = true;
                 }
             } catch (IOException e) {
                 System.err.println("Error closing socket: " + e.getMessage());
             }
         }
+        return closed;
     }
 
-    private static List<ServerNode> loadServers(String filePath) throws IOException {
-        List<ServerNode> servers = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(":");
-                String host = parts[0];
-                int port = Integer.parseInt(parts[1]);
-                int weight = parts.length >= 3 ? Integer.parseInt(parts[2]) : 1;
-                servers.add(new ServerNode(host, port, weight));
+    private static BalancingStrategy createStrategy(LoadBalancerConfig config) {
+        String name = config.getString("LB_STRATEGY", "round-robin");
+        BalancingStrategy strategy = BalancingStrategy.forName(name);
+        if (strategy == null) {
+            System.err.println("Unknown LB_STRATEGY " + name + ", using round-robin");
+            strategy = new RoundRobinStrategy();
+        }
+        System.out.println("Balancing strategy: " + strategy.getName());
+        return strategy;
+    }
+
+    /**
+     * LB_EXECUTOR selects how ClientHandlers run:
+     *   virtual - one virtual thread per connection (default)
+     *   bounded - fixed platform pool with a bounded queue (LB_POOL_SIZE, LB_POOL_QUEUE)
+     *   thread  - one platform thread per connection, the original behaviour
+     * LB_POOL_REJECTION picks what the bounded pool does when full: "reject"
+     * answers 503 immediately, "caller" runs the handler on the accept thread,
+     * which stops accepting until the pool catches up. One executor is made
+     * per acceptor; a bounded pool's size and queue are split between them.
+     */
+    private static ExecutorService createHandlerExecutor(LoadBalancerConfig config, int groups, boolean announce) {
+        String mode = config.getString("LB_EXECUTOR", "virtual").toLowerCase();
+        switch (mode) {
+            case "bounded": {
+                int poolSize = Math.max(1, (config.getInt("LB_POOL_SIZE", 200) + groups - 1) / groups);
+                int queueSize = Math.max(1, (config.getInt("LB_POOL_QUEUE", 1000) + groups - 1) / groups);
+                RejectedExecutionHandler rejection =
+                        "caller".equalsIgnoreCase(config.getString("LB_POOL_REJECTION", "reject"))
+                                ? new ThreadPoolExecutor.CallerRunsPolicy()
+                                : new ThreadPoolExecutor.AbortPolicy();
+                AtomicInteger threadCount = new AtomicInteger();
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                        poolSize, poolSize, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(queueSize),
+                        r -> new Thread(r, "client-handler-" + threadCount.incrementAndGet()),
+                        rejection);
+                pool.allowCoreThreadTimeOut(true);
+                if (announce) {
+                    System.out.println("Client handlers: bounded pool of " + poolSize + " threads, queue " + queueSize
+                            + (groups > 1 ? ", per acceptor" : ""));
+                }
+                return pool;
             }
+            case "thread":
+                if (announce) System.out.println("Client handlers: one platform thread per connection");
+                return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory());
+            default:
+                if (announce) System.out.println("Client handlers: virtual threads");
+                return Executors.newVirtualThreadPerTaskExecutor();
         }
-        return servers;
+    }
+
+    private static void rejectClient(Socket clientSocket, boolean passthrough) {
+        System.err.println("Handler pool saturated, rejecting connection.");
+        shed(clientSocket, passthrough);
+    }
+
+    /**
+     * Answers 503 with Retry-After and closes; counted by AdmissionControl,
+     * not logged. A passthrough connection is not HTTP and is just closed.
+     */
+    private static void shed(Socket clientSocket, boolean passthrough) {
+        try (Socket socket = clientSocket) {
+            if (!passthrough) {
+                socket.getOutputStream().write(AdmissionControl.OVERLOADED);
+            }
+        } catch (IOException ignored) {}
     }
 }
@@ -0,0 +1,299 @@
+package balancer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import io.github.cdimascio.dotenv.Dotenv;
+
+/**
+ * Open-loop load generator for capacity planning and regression checks.
+ *
+ * Requests are scheduled at a fixed rate whether or not earlier ones have
+ * finished, spread over keep-alive connections. Latency is reported two ways:
+ * "corrected" is measured from when the request was due to be sent, which
+ * includes time spent queued behind a slow response (coordinated omission,
+ * as in wrk2); "uncorrected" is measured from when it actually went out.
+ *
+ * Optionally starts stub backends in-process (LOADGEN_STUBS) and the real
+ * LoadBalancer itself (LOADGEN_EMBED_BALANCER), so one command runs the whole
+ * setup. Settings come from .env or the environment:
+ *
+ *   LOADGEN_TARGET=localhost:8080   LOADGEN_PATH=/
+ *   LOADGEN_RATE=1000               requests per second, across all connections
+ *   LOADGEN_CONNECTIONS=64          LOADGEN_DURATION_S=30   LOADGEN_WARMUP_S=5
+ *   LOADGEN_STUBS=9001,9002         ports for stub backends (none by default)
+ *   LOADGEN_STUB_LATENCY_MS=0       mean stub think time
+ *   LOADGEN_STUB_LATENCY_DIST=fixed fixed | uniform (0..2x mean) | exponential
+ *   LOADGEN_STUB_BODY_MIN_BYTES=1024, LOADGEN_STUB_BODY_MAX_BYTES=1024
+ *   LOADGEN_STUB_ERROR_RATE=0.0     fraction of stub responses that are 500s
+ *   LOADGEN_EMBED_BALANCER=false
+ */
+public class LoadGenerator {
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final String host;
+    private final int port;
+    private final byte[] request;
+    private final int connections;
+    private final long intervalNanos;
+    private final LatencyHistogram corrected = new LatencyHistogram(MAX_LATENCY_NANOS);
+    private final LatencyHistogram uncorrected = new LatencyHistogram(MAX_LATENCY_NANOS);
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    public LoadGenerator(String host, int port, String path, int rate, int connections) {
+        this.host = host;
+        this.port = port;
+        this.request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + ":" + port
+                + "\r\nUser-Agent: balancer-loadgen\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        this.connections = connections;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Dotenv dotenv = Dotenv.configure().directory(".").ignoreIfMissing().load();
+        LoadBalancerConfig config = new LoadBalancerConfig(dotenv);
+
+        List<StubBackend> stubs = new ArrayList<>();
+        String stubPorts = config.getString("LOADGEN_STUBS", "");
+        for (String stubPort : stubPorts.split(",")) {
+            if (stubPort.isBlank()) continue;
+            StubBackend stub = new StubBackend(Integer.parseInt(stubPort.trim()), config);
+            stub.start();
+            stubs.add(stub);
+        }
+
+        if (config.getBoolean("LOADGEN_EMBED_BALANCER", false)) {
+            Thread balancer = new Thread(() -> LoadBalancer.main(new String[0]), "embedded-balancer");
+            balancer.setDaemon(true);
+            balancer.start();
+            // Let the listener bind and the first health check pass
+            Thread.sleep(1500);
+        }
+
+        String target = config.getString("LOADGEN_TARGET", "localhost:8080");
+        int colon = target.lastIndexOf(':');
+        int rate = config.getInt("LOADGEN_RATE", 1000);
+        int connections = config.getInt("LOADGEN_CONNECTIONS", 64);
+        int duration = config.getInt("LOADGEN_DURATION_S", 30);
+        int warmup = config.getInt("LOADGEN_WARMUP_S", 5);
+
+        LoadGenerator generator = new LoadGenerator(target.substring(0, colon),
+                Integer.parseInt(target.substring(colon + 1)),
+                config.getString("LOADGEN_PATH", "/"), rate, connections);
+        System.out.println("[LoadGen] " + rate + " req/s over " + connections + " connections to " + target
+                + " for " + duration + "s (+" + warmup + "s warmup)");
+        generator.run(TimeUnit.SECONDS.toNanos(warmup), TimeUnit.SECONDS.toNanos(duration));
+        generator.report(duration);
+
+        for (StubBackend stub : stubs) {
+            stub.close();
+        }
+        System.exit(0);
+    }
+
+    /** Drives the schedule to completion; samples due before warmupNanos are discarded. */
+    public void run(long warmupNanos, long durationNanos) throws InterruptedException {
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+
+        try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < connections; c++) {
+                int lane = c;
+                workers.execute(() -> drive(lane, start, measureFrom, end));
+            }
+        }
+    }
+
+    /**
+     * One connection's share of the schedule: requests lane, lane + connections,
+     * lane + 2 * connections, ... each due at start + index * interval.
+     */
+    private void drive(int lane, long start, long measureFrom, long end) {
+        Socket socket = null;
+        HttpInput in = null;
+        ByteBuffer scratch = ByteBuffer.allocate(1024);
+        OutputStream discard = OutputStream.nullOutputStream();
+
+        for (long index = lane; ; index += connections) {
+            long due = start + index * intervalNanos;
+            if (due >= end) break;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            long sent = System.nanoTime();
+            boolean ok = false;
+            try {
+                if (socket == null) {
+                    socket = new Socket(host, port);
+                    socket.setTcpNoDelay(true);
+                    in = new HttpInput(socket.getInputStream(), false);
+                }
+                socket.getOutputStream().write(request);
+                HttpHead response = in.readHead();
+                if (response == null) throw new IOException("Connection closed by proxy");
+                scratch.clear();
+                in.relayBody(discard, scratch);
+                HttpParser framing = in.getParser();
+                ok = framing.getStatus() >= 200 && framing.getStatus() < 400;
+                if (!framing.isKeepAlive()) {
+                    socket = closeConnection(socket, in);
+                    in = null;
+                }
+            } catch (IOException e) {
+                socket = closeConnection(socket, in);
+                in = null;
+            }
+
+            long done = System.nanoTime();
+            if (due >= measureFrom) {
+                corrected.record(done - due);
+                uncorrected.record(done - sent);
+                completed.increment();
+                if (!ok) errors.increment();
+            }
+        }
+        closeConnection(socket, in);
+    }
+
+    private static Socket closeConnection(Socket socket, HttpInput in) {
+        if (in != null) {
+            in.release();
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+        return null;
+    }
+
+    public void report(int durationSeconds) {
+        long count = completed.sum();
+        System.out.println(String.format(Locale.ROOT, "[LoadGen] requests: %d  errors: %d  throughput: %.1f req/s",
+                count, errors.sum(), count / (double) Math.max(1, durationSeconds)));
+        printLatency("corrected  ", corrected);
+        printLatency("uncorrected", uncorrected);
+    }
+
+    private static void printLatency(String label, LatencyHistogram histogram) {
+        System.out.println(String.format(Locale.ROOT,
+                "[LoadGen] %s latency ms  mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+                label, histogram.getMean() / 1e6,
+                histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6,
+                histogram.getValueAtPercentile(99) / 1e6, histogram.getValueAtPercentile(99.9) / 1e6,
+                histogram.getMax() / 1e6));
+    }
+
+    /**
+     * Keep-alive HTTP backend stand-in with configurable think time, body size
+     * and error rate, replacing a python http.server for load tests.
+     */
+    static class StubBackend {
+        private final int port;
+        private final double latencyMillis;
+        private final String latencyDistribution;
+        private final int minBody;
+        private final int maxBody;
+        private final double errorRate;
+        private final byte[] filler;
+        private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        private ServerSocket serverSocket;
+
+        StubBackend(int port, LoadBalancerConfig config) {
+            this.port = port;
+            this.latencyMillis = config.getDouble("LOADGEN_STUB_LATENCY_MS", 0);
+            this.latencyDistribution = config.getString("LOADGEN_STUB_LATENCY_DIST", "fixed").toLowerCase();
+            this.minBody = Math.max(0, config.getInt("LOADGEN_STUB_BODY_MIN_BYTES", 1024));
+            this.maxBody = Math.max(minBody, config.getInt("LOADGEN_STUB_BODY_MAX_BYTES", minBody));
+            this.errorRate = config.getDouble("LOADGEN_STUB_ERROR_RATE", 0.0);
+            this.filler = new byte[maxBody];
+            for (int i = 0; i < filler.length; i++) {
+                filler[i] = (byte) ('a' + i % 26);
+            }
+        }
+
+        void start() throws IOException {
+            serverSocket = new ServerSocket(port);
+            System.out.println("[LoadGen] Stub backend listening on port " + port);
+            executor.execute(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        executor.execute(() -> serve(socket));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+        }
+
+        private void serve(Socket socket) {
+            HttpInput in = null;
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                in = new HttpInput(socket.getInputStream(), true);
+                OutputStream out = socket.getOutputStream();
+                ByteBuffer scratch = ByteBuffer.allocate(1024);
+                while (in.readHead() != null) {
+                    scratch.clear();
+                    in.relayBody(OutputStream.nullOutputStream(), scratch);
+                    think();
+
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    boolean error = random.nextDouble() < errorRate;
+                    int length = error ? 0 : (maxBody > minBody ? random.nextInt(minBody, maxBody + 1) : minBody);
+                    out.write(((error ? "HTTP/1.1 500 Internal Server Error" : "HTTP/1.1 200 OK")
+                            + "\r\nContent-Type: text/plain\r\nContent-Length: " + length + "\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(filler, 0, length);
+                }
+            } catch (IOException e) {
+                // Client went away
+            } finally {
+                if (in != null) {
+                    in.release();
+                }
+            }
+        }
+
+        private void think() {
+            if (latencyMillis <= 0) return;
+            double millis;
+            switch (latencyDistribution) {
+                case "uniform":
+                    millis = ThreadLocalRandom.current().nextDouble(0, 2 * latencyMillis);
+                    break;
+                case "exponential":
+                    millis = -latencyMillis * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+                    break;
+                default:
+                    millis = latencyMillis;
+            }
+            LockSupport.parkNanos((long) (millis * 1_000_000));
+        }
+
+        void close() {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {}
+            executor.shutdownNow();
+        }
+    }
+}
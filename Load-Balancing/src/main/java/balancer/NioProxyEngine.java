@@ -0,0 +1,652 @@
+package balancer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Selector-based alternative to the thread-per-connection ClientHandler path.
+ * A small, fixed set of event loops each own a group of client/backend channel
+ * pairs and only ever touch them when the selector says they are ready, so a
+ * slow client or backend never parks a thread. Sessions accepted on a
+ * passthrough listener relay raw TCP and skip HTTP parsing entirely.
+ */
+public class NioProxyEngine {
+    private static final byte[] INJECTED_HEADER =
+            "X-Load-Balancer: MyLoadBalancer JavaLB\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerManager serverManager;
+    private final List<InetSocketAddress> addresses;
+    private final int acceptorsPerAddress;
+    private final EventLoop[] loops;
+    private final List<ServerSocketChannel> serverChannels = new CopyOnWriteArrayList<>();
+
+    public NioProxyEngine(ServerManager serverManager, int port, int loopCount) {
+        this(serverManager, List.of(new InetSocketAddress(port)), 1, loopCount);
+    }
+
+    /**
+     * Listens on every address with acceptorsPerAddress accept threads each;
+     * the event loops are split between the acceptors so each one feeds its
+     * own group.
+     */
+    public NioProxyEngine(ServerManager serverManager, List<InetSocketAddress> addresses,
+                          int acceptorsPerAddress, int loopCount) {
+        this.serverManager = serverManager;
+        this.addresses = addresses;
+        this.acceptorsPerAddress = Math.max(1, acceptorsPerAddress);
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    /**
+     * Binds the listeners, starts the event loops and acceptors, and waits
+     * on the calling thread until the engine is closed.
+     */
+    public void serve() throws IOException {
+        // With SO_REUSEPORT each acceptor has a socket of its own, otherwise they share one
+        int socketsPerAddress = Listeners.isReusePort() ? acceptorsPerAddress : 1;
+        List<ServerSocketChannel> accepting = new ArrayList<>();
+        List<Boolean> passthrough = new ArrayList<>();
+        try {
+            for (InetSocketAddress address : addresses) {
+                ServerSocketChannel shared = null;
+                for (int i = 0; i < acceptorsPerAddress; i++) {
+                    if (i < socketsPerAddress) {
+                        shared = Listeners.openServerChannel(address);
+                        serverChannels.add(shared);
+                    }
+                    accepting.add(shared);
+                    passthrough.add(Listeners.isPassthrough(address));
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(serverManager);
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        List<Thread> acceptors = new ArrayList<>();
+        for (int i = 0; i < accepting.size(); i++) {
+            // Acceptor i feeds loops i, i + n, i + 2n...; with fewer loops than acceptors they share
+            List<EventLoop> group = new ArrayList<>();
+            for (int l = i % loops.length; l < loops.length; l += accepting.size()) {
+                group.add(loops[l]);
+            }
+            ServerSocketChannel channel = accepting.get(i);
+            EventLoop[] own = group.toArray(new EventLoop[0]);
+            boolean tcp = passthrough.get(i);
+            Thread thread = new Thread(() -> acceptLoop(channel, own, tcp), "nio-acceptor-" + i);
+            acceptors.add(thread);
+        }
+        for (InetSocketAddress address : addresses) {
+            System.out.println("Load balancer (nio, " + loops.length + " event loops) listening on "
+                    + Listeners.describe(address) + (Listeners.isPassthrough(address) ? " (tcp passthrough)" : "")
+                    + " with " + acceptorsPerAddress + " acceptor(s)"
+                    + (socketsPerAddress > 1 ? " on SO_REUSEPORT sockets" : "") + "...");
+        }
+        for (Thread thread : acceptors) {
+            thread.start();
+        }
+        for (Thread thread : acceptors) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                return;
+            }
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel serverChannel, EventLoop[] group, boolean passthrough) {
+        int nextLoop = 0;
+        while (serverChannel.isOpen()) {
+            SocketChannel client;
+            try {
+                client = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                // e.g. out of file descriptors; keep serving the connections we have
+                System.err.println("[NIO] Accept failed: " + e.getMessage());
+                Listeners.acceptBackoff();
+                continue;
+            }
+
+            if (!AdmissionControl.tryAccept()) {
+                shed(client, passthrough ? null : AdmissionControl.OVERLOADED);
+                continue;
+            }
+            // Nothing has been read yet, so clients can only be told apart by address here
+            long retryAfter = RateLimiter.isEnabled() ? RateLimiter.check(remoteAddress(client), null) : 0;
+            if (retryAfter > 0) {
+                shed(client, passthrough ? null : RateLimiter.tooManyRequests(retryAfter));
+                continue;
+            }
+
+            // Routed before any bytes are read, so key-based strategies can only hash the client address
+            ServerNode targetServer = serverManager.getNextServer(remoteAddress(client), null);
+            if (targetServer == null) {
+                System.err.println("No healthy backend servers available.");
+                closeQuietly(client);
+                continue;
+            }
+            // Counted here rather than on the loop so a burst of accepts sees it. The accept
+            // thread cannot wait for a slot, so with every node at its limit the connection is shed
+            targetServer = serverManager.tryAcquire(targetServer, null);
+            if (targetServer == null) {
+                shed(client, passthrough ? null : AdmissionControl.OVERLOADED);
+                continue;
+            }
+            serverManager.recordRequest(targetServer);
+            serverManager.getRetryBudget().recordRequest();
+
+            // Resolve here so a slow DNS lookup never stalls an event loop
+            InetSocketAddress address = new InetSocketAddress(targetServer.getHost(), targetServer.getPort());
+            group[nextLoop].register(client, address, targetServer, passthrough);
+            nextLoop = (nextLoop + 1) % group.length;
+        }
+    }
+
+    public void close() {
+        boolean closed = false;
+        for (ServerSocketChannel channel : serverChannels) {
+            try {
+                if (channel.isOpen()) {
+                    channel.close();
+                    closed = true;
+                }
+            } catch (IOException e) {
+                System.err.println("Error closing socket: " + e.getMessage());
+            }
+        }
+        if (closed) {
+            System.out.println("Load balancer socket closed.");
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /** Writes answer, if any, to a freshly accepted, still blocking channel and closes it. */
+    private static void shed(SocketChannel client, byte[] answer) {
+        try {
+            if (answer != null) {
+                client.write(ByteBuffer.wrap(answer));
+            }
+        } catch (IOException ignored) {}
+        closeQuietly(client);
+    }
+
+    private static InetAddress remoteAddress(SocketChannel channel) {
+        try {
+            return ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ServerManager serverManager;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        EventLoop(ServerManager serverManager) throws IOException {
+            this.selector = Selector.open();
+            this.serverManager = serverManager;
+        }
+
+        void register(SocketChannel client, InetSocketAddress backendAddress, ServerNode node, boolean raw) {
+            tasks.add(() -> open(client, backendAddress, node, raw));
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("[NIO] Selector error: " + e.getMessage());
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    ProxySession session = (ProxySession) key.attachment();
+                    try {
+                        session.handle(key);
+                    } catch (IOException e) {
+                        System.err.println("Error handling client request: " + e.getMessage());
+                        if (key.channel() == session.backend) {
+                            // Refused connect or a broken backend connection; feeds outlier detection
+                            serverManager.recordFailure(session.node);
+                        } else {
+                            session.node.getMetrics().recordError();
+                        }
+                        session.close();
+                    } catch (CancelledKeyException e) {
+                        session.close();
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((ProxySession) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+
+        private void open(SocketChannel client, InetSocketAddress backendAddress, ServerNode node, boolean raw) {
+            SocketChannel backend = null;
+            ProxySession session = null;
+            try {
+                client.configureBlocking(false);
+                Listeners.configure(client);
+                InetAddress clientAddress = ((InetSocketAddress) client.getRemoteAddress()).getAddress();
+
+                backend = SocketChannel.open();
+                backend.configureBlocking(false);
+                backend.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                session = new ProxySession(client, clientAddress, backend, node, serverManager, raw);
+                session.connected = backend.connect(backendAddress);
+                session.clientKey = client.register(selector, 0, session);
+                session.backendKey = backend.register(selector, 0, session);
+                session.updateInterest();
+            } catch (IOException e) {
+                System.err.println("Error handling client request: " + e.getMessage());
+                serverManager.recordFailure(node);
+                if (session != null) {
+                    // Releases the session's pooled buffers along with the slot and both channels
+                    session.close();
+                } else {
+                    node.decrementActive();
+                    closeQuietly(client);
+                    closeQuietly(backend);
+                }
+            }
+        }
+    }
+
+    /**
+     * One client/backend pair. Both buffers stay in fill mode between events;
+     * a direction only reads while its buffer has room, which gives natural
+     * back-pressure towards whichever side is slower. Each direction runs an
+     * HttpParser over the bytes as they pass, so every response on a
+     * keep-alive connection gets the injected header and responses to
+     * pipelined HEAD requests are framed correctly. Traffic the parsers cannot
+     * follow (a 101 upgrade, non-HTTP, an oversized head) is relayed untouched.
+     * A raw session (passthrough listener) relays untouched from the start and
+     * passes a half-close on in each direction instead of ending at the
+     * backend's EOF.
+     */
+    private static final class ProxySession {
+        private final SocketChannel client;
+        // Replaced when a failed connect fails over to another node
+        private SocketChannel backend;
+        private ServerNode node;
+        private int retries;
+        private final ServerManager serverManager;
+        private final InetAddress clientAddress;
+        private SelectionKey clientKey;
+        private SelectionKey backendKey;
+        private boolean connected;
+        private boolean closed;
+        private final boolean raw;
+
+        // Pooled direct buffers: channel reads and writes go straight to the kernel without a heap copy
+        private final ByteBuffer upstream = BufferPool.acquireDirect();
+        private final ByteBuffer downstream = BufferPool.acquireDirect();
+        private final HttpParser requestParser = new HttpParser(true, BufferPool.getBufferSize());
+        private final HttpParser responseParser = new HttpParser(false, BufferPool.getBufferSize());
+        // One entry per forwarded request still awaiting its response: was it a HEAD?
+        private final ArrayDeque<Boolean> pendingHeadRequests = new ArrayDeque<>();
+        private int upstreamScanned;
+        // downstream[0, sendable) is cleared for the client; [sendable, scanned) is a head still being parsed
+        private int downstreamScanned;
+        private int sendable;
+        private boolean responseStarted;
+        private boolean passthrough;
+        // Response head split around the injected header, drained before reading on
+        private ByteBuffer[] headOut;
+        private boolean clientEof;
+        private boolean backendEof;
+        private boolean upstreamShut;
+        private boolean downstreamShut;
+        // For the node's latency estimate: request bytes sent, first response bytes seen
+        private long sentAt;
+        private long ttfb;
+        private long responseBytes;
+
+        ProxySession(SocketChannel client, InetAddress clientAddress, SocketChannel backend, ServerNode node,
+                     ServerManager serverManager, boolean raw) {
+            this.client = client;
+            this.raw = raw;
+            this.passthrough = raw;
+            this.backend = backend;
+            this.node = node;
+            this.serverManager = serverManager;
+            this.clientAddress = clientAddress;
+        }
+
+        void handle(SelectionKey key) throws IOException {
+            if (closed || !key.isValid()) return;
+            int ready = key.readyOps();
+
+            if (key.channel() == backend) {
+                if ((ready & SelectionKey.OP_CONNECT) != 0) {
+                    try {
+                        backend.finishConnect();
+                    } catch (IOException e) {
+                        if (failover(e)) return;
+                        throw e;
+                    }
+                    connected = true;
+                }
+                if ((ready & SelectionKey.OP_READ) != 0) {
+                    readBackend();
+                }
+            } else if ((ready & SelectionKey.OP_READ) != 0) {
+                int read = client.read(upstream);
+                if (read < 0) {
+                    clientEof = true;
+                } else {
+                    node.getMetrics().recordBytes(read, 0);
+                }
+                scanRequests();
+            }
+
+            if (connected && upstream.position() > 0) {
+                upstream.flip();
+                int written = backend.write(upstream);
+                if (written > 0 && sentAt == 0) {
+                    sentAt = System.nanoTime();
+                }
+                upstream.compact();
+                upstreamScanned -= written;
+            }
+            writeClient();
+
+            if (clientEof && !upstreamShut && connected && upstream.position() == 0) {
+                backend.shutdownOutput();
+                upstreamShut = true;
+            }
+            if (raw) {
+                if (backendEof && !downstreamShut && !hasDownstream()) {
+                    client.shutdownOutput();
+                    downstreamShut = true;
+                }
+                if (upstreamShut && downstreamShut) {
+                    close();
+                    return;
+                }
+            } else if (backendEof && !hasDownstream()) {
+                // Backend finished its response; same lifecycle as ClientHandler
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        /**
+         * The connect to the backend failed. Nothing has been sent yet and the
+         * client's bytes are still in upstream, so the session can move to
+         * another node if the retry limits allow. Returns false to give up.
+         */
+        private boolean failover(IOException cause) throws IOException {
+            RetryBudget budget = serverManager.getRetryBudget();
+            if (retries >= RetryBudget.getMaxRetries()) return false;
+            ServerNode next = serverManager.getNextServer(node);
+            if (next == null || !budget.tryRetry()) return false;
+            next = serverManager.tryAcquire(next, node);
+            if (next == null) return false;
+
+            System.err.println("Error handling client request: " + cause.getMessage());
+            serverManager.recordFailure(node);
+            node.decrementActive();
+            retries++;
+            node = next;
+            serverManager.recordRequest(node);
+
+            Selector selector = backendKey.selector();
+            backendKey.cancel();
+            closeQuietly(backend);
+            backend = SocketChannel.open();
+            backend.configureBlocking(false);
+            backend.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            // Resolved on the loop thread, unlike the first connect; failover is rare
+            connected = backend.connect(new InetSocketAddress(node.getHost(), node.getPort()));
+            backendKey = backend.register(selector, 0, this);
+            updateInterest();
+            return true;
+        }
+
+        /** Tracks request boundaries so each response can be matched to its request. */
+        private void scanRequests() {
+            try {
+                while (!passthrough && upstreamScanned < upstream.position()) {
+                    if (!requestParser.isHeadComplete()) {
+                        upstreamScanned += requestParser.parseHead(upstream, upstreamScanned, upstream.position());
+                        if (requestParser.isHeadComplete()) {
+                            pendingHeadRequests.add(requestParser.isHeadMethod());
+                        }
+                    } else {
+                        upstreamScanned += requestParser.consumeBody(upstream, upstreamScanned, upstream.position());
+                    }
+                    if (requestParser.isMessageComplete()) {
+                        requestParser.reset();
+                    }
+                }
+            } catch (IOException e) {
+                // Not something we can follow; leave it to the backend to judge
+                passthrough = true;
+            }
+            if (passthrough) {
+                upstreamScanned = upstream.position();
+            }
+        }
+
+        private void readBackend() throws IOException {
+            int read = backend.read(downstream);
+            if (read < 0) {
+                backendEof = true;
+            } else if (read > 0 && ttfb == 0 && sentAt != 0) {
+                ttfb = System.nanoTime() - sentAt;
+            }
+            scanResponses();
+        }
+
+        /** Advances the response parser; stops at each complete head to inject the header. */
+        private void scanResponses() {
+            try {
+                while (!passthrough && headOut == null && downstreamScanned < downstream.position()) {
+                    if (!responseStarted) {
+                        Boolean head = pendingHeadRequests.peek();
+                        responseParser.reset();
+                        responseParser.setNoBody(head != null && head);
+                        responseStarted = true;
+                    }
+                    if (!responseParser.isHeadComplete()) {
+                        int n = responseParser.parseHead(downstream, downstreamScanned, downstream.position());
+                        downstreamScanned += n;
+                        responseBytes += n;
+                        if (responseParser.isHeadComplete()) {
+                            injectHeader();
+                        } else if (!downstream.hasRemaining() && sendable == 0) {
+                            throw new IOException("Response head larger than buffer");
+                        }
+                    } else {
+                        int n = responseParser.consumeBody(downstream, downstreamScanned, downstream.position());
+                        downstreamScanned += n;
+                        responseBytes += n;
+                        sendable = downstreamScanned;
+                    }
+                    if (responseParser.isMessageComplete()) {
+                        endResponse();
+                    }
+                }
+            } catch (IOException e) {
+                // Not HTTP, or a head larger than the buffer: relay untouched
+                passthrough = true;
+            }
+            if (backendEof && !responseParser.isHeadComplete()) {
+                // Truncated head: hand over what arrived
+                passthrough = true;
+            }
+            if (passthrough) {
+                downstreamScanned = downstream.position();
+                if (headOut == null) {
+                    sendable = downstreamScanned;
+                }
+            }
+        }
+
+        private void injectHeader() {
+            // Insert just before the blank line that terminates the head
+            int end = downstreamScanned;
+            int split = end - responseParser.getBlankLineLength();
+            ByteBuffer head = downstream.duplicate();
+            head.flip().limit(split);
+            ByteBuffer rest = downstream.duplicate();
+            rest.flip().limit(end).position(split);
+            headOut = new ByteBuffer[] { head, ByteBuffer.wrap(INJECTED_HEADER), rest };
+            sendable = end;
+            node.getMetrics().recordStatus(responseParser.getStatus());
+
+            if (responseParser.getStatus() == 101) {
+                // Upgraded: the rest of the connection is not HTTP/1.x
+                passthrough = true;
+            }
+        }
+
+        private void endResponse() {
+            responseStarted = false;
+            if (!responseParser.isInterim()) {
+                pendingHeadRequests.poll();
+                serverManager.recordResponse(node, responseParser.getStatus());
+                long total = System.nanoTime() - sentAt;
+                if (ttfb > 0) {
+                    node.recordLatency(ttfb, total);
+                }
+                // The request line has already gone to the backend; the NIO engine logs "-"
+                AccessLog.log(clientAddress, null, responseParser.getStatus(), responseBytes + INJECTED_HEADER.length,
+                        node, ttfb, sentAt == 0 ? 0 : total);
+                sentAt = 0;
+                ttfb = 0;
+            }
+            responseBytes = 0;
+        }
+
+        private void writeClient() throws IOException {
+            if (headOut != null) {
+                node.getMetrics().recordBytes(0, client.write(headOut));
+                for (ByteBuffer part : headOut) {
+                    if (part.hasRemaining()) return;
+                }
+                headOut = null;
+                discardDownstream(sendable);
+                // Body bytes behind the head may already be buffered
+                scanResponses();
+            }
+            if (headOut == null && sendable > 0) {
+                downstream.flip();
+                int limit = downstream.limit();
+                downstream.limit(sendable);
+                int written = client.write(downstream);
+                node.getMetrics().recordBytes(0, written);
+                downstream.limit(limit);
+                downstream.position(0);
+                discardDownstream(written);
+            }
+        }
+
+        /** Drops the first n bytes, which have reached the client. */
+        private void discardDownstream(int n) {
+            if (n == 0) return;
+            int end = downstream.position();
+            downstream.position(n).limit(end);
+            downstream.compact();
+            sendable -= n;
+            downstreamScanned -= n;
+        }
+
+        private boolean hasDownstream() {
+            return headOut != null || downstream.position() > 0;
+        }
+
+        void updateInterest() {
+            int clientOps = 0;
+            if (!clientEof && upstream.hasRemaining()) clientOps |= SelectionKey.OP_READ;
+            if (headOut != null || sendable > 0) clientOps |= SelectionKey.OP_WRITE;
+
+            int backendOps;
+            if (!connected) {
+                backendOps = SelectionKey.OP_CONNECT;
+            } else {
+                backendOps = 0;
+                if (!backendEof && headOut == null && downstream.hasRemaining()) backendOps |= SelectionKey.OP_READ;
+                if (upstream.position() > 0) backendOps |= SelectionKey.OP_WRITE;
+            }
+
+            clientKey.interestOps(clientOps);
+            backendKey.interestOps(backendOps);
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            node.decrementActive();
+            // A raw session's lifetime says nothing about the backend's response time
+            if (ttfb > 0 && !raw) {
+                node.recordLatency(ttfb, System.nanoTime() - sentAt);
+            }
+            closeQuietly(client);
+            closeQuietly(backend);
+            headOut = null;
+            BufferPool.release(upstream);
+            BufferPool.release(downstream);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package balancer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters for one backend. Everything is a striped LongAdder or a
+ * lock-free LatencyHistogram, so recording from many handler threads neither
+ * contends nor allocates and can stay on at full load; reads are for /metrics.
+ */
+public class NodeMetrics {
+    static final long MAX_RESPONSE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    // Responses by status class: index 0 = 1xx ... 4 = 5xx
+    private final LongAdder[] statusClasses = new LongAdder[5];
+    private final LatencyHistogram responseTime = new LatencyHistogram(MAX_RESPONSE_NANOS);
+
+    public NodeMetrics() {
+        for (int i = 0; i < statusClasses.length; i++) {
+            statusClasses[i] = new LongAdder();
+        }
+    }
+
+    public void recordRequest() {
+        requests.increment();
+    }
+
+    /** Bytes received from the client and delivered back to it for this backend's exchanges. */
+    public void recordBytes(long in, long out) {
+        if (in > 0) bytesIn.add(in);
+        if (out > 0) bytesOut.add(out);
+    }
+
+    /** An exchange that failed inside the proxy, e.g. the backend could not be reached. */
+    public void recordError() {
+        errors.increment();
+    }
+
+    public void recordStatus(int status) {
+        int statusClass = status / 100 - 1;
+        if (statusClass >= 0 && statusClass < statusClasses.length) {
+            statusClasses[statusClass].increment();
+        }
+    }
+
+    public void recordResponseTime(long nanos) {
+        responseTime.record(nanos);
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /** Responses with status 100 * (statusClass + 1) .. 100 * (statusClass + 2) - 1. */
+    public long getStatusCount(int statusClass) {
+        return statusClasses[statusClass].sum();
+    }
+
+    /** Response times in nanoseconds. */
+    public LatencyHistogram getResponseTime() {
+        return responseTime;
+    }
+}
@@ -0,0 +1,140 @@
+package balancer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Passive health checking from live traffic. Consecutive proxy failures
+ * (connect/read errors) or consecutive 5xx responses eject a node at once,
+ * without waiting for the next active probe. Each ejection lasts twice as
+ * long as the previous one, up to a maximum; the count starts over once a
+ * node has stayed in rotation for that maximum. A cap on the share of ejected
+ * nodes in each pool keeps a fleet-wide problem from emptying it.
+ */
+public class OutlierDetector {
+    private static volatile int failureThreshold = 2;
+    private static volatile int serverErrorThreshold = 5;
+    private static volatile long baseEjectionMillis = 5000;
+    private static volatile long maxEjectionMillis = 300000;
+    private static volatile int maxEjectionPercent = 50;
+
+    // The members of a node's pool, the node included
+    private final Function<ServerNode, List<ServerNode>> peers;
+    private final Map<ServerNode, Stats> stats = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "outlier-readmit");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Serializes eject decisions so the max-ejection-percent check holds
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private static final class Stats {
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger serverErrors = new AtomicInteger();
+        // Guarded by lock
+        int ejections;
+        long readmittedAt;
+    }
+
+    public OutlierDetector(Function<ServerNode, List<ServerNode>> peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * Applies LB_OUTLIER_CONSECUTIVE_FAILURES, LB_OUTLIER_CONSECUTIVE_5XX
+     * (0 disables either), LB_OUTLIER_BASE_EJECTION_MS,
+     * LB_OUTLIER_MAX_EJECTION_MS and LB_OUTLIER_MAX_EJECTION_PERCENT.
+     */
+    public static void configure(LoadBalancerConfig config) {
+        failureThreshold = config.getInt("LB_OUTLIER_CONSECUTIVE_FAILURES", 2);
+        serverErrorThreshold = config.getInt("LB_OUTLIER_CONSECUTIVE_5XX", 5);
+        baseEjectionMillis = Math.max(1, config.getLong("LB_OUTLIER_BASE_EJECTION_MS", 5000));
+        maxEjectionMillis = Math.max(baseEjectionMillis, config.getLong("LB_OUTLIER_MAX_EJECTION_MS", 300000));
+        maxEjectionPercent = config.getInt("LB_OUTLIER_MAX_EJECTION_PERCENT", 50);
+    }
+
+    /** A response from node reached the client. */
+    public void onResponse(ServerNode node, int status) {
+        Stats s = statsFor(node);
+        if (s.failures.get() != 0) s.failures.set(0);
+        if (status >= 500) {
+            int threshold = serverErrorThreshold;
+            if (threshold > 0 && s.serverErrors.incrementAndGet() >= threshold) {
+                eject(node, s, threshold + " consecutive 5xx responses");
+            }
+        } else if (s.serverErrors.get() != 0) {
+            s.serverErrors.set(0);
+        }
+    }
+
+    /** Connecting to or exchanging with node failed. */
+    public void onFailure(ServerNode node) {
+        Stats s = statsFor(node);
+        int threshold = failureThreshold;
+        if (threshold > 0 && s.failures.incrementAndGet() >= threshold) {
+            eject(node, s, threshold + " consecutive connection failures");
+        }
+    }
+
+    /** Drops state for a node that left the pool. */
+    public void forget(ServerNode node) {
+        stats.remove(node);
+    }
+
+    private Stats statsFor(ServerNode node) {
+        Stats s = stats.get(node);
+        return s != null ? s : stats.computeIfAbsent(node, n -> new Stats());
+    }
+
+    private void eject(ServerNode node, Stats s, String reason) {
+        lock.lock();
+        try {
+            s.failures.set(0);
+            s.serverErrors.set(0);
+            if (node.isEjected()) return;
+
+            // Counted per pool: a small pool must not go dark because a large one has room to spare
+            List<ServerNode> nodes = peers.apply(node);
+            int ejected = 0;
+            for (ServerNode server : nodes) {
+                if (server.isEjected()) ejected++;
+            }
+            if ((ejected + 1) * 100 > nodes.size() * maxEjectionPercent) {
+                System.err.println("[Outlier] Not ejecting " + node.getKey() + " (" + reason
+                        + "): " + maxEjectionPercent + "% of nodes already ejected");
+                return;
+            }
+
+            long now = System.nanoTime();
+            if (s.readmittedAt != 0 && now - s.readmittedAt > TimeUnit.MILLISECONDS.toNanos(maxEjectionMillis)) {
+                s.ejections = 0;
+            }
+            s.ejections++;
+            long millis = Math.min(maxEjectionMillis, baseEjectionMillis << Math.min(30, s.ejections - 1));
+            node.setEjected(true);
+            System.err.println("[Outlier] Ejected " + node.getKey() + " for " + millis + " ms after " + reason);
+            scheduler.schedule(() -> readmit(node, s), millis, TimeUnit.MILLISECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void readmit(ServerNode node, Stats s) {
+        lock.lock();
+        try {
+            s.readmittedAt = System.nanoTime();
+            node.setEjected(false);
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("[Outlier] Readmitted " + node.getKey());
+    }
+}
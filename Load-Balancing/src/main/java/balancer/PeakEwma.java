@@ -0,0 +1,58 @@
+package balancer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time-decaying moving average of a latency, in the style of Finagle's
+ * peak-EWMA load metric. Each sample is blended in with weight
+ * 1 - e^(-elapsed / tau), so the estimate reflects roughly the last tau of
+ * traffic regardless of request rate. In peak mode a sample above the
+ * estimate replaces it outright, making a slowing backend look bad at once
+ * while recovery is gradual.
+ */
+public class PeakEwma {
+    private static volatile double decayNanos = TimeUnit.SECONDS.toNanos(10);
+
+    private final boolean peak;
+    // Estimate in nanoseconds as raw double bits, plus when it was last updated
+    private final AtomicLong valueBits = new AtomicLong(Double.doubleToRawLongBits(0.0));
+    private final AtomicLong stampNanos = new AtomicLong(System.nanoTime());
+
+    public PeakEwma(boolean peak) {
+        this.peak = peak;
+    }
+
+    /** Applies LB_EWMA_DECAY_MS, the time constant tau. */
+    public static void configure(LoadBalancerConfig config) {
+        decayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getLong("LB_EWMA_DECAY_MS", 10000)));
+    }
+
+    public void record(long sampleNanos) {
+        long now = System.nanoTime();
+        long previousStamp = stampNanos.getAndSet(now);
+        double weight = Math.exp(-Math.max(0, now - previousStamp) / decayNanos);
+        while (true) {
+            long bits = valueBits.get();
+            double current = Double.longBitsToDouble(bits);
+            double next = (peak && sampleNanos > current)
+                    ? sampleNanos
+                    : current * weight + sampleNanos * (1 - weight);
+            if (valueBits.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                return;
+            }
+        }
+    }
+
+    /** Current estimate in nanoseconds, decayed towards zero for the time since the last sample. */
+    public double get() {
+        double current = Double.longBitsToDouble(valueBits.get());
+        long elapsed = Math.max(0, System.nanoTime() - stampNanos.get());
+        return current * Math.exp(-elapsed / decayNanos);
+    }
+
+    /** Undecayed estimate in milliseconds, for display. */
+    public double getMillis() {
+        return Double.longBitsToDouble(valueBits.get()) / 1_000_000.0;
+    }
+}
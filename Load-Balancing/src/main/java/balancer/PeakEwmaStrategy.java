@@ -0,0 +1,50 @@
+package balancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes to the node with the lowest expected wait: its peak-EWMA
+ * time-to-first-byte multiplied by (in-flight + 1). A backend that starts
+ * GC-pausing is penalised on its first slow response, and its share returns
+ * as the estimate decays. Nodes with no latency history yet but requests in
+ * flight get a large fixed cost so a fresh node is probed, not flooded.
+ */
+public class PeakEwmaStrategy implements BalancingStrategy {
+    private static final double PENALTY_NANOS = 1_000_000_000.0;
+
+    private final AtomicInteger offset = new AtomicInteger(0);
+
+    @Override
+    public String getName() {
+        return "peak-ewma";
+    }
+
+    @Override
+    public ServerNode select(ServerNode[] healthy) {
+        int n = healthy.length;
+        if (n == 0) return null;
+
+        int start = Math.floorMod(offset.getAndIncrement(), n);
+        ServerNode best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            ServerNode node = healthy[(start + i) % n];
+            if (!node.isAvailable()) continue;
+            double cost = cost(node);
+            if (cost < bestCost) {
+                best = node;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    static double cost(ServerNode node) {
+        double latency = node.getTtfbEwma().get();
+        int active = node.getActiveConnections();
+        if (latency == 0 && active > 0) {
+            return PENALTY_NANOS + active;
+        }
+        return latency * (active + 1);
+    }
+}
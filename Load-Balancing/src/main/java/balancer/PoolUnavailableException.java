@@ -0,0 +1,16 @@
+package balancer;
+
+import java.io.IOException;
+
+/**
+ * No backend connection could be leased because the node's pool is full or
+ * closed. Nothing reached the backend, so handlers retry elsewhere without
+ * counting it as a failure of the node: a busy node is not a broken one.
+ */
+final class PoolUnavailableException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    PoolUnavailableException(String message) {
+        super(message);
+    }
+}
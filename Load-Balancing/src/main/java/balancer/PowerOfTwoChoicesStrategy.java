@@ -0,0 +1,34 @@
+package balancer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Power of two random choices: sample two distinct nodes and take the one
+ * with less weighted in-flight load. Nearly as good as a full least-connections
+ * scan, but O(1) and free of the herding a stale global minimum causes.
+ */
+public class PowerOfTwoChoicesStrategy implements BalancingStrategy {
+
+    @Override
+    public String getName() {
+        return "p2c";
+    }
+
+    @Override
+    public ServerNode select(ServerNode[] healthy) {
+        int n = healthy.length;
+        if (n == 0) return null;
+        if (n == 1) return healthy[0].isAvailable() ? healthy[0] : null;
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(n);
+        int second = random.nextInt(n - 1);
+        if (second >= first) second++;
+
+        ServerNode a = healthy[first];
+        ServerNode b = healthy[second];
+        if (!a.isAvailable()) return b.isAvailable() ? b : null;
+        if (!b.isAvailable()) return a;
+        return LeastConnectionsStrategy.isLessLoaded(b, a, true) ? b : a;
+    }
+}
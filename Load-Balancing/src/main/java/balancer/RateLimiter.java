@@ -0,0 +1,327 @@
+package balancer;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-client token buckets: each client may make LB_RATE_LIMIT requests per
+ * second with bursts up to LB_RATE_LIMIT_BURST, and is answered 429 with
+ * Retry-After beyond that. Clients are told apart by address or by a request
+ * header (LB_RATE_LIMIT_KEY).
+ *
+ * Buckets live in open-addressing tables of primitive arrays keyed by a
+ * 64-bit client key (an IPv4 address as is, anything else hashed), split
+ * into shards with a lock each so concurrent clients rarely meet. A request
+ * from a known client touches a few array slots and allocates nothing; the
+ * arrays only grow, and a background sweep drops buckets idle for
+ * LB_RATE_LIMIT_IDLE_MS and shrinks the tables again.
+ */
+public final class RateLimiter {
+    private static final long EMPTY = 0;
+    // Set on keys made from an IPv4 address so they can be shown again
+    private static final long IPV4_TAG = 1L << 32;
+    private static final int MAX_LABELS = 4096;
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private static volatile boolean enabled = false;
+    private static volatile double rate = 0;
+    private static volatile double burst = 0;
+    private static volatile String headerName = null;
+    private static volatile long idleNanos = TimeUnit.SECONDS.toNanos(60);
+    private static volatile int topCount = 10;
+
+    private static volatile Shard[] shards = new Shard[0];
+    // Labels of limited clients whose key cannot be turned back into a name
+    private static final Map<Long, String> labels = new ConcurrentHashMap<>();
+    private static final LongAdder limited = new LongAdder();
+
+    private static ScheduledExecutorService sweeper;
+
+    private RateLimiter() {}
+
+    private static final class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        // Guarded by lock; parallel arrays indexed by slot, keys[slot] == EMPTY when free
+        long[] keys;
+        double[] tokens;
+        long[] stamps;
+        long[] requests;
+        long[] denied;
+        int size;
+
+        Shard(int capacity) {
+            allocate(capacity);
+        }
+
+        void allocate(int capacity) {
+            keys = new long[capacity];
+            tokens = new double[capacity];
+            stamps = new long[capacity];
+            requests = new long[capacity];
+            denied = new long[capacity];
+            size = 0;
+        }
+
+        /** Slot holding key, or the free slot where it belongs. */
+        int slot(long key) {
+            int mask = keys.length - 1;
+            // Middle bits of the product; the top ones pick the shard
+            int i = (int) ((key * GOLDEN) >>> 20) & mask;
+            while (keys[i] != EMPTY && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        /** Rebuilds into capacity slots, dropping entries last touched before idleBefore. */
+        void rehash(int capacity, long idleBefore) {
+            long[] oldKeys = keys;
+            double[] oldTokens = tokens;
+            long[] oldStamps = stamps;
+            long[] oldRequests = requests;
+            long[] oldDenied = denied;
+            allocate(capacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY) continue;
+                if (oldStamps[i] - idleBefore < 0) {
+                    labels.remove(oldKeys[i]);
+                    continue;
+                }
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                tokens[slot] = oldTokens[i];
+                stamps[slot] = oldStamps[i];
+                requests[slot] = oldRequests[i];
+                denied[slot] = oldDenied[i];
+                size++;
+            }
+        }
+    }
+
+    /** One entry of getTopTalkers. */
+    public static final class Talker {
+        public final String client;
+        public final long requests;
+        public final long limited;
+
+        Talker(String client, long requests, long limited) {
+            this.client = client;
+            this.requests = requests;
+            this.limited = limited;
+        }
+    }
+
+    /**
+     * Applies LB_RATE_LIMIT (requests per second per client, 0 turns limiting
+     * off), LB_RATE_LIMIT_BURST (defaults to one second's worth),
+     * LB_RATE_LIMIT_KEY ("ip" or "header:Name", falling back to the address
+     * when the header is absent), LB_RATE_LIMIT_IDLE_MS, LB_RATE_LIMIT_SHARDS
+     * and LB_RATE_LIMIT_TOP (top talkers shown in /metrics).
+     */
+    public static void configure(LoadBalancerConfig config) {
+        rate = Math.max(0, config.getDouble("LB_RATE_LIMIT", 0));
+        burst = Math.max(1, config.getDouble("LB_RATE_LIMIT_BURST", rate));
+        String key = config.getString("LB_RATE_LIMIT_KEY", "ip").trim();
+        headerName = key.regionMatches(true, 0, "header:", 0, 7) ? key.substring(7).trim() : null;
+        idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1000, config.getLong("LB_RATE_LIMIT_IDLE_MS", 60000)));
+        topCount = Math.max(0, config.getInt("LB_RATE_LIMIT_TOP", 10));
+        int shardCount = Integer.highestOneBit(Math.max(1, Math.min(1024, config.getInt("LB_RATE_LIMIT_SHARDS", 64))));
+        Shard[] created = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            created[i] = new Shard(64);
+        }
+        shards = created;
+        enabled = rate > 0;
+
+        if (enabled && sweeper == null) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "rate-limit-sweep");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1000, TimeUnit.NANOSECONDS.toMillis(idleNanos) / 2);
+            sweeper.scheduleAtFixedRate(RateLimiter::sweep, period, period, TimeUnit.MILLISECONDS);
+        }
+        if (enabled) {
+            System.out.println("[RateLimit] " + rate + " requests/s per " + (headerName == null ? "client address"
+                    : headerName + " header") + ", burst " + burst);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Takes a token for the client making request (null before the request is
+     * read). Returns 0 if the request may proceed, otherwise the number of
+     * seconds to send in Retry-After.
+     */
+    public static long check(InetAddress client, HttpHead request) {
+        String header = request == null || headerName == null ? null : request.get(headerName);
+        long key = header != null ? hashKey(ConsistentHashStrategy.hash(header, 0, header.length())) : addressKey(client);
+        long retryAfter = acquire(key);
+        if (retryAfter > 0) {
+            limited.increment();
+            if ((key & ~0xffffffffL) != IPV4_TAG && labels.size() < MAX_LABELS) {
+                labels.putIfAbsent(key, header != null ? headerName + ": " + header
+                        : client == null ? "unknown" : client.getHostAddress());
+            }
+        }
+        return retryAfter;
+    }
+
+    /** The 429 answer for a limited request. */
+    static byte[] tooManyRequests(long retryAfterSeconds) {
+        return ("HTTP/1.1 429 Too Many Requests\r\nRetry-After: " + retryAfterSeconds
+                + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static long acquire(long key) {
+        Shard[] current = shards;
+        Shard shard = current[(int) ((key * GOLDEN) >>> 54) & (current.length - 1)];
+        long now = System.nanoTime();
+        double perSecond = rate;
+        double depth = burst;
+        shard.lock.lock();
+        try {
+            int slot = shard.slot(key);
+            if (shard.keys[slot] == EMPTY) {
+                if ((shard.size + 1) * 2 > shard.keys.length) {
+                    shard.rehash(shard.keys.length * 2, now - idleNanos);
+                    slot = shard.slot(key);
+                }
+                shard.keys[slot] = key;
+                shard.tokens[slot] = depth;
+                shard.stamps[slot] = now;
+                shard.requests[slot] = 0;
+                shard.denied[slot] = 0;
+                shard.size++;
+            }
+            double tokens = Math.min(depth, shard.tokens[slot] + (now - shard.stamps[slot]) * perSecond / 1e9);
+            shard.stamps[slot] = now;
+            shard.requests[slot]++;
+            if (tokens >= 1) {
+                shard.tokens[slot] = tokens - 1;
+                return 0;
+            }
+            shard.tokens[slot] = tokens;
+            shard.denied[slot]++;
+            return Math.max(1, (long) Math.ceil((1 - tokens) / perSecond));
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /** Drops idle buckets and shrinks shards that have room to spare. */
+    private static void sweep() {
+        long idleBefore = System.nanoTime() - idleNanos;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                int live = 0;
+                for (int i = 0; i < shard.keys.length; i++) {
+                    if (shard.keys[i] != EMPTY && shard.stamps[i] - idleBefore >= 0) live++;
+                }
+                if (live == shard.size) continue;
+                int capacity = 64;
+                while (capacity < live * 2) capacity <<= 1;
+                shard.rehash(capacity, idleBefore);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    private static long addressKey(InetAddress client) {
+        if (client instanceof Inet4Address) {
+            byte[] a = client.getAddress();
+            return IPV4_TAG | ((a[0] & 0xffL) << 24) | ((a[1] & 0xffL) << 16) | ((a[2] & 0xffL) << 8) | (a[3] & 0xffL);
+        }
+        if (client == null) return hashKey(0);
+        String address = client.getHostAddress();
+        return hashKey(ConsistentHashStrategy.hash(address, 0, address.length()));
+    }
+
+    /** Keeps hashed keys out of the IPv4 range and away from EMPTY. */
+    private static long hashKey(long hash) {
+        if ((hash & ~0xffffffffL) == IPV4_TAG || (hash & ~0xffffffffL) == 0) {
+            hash |= 1L << 63;
+        }
+        return hash;
+    }
+
+    private static String labelOf(long key) {
+        if ((key & ~0xffffffffL) == IPV4_TAG) {
+            return ((key >>> 24) & 0xff) + "." + ((key >>> 16) & 0xff) + "." + ((key >>> 8) & 0xff) + "." + (key & 0xff);
+        }
+        String label = labels.get(key);
+        return label != null ? label : String.format("#%016x", key);
+    }
+
+    /** Clients with the most requests since their bucket was created, busiest first. */
+    public static List<Talker> getTopTalkers() {
+        int n = topCount;
+        long[] topKeys = new long[n];
+        long[] topRequests = new long[n];
+        long[] topDenied = new long[n];
+        int count = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                for (int i = 0; i < shard.keys.length; i++) {
+                    if (shard.keys[i] == EMPTY) continue;
+                    long requests = shard.requests[i];
+                    if (count == n && (n == 0 || requests <= topRequests[n - 1])) continue;
+                    // Insertion into the sorted top-n arrays
+                    int at = Math.min(count, n - 1);
+                    while (at > 0 && topRequests[at - 1] < requests) {
+                        topKeys[at] = topKeys[at - 1];
+                        topRequests[at] = topRequests[at - 1];
+                        topDenied[at] = topDenied[at - 1];
+                        at--;
+                    }
+                    topKeys[at] = shard.keys[i];
+                    topRequests[at] = requests;
+                    topDenied[at] = shard.denied[i];
+                    if (count < n) count++;
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        List<Talker> top = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            top.add(new Talker(labelOf(topKeys[i]), topRequests[i], topDenied[i]));
+        }
+        return top;
+    }
+
+    /** Clients with a bucket right now. */
+    public static long getClientCount() {
+        long total = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                total += shard.size;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return total;
+    }
+
+    public static long getLimited() {
+        return limited.sum();
+    }
+}
@@ -0,0 +1,569 @@
+package balancer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared HTTP cache for GET responses, used by the thread engine in front of
+ * the backend call. Freshness follows Cache-Control (s-maxage, max-age,
+ * no-cache, no-store, private), Expires and, for responses that only carry
+ * Last-Modified (python's http.server), the usual 10% heuristic. Stale
+ * entries with an ETag or Last-Modified are revalidated with a conditional
+ * request, and concurrent misses for one key wait for a single fill instead
+ * of all going to the backend.
+ *
+ * Bodies live off-heap in direct buffers; heads stay on the heap. Total size
+ * is bounded by segmented LRU: new entries enter a probation segment and move
+ * to the protected segment on a second hit, so one scan of cold objects
+ * cannot flush the hot ones. Lookups are a ConcurrentHashMap read; a hit only
+ * updates recency if it gets the lock without waiting.
+ */
+public final class ResponseCache {
+    private static final int HEAD_OVERHEAD = 256;
+
+    private static volatile boolean enabled = false;
+    private static long maxBytes = 64L * 1024 * 1024;
+    private static long maxProtectedBytes = maxBytes * 4 / 5;
+    private static int maxObjectBytes = 1024 * 1024;
+    private static long heuristicMaxMillis = 60000;
+    private static long collapseWaitMillis = 5000;
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final Map<String, CompletableFuture<Entry>> fills = new ConcurrentHashMap<>();
+
+    // Segments as circular lists around sentinels, guarded by lock
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Entry probation = Entry.sentinel();
+    private static final Entry protectedSegment = Entry.sentinel();
+    private static long probationBytes;
+    private static long protectedBytes;
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder revalidated = new LongAdder();
+    private static final LongAdder stored = new LongAdder();
+    private static final LongAdder evicted = new LongAdder();
+    private static final LongAdder collapsed = new LongAdder();
+
+    private ResponseCache() {}
+
+    /** One cached response. The head is never modified once stored; each hit serves a copy. */
+    public static final class Entry {
+        final String key;
+        final HttpHead head;
+        final ByteBuffer body;
+        final int size;
+        final String etag;
+        final String lastModified;
+        final String[] varyNames;
+        final String[] varyValues;
+        // Both refreshed when a revalidation returns 304
+        volatile long bornAt;
+        volatile long expiresAt;
+
+        Entry prev;
+        Entry next;
+        boolean inProtected;
+
+        private Entry(String key, HttpHead head, ByteBuffer body, String[] varyNames, String[] varyValues) {
+            this.key = key;
+            this.head = head;
+            this.body = body;
+            this.size = (body == null ? 0 : body.capacity()) + HEAD_OVERHEAD;
+            this.etag = head == null ? null : head.get("ETag");
+            this.lastModified = head == null ? null : head.get("Last-Modified");
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+        }
+
+        static Entry sentinel() {
+            Entry sentinel = new Entry(null, null, null, null, null);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            return sentinel;
+        }
+
+        public boolean isFresh() {
+            return System.nanoTime() - expiresAt < 0;
+        }
+
+        public boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        public int getStatus() {
+            return head.getStatusCode();
+        }
+    }
+
+    /**
+     * Applies LB_CACHE (on/off), LB_CACHE_MAX_BYTES, LB_CACHE_MAX_OBJECT_BYTES,
+     * LB_CACHE_HEURISTIC_MAX_MS (cap on heuristic freshness, 0 disables it) and
+     * LB_CACHE_COLLAPSE_WAIT_MS (how long a miss waits for a concurrent fill).
+     */
+    public static void configure(LoadBalancerConfig config) {
+        maxBytes = Math.max(1024 * 1024, config.getLong("LB_CACHE_MAX_BYTES", 64L * 1024 * 1024));
+        maxProtectedBytes = maxBytes * 4 / 5;
+        maxObjectBytes = (int) Math.min(maxBytes / 8, Math.max(0, config.getLong("LB_CACHE_MAX_OBJECT_BYTES", 1024 * 1024)));
+        heuristicMaxMillis = Math.max(0, config.getLong("LB_CACHE_HEURISTIC_MAX_MS", 60000));
+        collapseWaitMillis = Math.max(0, config.getLong("LB_CACHE_COLLAPSE_WAIT_MS", 5000));
+        enabled = config.getBoolean("LB_CACHE", false);
+        if (enabled) {
+            System.out.println("[Cache] Enabled, " + maxBytes + " bytes, objects up to " + maxObjectBytes + " bytes");
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Cache key for a request that may be answered from the cache, or null.
+     * GET and HEAD share entries; requests with a body, credentials or a
+     * client-side no-cache always go to the backend.
+     */
+    public static String keyFor(HttpHead request, HttpParser framing) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) return null;
+        if (framing.getBodyLength() != 0 || request.get("Authorization") != null) return null;
+        if (request.hasToken("Cache-Control", "no-store") || request.hasToken("Cache-Control", "no-cache")
+                || request.hasToken("Pragma", "no-cache")) {
+            return null;
+        }
+        String host = request.get("Host");
+        return (host == null ? "" : host.toLowerCase()) + request.getTarget();
+    }
+
+    /** The entry for key whose Vary headers match request, fresh or stale, or null. */
+    public static Entry lookup(String key, HttpHead request) {
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        for (int i = 0; i < entry.varyNames.length; i++) {
+            String value = request.get(entry.varyNames[i]);
+            if (!(value == null ? entry.varyValues[i] == null : value.equals(entry.varyValues[i]))) {
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    /** Counts a hit and promotes the entry, skipping the promotion if the lock is busy. */
+    public static void recordHit(Entry entry) {
+        hits.increment();
+        if (!lock.tryLock()) return;
+        try {
+            if (entry.prev == null) return;
+            if (entry.inProtected) {
+                unlink(entry);
+                linkFirst(protectedSegment, entry);
+                return;
+            }
+            unlink(entry);
+            probationBytes -= entry.size;
+            entry.inProtected = true;
+            linkFirst(protectedSegment, entry);
+            protectedBytes += entry.size;
+            while (protectedBytes > maxProtectedBytes) {
+                Entry demoted = protectedSegment.prev;
+                unlink(demoted);
+                protectedBytes -= demoted.size;
+                demoted.inProtected = false;
+                linkFirst(probation, demoted);
+                probationBytes += demoted.size;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static void recordMiss() {
+        misses.increment();
+    }
+
+    /**
+     * Registers the caller as the one fetching key. Returns null if it is now
+     * responsible for calling completeFill, or the fill already under way.
+     */
+    public static CompletableFuture<Entry> joinFill(String key) {
+        CompletableFuture<Entry> fill = new CompletableFuture<>();
+        CompletableFuture<Entry> existing = fills.putIfAbsent(key, fill);
+        if (existing != null) {
+            collapsed.increment();
+        }
+        return existing;
+    }
+
+    /** Waits for another request's fill; null if it stored nothing fresh or took too long. */
+    public static Entry awaitFill(CompletableFuture<Entry> fill) {
+        try {
+            Entry entry = fill.get(collapseWaitMillis, TimeUnit.MILLISECONDS);
+            return entry != null && entry.isFresh() ? entry : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    /** Wakes everyone waiting on the caller's fill with whatever is now cached. */
+    public static void completeFill(String key) {
+        CompletableFuture<Entry> fill = fills.remove(key);
+        if (fill != null) {
+            fill.complete(entries.get(key));
+        }
+    }
+
+    /** Applies a 304 from revalidation: the stored response is fresh again. */
+    public static void refresh(Entry entry, HttpHead notModified) {
+        long now = System.nanoTime();
+        long freshness = freshnessMillis(notModified, entry.head);
+        entry.bornAt = now - TimeUnit.SECONDS.toNanos(parseSeconds(notModified.get("Age")));
+        entry.expiresAt = entry.bornAt + TimeUnit.MILLISECONDS.toNanos(Math.max(0, freshness));
+        revalidated.increment();
+    }
+
+    /**
+     * Returns a stream that relays the response to out and keeps a copy of
+     * its body for the cache, or null if this response cannot be stored.
+     * Call setBodyStart once the head is encoded and finish after the body.
+     */
+    public static Capture capture(OutputStream out, HttpHead request, HttpHead response, HttpParser framing) {
+        if (!"GET".equals(request.getMethod())) return null;
+        long length = framing.getBodyLength();
+        if (length < 0 || length > maxObjectBytes) return null;
+        if (!isStorable(response)) return null;
+        return new Capture(out, response.copy(), (int) length);
+    }
+
+    /**
+     * Writes the cached response for a hit, answering 304 if the client
+     * already has it. The body is compressed on the way if coding is not
+     * null and Compression takes the response.
+     */
+    public static long serve(Entry entry, HttpHead request, OutputStream out, ByteBuffer scratch,
+                             boolean keepAlive, String coding) throws IOException {
+        HttpHead head = entry.head.copy();
+        // Weak comparison, so clients holding the W/ tag of a compressed copy match too
+        boolean notModified = entry.etag != null && weak(entry.etag).equals(weak(request.get("If-None-Match")));
+        if (notModified) {
+            head.setStartLine(head.getVersion() + " 304 Not Modified");
+            head.remove("Content-Length");
+        }
+        head.set("Age", Long.toString(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - entry.bornAt)));
+        head.set("X-Cache", "HIT");
+        head.set("Connection", keepAlive ? "keep-alive" : "close");
+
+        boolean withBody = !notModified && !"HEAD".equals(request.getMethod());
+        Compression.Encoder encoder = withBody ? Compression.encoder(coding, head, out) : null;
+        try {
+            if (encoder != null) {
+                encoder.rewrite(head);
+                out = encoder;
+            }
+            long written = writeTo(entry, head, withBody, out, scratch, encoder);
+            return encoder != null ? encoder.finish() : written;
+        } finally {
+            if (encoder != null) encoder.close();
+        }
+    }
+
+    private static long writeTo(Entry entry, HttpHead head, boolean withBody, OutputStream out, ByteBuffer scratch,
+                                Compression.Encoder encoder) throws IOException {
+        long written = head.encode(scratch, out);
+        if (encoder != null) {
+            encoder.setBodyStart(written);
+        }
+        if (withBody && entry.body.capacity() > 0) {
+            ByteBuffer body = entry.body.duplicate();
+            body.clear();
+            while (body.hasRemaining()) {
+                if (!scratch.hasRemaining()) {
+                    HttpHead.flush(scratch, out);
+                }
+                int n = Math.min(body.remaining(), scratch.remaining());
+                body.get(scratch.array(), scratch.arrayOffset() + scratch.position(), n);
+                scratch.position(scratch.position() + n);
+                written += n;
+            }
+        }
+        HttpHead.flush(scratch, out);
+        return written;
+    }
+
+    private static String weak(String etag) {
+        return etag != null && etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static long getRevalidated() {
+        return revalidated.sum();
+    }
+
+    public static long getStored() {
+        return stored.sum();
+    }
+
+    public static long getEvicted() {
+        return evicted.sum();
+    }
+
+    public static long getCollapsed() {
+        return collapsed.sum();
+    }
+
+    public static int getEntryCount() {
+        return entries.size();
+    }
+
+    public static long getBytes() {
+        lock.lock();
+        try {
+            return probationBytes + protectedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Relays a response to the client while copying its body aside. Head
+     * bytes pass through uncopied: the body starts at the offset given to
+     * setBodyStart, which the caller learns from HttpHead.encode. The copy
+     * goes into pooled heap buffers; direct memory is only taken when the
+     * complete body is stored, so misses that never make it into the cache
+     * cost no off-heap allocation. Call release when done with it.
+     */
+    public static final class Capture extends OutputStream {
+        private final OutputStream out;
+        private final HttpHead head;
+        private final int length;
+        private final List<ByteBuffer> parts = new ArrayList<>();
+        private int captured;
+        private long position;
+        private long bodyStart = -1;
+
+        private Capture(OutputStream out, HttpHead head, int length) {
+            this.out = out;
+            this.head = head;
+            this.length = length;
+            head.remove("Connection");
+        }
+
+        public void setBodyStart(long offset) {
+            bodyStart = offset;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (bodyStart >= 0) {
+                long from = Math.max(position, bodyStart);
+                long to = Math.min(position + len, bodyStart + length);
+                int at = off + (int) (from - position);
+                int n = (int) Math.max(0, to - from);
+                while (n > 0) {
+                    ByteBuffer part = parts.isEmpty() ? null : parts.get(parts.size() - 1);
+                    if (part == null || !part.hasRemaining()) {
+                        part = BufferPool.acquireHeap();
+                        parts.add(part);
+                    }
+                    int k = Math.min(n, part.remaining());
+                    part.put(b, at, k);
+                    at += k;
+                    n -= k;
+                    captured += k;
+                }
+            }
+            position += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        /** Stores the captured response under key if the whole body came through, then releases. */
+        public void finish(String key, HttpHead request) {
+            try {
+                if (captured < length) return;
+                ByteBuffer body = ByteBuffer.allocateDirect(length);
+                for (ByteBuffer part : parts) {
+                    body.put(part.flip());
+                }
+                store(key, request, head, body.flip().asReadOnlyBuffer());
+            } finally {
+                release();
+            }
+        }
+
+        /** Hands the pooled buffers back; safe to call more than once. */
+        public void release() {
+            for (ByteBuffer part : parts) {
+                BufferPool.release(part);
+            }
+            parts.clear();
+        }
+    }
+
+    private static boolean isStorable(HttpHead response) {
+        switch (response.getStatusCode()) {
+            case 200: case 203: case 204: case 300: case 301: case 308: case 404: case 410:
+                break;
+            default:
+                return false;
+        }
+        if (response.hasToken("Cache-Control", "no-store") || response.hasToken("Cache-Control", "private")) {
+            return false;
+        }
+        if (response.get("Set-Cookie") != null || "*".equals(response.get("Vary"))) {
+            return false;
+        }
+        return freshnessMillis(response, null) > 0 || response.get("ETag") != null
+                || response.get("Last-Modified") != null;
+    }
+
+    private static void store(String key, HttpHead request, HttpHead response, ByteBuffer body) {
+        String vary = response.get("Vary");
+        String[] varyNames = vary == null ? new String[0] : vary.split("\\s*,\\s*");
+        String[] varyValues = new String[varyNames.length];
+        for (int i = 0; i < varyNames.length; i++) {
+            varyValues[i] = request.get(varyNames[i]);
+        }
+
+        Entry entry = new Entry(key, response, body, varyNames, varyValues);
+        entry.bornAt = System.nanoTime() - TimeUnit.SECONDS.toNanos(parseSeconds(response.get("Age")));
+        entry.expiresAt = entry.bornAt + TimeUnit.MILLISECONDS.toNanos(Math.max(0, freshnessMillis(response, null)));
+
+        lock.lock();
+        try {
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                remove(old);
+            }
+            linkFirst(probation, entry);
+            probationBytes += entry.size;
+            while (probationBytes + protectedBytes > maxBytes) {
+                Entry victim = probation.prev != probation ? probation.prev : protectedSegment.prev;
+                if (victim == protectedSegment) break;
+                entries.remove(victim.key, victim);
+                remove(victim);
+                evicted.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+        stored.increment();
+    }
+
+    /**
+     * Freshness lifetime in milliseconds (RFC 9111 4.2.1): s-maxage, max-age,
+     * Expires minus Date, else 10% of the time since Last-Modified. Headers
+     * missing from response are taken from fallback (the stored head on a 304).
+     */
+    private static long freshnessMillis(HttpHead response, HttpHead fallback) {
+        HttpHead source = response.get("Cache-Control") != null || fallback == null ? response : fallback;
+        String cacheControl = source.get("Cache-Control");
+        if (cacheControl != null) {
+            long maxAge = -1;
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-cache")) return 0;
+                if (directive.startsWith("s-maxage=")) {
+                    return TimeUnit.SECONDS.toMillis(parseSeconds(directive.substring(9)));
+                }
+                if (directive.startsWith("max-age=")) {
+                    maxAge = parseSeconds(directive.substring(8));
+                }
+            }
+            if (maxAge >= 0) return TimeUnit.SECONDS.toMillis(maxAge);
+        }
+
+        long date = parseDate(header(response, fallback, "Date"));
+        if (date < 0) date = System.currentTimeMillis();
+        String expires = header(response, fallback, "Expires");
+        if (expires != null) {
+            long at = parseDate(expires);
+            return at < 0 ? 0 : at - date;
+        }
+        long lastModified = parseDate(header(response, fallback, "Last-Modified"));
+        if (lastModified >= 0 && heuristicMaxMillis > 0) {
+            return Math.min(heuristicMaxMillis, (date - lastModified) / 10);
+        }
+        return 0;
+    }
+
+    private static String header(HttpHead head, HttpHead fallback, String name) {
+        String value = head.get(name);
+        return value != null || fallback == null ? value : fallback.get(name);
+    }
+
+    private static long parseDate(String value) {
+        if (value == null) return -1;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) return 0;
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // The list helpers below run under lock
+
+    private static void remove(Entry entry) {
+        if (entry.prev == null) return;
+        unlink(entry);
+        if (entry.inProtected) {
+            protectedBytes -= entry.size;
+        } else {
+            probationBytes -= entry.size;
+        }
+    }
+
+    private static void linkFirst(Entry sentinel, Entry entry) {
+        entry.prev = sentinel;
+        entry.next = sentinel.next;
+        sentinel.next.prev = entry;
+        sentinel.next = entry;
+    }
+
+    private static void unlink(Entry entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+    }
+}
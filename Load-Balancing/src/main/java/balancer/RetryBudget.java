@@ -0,0 +1,84 @@
+package balancer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps retries across the whole balancer so that failover cannot turn a
+ * partial outage into a retry storm. Over a sliding window of ten one-second
+ * buckets, retries may be at most LB_RETRY_BUDGET_RATIO of requests plus
+ * LB_RETRY_BUDGET_MIN_PER_S per second, which keeps failover working at low
+ * traffic. Buckets are recycled without locking; a request counted into a
+ * bucket just as it rolls over may be lost, which is fine for a limit.
+ */
+public class RetryBudget {
+    private static final int WINDOW_SECONDS = 10;
+
+    private static volatile int maxRetries = 2;
+    private static volatile double ratio = 0.2;
+    private static volatile int minPerSecond = 10;
+
+    private final AtomicLongArray epochs = new AtomicLongArray(WINDOW_SECONDS);
+    private final AtomicLongArray requests = new AtomicLongArray(WINDOW_SECONDS);
+    private final AtomicLongArray retries = new AtomicLongArray(WINDOW_SECONDS);
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder denied = new LongAdder();
+
+    /** Applies LB_RETRY_MAX (per request), LB_RETRY_BUDGET_RATIO and LB_RETRY_BUDGET_MIN_PER_S. */
+    public static void configure(LoadBalancerConfig config) {
+        maxRetries = Math.max(0, config.getInt("LB_RETRY_MAX", 2));
+        ratio = Math.max(0.0, config.getDouble("LB_RETRY_BUDGET_RATIO", 0.2));
+        minPerSecond = Math.max(0, config.getInt("LB_RETRY_BUDGET_MIN_PER_S", 10));
+    }
+
+    /** Further attempts allowed for a single request, each on a different node. */
+    public static int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void recordRequest() {
+        requests.incrementAndGet(bucket(currentSecond()));
+    }
+
+    /** Takes one retry from the budget, or returns false if it is spent. */
+    public boolean tryRetry() {
+        long now = currentSecond();
+        long requestCount = 0;
+        long retryCount = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            if (now - epochs.get(i) < WINDOW_SECONDS) {
+                requestCount += requests.get(i);
+                retryCount += retries.get(i);
+            }
+        }
+        if (retryCount >= requestCount * ratio + (double) minPerSecond * WINDOW_SECONDS) {
+            denied.increment();
+            return false;
+        }
+        retries.incrementAndGet(bucket(now));
+        retried.increment();
+        return true;
+    }
+
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    public long getDenied() {
+        return denied.sum();
+    }
+
+    private int bucket(long second) {
+        int i = Math.floorMod(second, WINDOW_SECONDS);
+        long epoch = epochs.get(i);
+        if (epoch != second && epochs.compareAndSet(i, epoch, second)) {
+            requests.set(i, 0);
+            retries.set(i, 0);
+        }
+        return i;
+    }
+
+    private static long currentSecond() {
+        return System.nanoTime() / 1_000_000_000L;
+    }
+}
@@ -0,0 +1,106 @@
+package balancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Smooth weighted round-robin (as in nginx), run once per topology change:
+ * weights 5,1,1 give a,a,b,a,c,a,a rather than a,a,a,a,a,b,c. Selection is
+ * then a single atomic increment and array lookup.
+ */
+public class RoundRobinStrategy implements BalancingStrategy {
+    // Longest precomputed schedule; larger weight totals are scaled down to fit
+    private static final int MAX_SCHEDULE = 1 << 16;
+
+    private final AtomicInteger cursor = new AtomicInteger(0);
+    private volatile Schedule schedule = new Schedule(new ServerNode[0], new int[0]);
+
+    @Override
+    public String getName() {
+        return "round-robin";
+    }
+
+    @Override
+    public void update(ServerNode[] healthy) {
+        schedule = new Schedule(healthy, buildSchedule(healthy));
+    }
+
+    @Override
+    public ServerNode select(ServerNode[] healthy) {
+        Schedule current = schedule;
+        int[] order = current.order;
+        if (order.length == 0) {
+            return null;
+        }
+        ServerNode candidate = current.nodes[order[Math.floorMod(cursor.getAndIncrement(), order.length)]];
+        if (candidate.isAvailable()) {
+            return candidate;
+        }
+        // Went down after this schedule was built; a new one is being published
+        for (ServerNode node : healthy) {
+            if (node.isAvailable()) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /** Weights are reduced by their gcd so the schedule is as short as possible. */
+    static int[] buildSchedule(ServerNode[] nodes) {
+        int n = nodes.length;
+        if (n == 0) return new int[0];
+
+        int[] weights = new int[n];
+        int divisor = 0;
+        for (int i = 0; i < n; i++) {
+            weights[i] = nodes[i].getWeight();
+            divisor = gcd(divisor, weights[i]);
+        }
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            weights[i] /= divisor;
+            total += weights[i];
+        }
+        if (total > MAX_SCHEDULE) {
+            long scaled = 0;
+            for (int i = 0; i < n; i++) {
+                weights[i] = (int) Math.max(1, (long) weights[i] * MAX_SCHEDULE / total);
+                scaled += weights[i];
+            }
+            total = scaled;
+        }
+
+        int[] schedule = new int[(int) total];
+        long[] current = new long[n];
+        for (int step = 0; step < schedule.length; step++) {
+            int best = 0;
+            for (int i = 0; i < n; i++) {
+                current[i] += weights[i];
+                if (current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            schedule[step] = best;
+        }
+        return schedule;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static final class Schedule {
+        final ServerNode[] nodes;
+        final int[] order;
+
+        Schedule(ServerNode[] nodes, int[] order) {
+            this.nodes = nodes;
+            this.order = order;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package balancer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The routing rules of a topology, compiled for lookup. Each rule is a host
+ * (exact, "*.suffix" or any) plus a path prefix and names a pool index. The
+ * prefixes of each host are kept in a radix trie, and the host is found by
+ * hashing, so matching a request costs time in the length of its host and
+ * path however many rules there are. A rule for the request's exact host wins
+ * over a wildcard host, which wins over an any-host rule; within a host the
+ * longest matching prefix wins. Immutable once built.
+ */
+final class RouteTable {
+    static final RouteTable EMPTY = new RouteTable(List.of());
+
+    private final Map<String, Node> exactHosts = new HashMap<>();
+    // Keyed by the suffix with its leading dot: "*.example.com" is stored as ".example.com"
+    private final Map<String, Node> wildcardHosts = new HashMap<>();
+    private final Node anyHost = new Node("");
+    private final int size;
+
+    /** One rule: host null for any host; prefix starts with "/". */
+    static final class Rule {
+        final String host;
+        final String prefix;
+        final int pool;
+
+        Rule(String host, String prefix, int pool) {
+            this.host = host;
+            this.prefix = prefix;
+            this.pool = pool;
+        }
+    }
+
+    /**
+     * Parses a route pattern: "/prefix" for any host (a "*" in front of it
+     * means the same), "host" or "host/prefix", where host may be
+     * "*.suffix". Throws IllegalArgumentException if it is malformed.
+     */
+    static Rule rule(String pattern, int pool) {
+        pattern = pattern.trim();
+        int slash = pattern.indexOf('/');
+        String host = slash < 0 ? pattern : pattern.substring(0, slash);
+        String prefix = slash < 0 ? "/" : pattern.substring(slash);
+        if (host.isEmpty() || host.equals("*")) {
+            host = null;
+        } else {
+            host = normalizeHost(host);
+            if (host.isEmpty() || host.lastIndexOf('*') > 0 || (host.startsWith("*") && !host.startsWith("*."))
+                    || host.indexOf(' ') >= 0) {
+                throw new IllegalArgumentException("Malformed route \"" + pattern + "\"");
+            }
+        }
+        if (prefix.indexOf(' ') >= 0) throw new IllegalArgumentException("Malformed route \"" + pattern + "\"");
+        return new Rule(host, prefix, pool);
+    }
+
+    /** Compiles rules; for a host and prefix listed more than once the first rule counts. */
+    RouteTable(List<Rule> rules) {
+        for (Rule rule : rules) {
+            Node root;
+            if (rule.host == null) {
+                root = anyHost;
+            } else if (rule.host.startsWith("*.")) {
+                root = wildcardHosts.computeIfAbsent(rule.host.substring(1), h -> new Node(""));
+            } else {
+                root = exactHosts.computeIfAbsent(rule.host, h -> new Node(""));
+            }
+            root.insert(rule.prefix, rule.pool);
+        }
+        this.size = rules.size();
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * The pool index for a request, or -1 if no rule matches. host is the
+     * Host header (port and case do not matter) and may be null; target is
+     * the request target, whose query string is ignored.
+     */
+    int match(String host, String target) {
+        String path = pathOf(target);
+        if (host != null && !(exactHosts.isEmpty() && wildcardHosts.isEmpty())) {
+            host = normalizeHost(host);
+            Node root = exactHosts.get(host);
+            if (root != null) {
+                int pool = root.longestMatch(path);
+                if (pool >= 0) return pool;
+            }
+            if (!wildcardHosts.isEmpty()) {
+                // The longest suffix first: a.b.example.com tries .b.example.com, then .example.com, then .com
+                for (int dot = host.indexOf('.'); dot >= 0; dot = host.indexOf('.', dot + 1)) {
+                    root = wildcardHosts.get(host.substring(dot));
+                    if (root != null) {
+                        int pool = root.longestMatch(path);
+                        if (pool >= 0) return pool;
+                    }
+                }
+            }
+        }
+        return anyHost.longestMatch(path);
+    }
+
+    /** Lower case, without the port and a trailing dot; "[v6]" keeps its brackets. */
+    static String normalizeHost(String host) {
+        int end = host.length();
+        int colon = host.lastIndexOf(':');
+        if (colon >= 0 && host.indexOf(']') < colon) {
+            end = colon;
+        }
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            end--;
+        }
+        return host.substring(0, end).trim().toLowerCase(Locale.ROOT);
+    }
+
+    /** The path of an origin-form or absolute-form target, up to the query. */
+    private static String pathOf(String target) {
+        int start = 0;
+        if (!target.startsWith("/")) {
+            int scheme = target.indexOf("://");
+            start = scheme < 0 ? -1 : target.indexOf('/', scheme + 3);
+            if (start < 0) return "/";
+        }
+        int query = target.indexOf('?', start);
+        return start == 0 && query < 0 ? target : target.substring(start, query < 0 ? target.length() : query);
+    }
+
+    /**
+     * A radix trie node: the edge into it is labelled with a whole run of
+     * characters, and children are found by binary search on their first one.
+     */
+    private static final class Node {
+        String label;
+        int pool = -1;
+        char[] firsts = new char[0];
+        Node[] children = new Node[0];
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        void insert(String key, int value) {
+            Node node = this;
+            int i = 0;
+            while (i < key.length()) {
+                int slot = node.find(key.charAt(i));
+                if (slot < 0) {
+                    Node leaf = new Node(key.substring(i));
+                    leaf.pool = value;
+                    node.add(-slot - 1, leaf);
+                    return;
+                }
+                Node child = node.children[slot];
+                int common = 0;
+                int max = Math.min(child.label.length(), key.length() - i);
+                while (common < max && child.label.charAt(common) == key.charAt(i + common)) {
+                    common++;
+                }
+                if (common < child.label.length()) {
+                    // Split the edge where the key leaves it
+                    Node middle = new Node(child.label.substring(0, common));
+                    child.label = child.label.substring(common);
+                    middle.add(0, child);
+                    node.children[slot] = middle;
+                    child = middle;
+                }
+                node = child;
+                i += common;
+            }
+            if (node.pool < 0) {
+                node.pool = value;
+            }
+        }
+
+        int longestMatch(String path) {
+            int best = pool;
+            Node node = this;
+            int i = 0;
+            while (i < path.length()) {
+                int slot = node.find(path.charAt(i));
+                if (slot < 0) break;
+                Node child = node.children[slot];
+                if (!path.startsWith(child.label, i)) break;
+                i += child.label.length();
+                node = child;
+                if (node.pool >= 0) best = node.pool;
+            }
+            return best;
+        }
+
+        private int find(char c) {
+            return Arrays.binarySearch(firsts, c);
+        }
+
+        private void add(int at, Node child) {
+            char[] f = new char[firsts.length + 1];
+            Node[] c = new Node[children.length + 1];
+            System.arraycopy(firsts, 0, f, 0, at);
+            System.arraycopy(children, 0, c, 0, at);
+            f[at] = child.label.charAt(0);
+            c[at] = child;
+            System.arraycopy(firsts, at, f, at + 1, firsts.length - at);
+            System.arraycopy(children, at, c, at + 1, children.length - at);
+            firsts = f;
+            children = c;
+        }
+    }
+}
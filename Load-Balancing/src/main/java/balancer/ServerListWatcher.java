@@ -0,0 +1,243 @@
+package balancer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads servers.txt and, with LB_SERVERS_WATCH, keeps watching it: when the
+ * file changes it is read again and ServerManager.reconcile applies the
+ * difference as one topology change. Added nodes start taking traffic, weight
+ * changes take effect, removed nodes drain, and changed pools and routes
+ * apply in the same step. A file that does not parse, or lists no servers, is
+ * reported and ignored, leaving the running topology as it was.
+ */
+public class ServerListWatcher {
+    private static volatile String fileName = "servers.txt";
+    private static volatile boolean watch = true;
+    private static volatile long settleMillis = 500;
+
+    private final ServerManager serverManager;
+    private final Path file;
+    private volatile WatchService watchService;
+
+    /** One "host:port[:weight]" line and the pool it is listed under. */
+    public static final class Entry {
+        final String host;
+        final int port;
+        final int weight;
+        final String pool;
+
+        Entry(String host, int port, int weight, String pool) {
+            this.host = host;
+            this.port = port;
+            this.weight = weight;
+            this.pool = pool;
+        }
+
+        String getKey() {
+            return host + ":" + port;
+        }
+    }
+
+    /** One "[name]" section's settings; strategy and healthCheck are null when not given. */
+    public static final class PoolConfig {
+        final String name;
+        String strategy;
+        String healthCheck;
+        final List<String> routes = new ArrayList<>();
+
+        PoolConfig(String name) {
+            this.name = name;
+        }
+    }
+
+    /** A parsed server list: the servers, and the pools with the default one first. */
+    public static final class ServerList {
+        final List<Entry> entries;
+        final List<PoolConfig> pools;
+
+        ServerList(List<Entry> entries, List<PoolConfig> pools) {
+            this.entries = entries;
+            this.pools = pools;
+        }
+    }
+
+    public ServerListWatcher(ServerManager serverManager) {
+        this.serverManager = serverManager;
+        this.file = Path.of(fileName).toAbsolutePath();
+    }
+
+    /**
+     * Applies LB_SERVERS_FILE, LB_SERVERS_WATCH and LB_SERVERS_SETTLE_MS (how
+     * long to wait after a change for the writer to finish before reading).
+     */
+    public static void configure(LoadBalancerConfig config) {
+        fileName = config.getString("LB_SERVERS_FILE", "servers.txt");
+        watch = config.getBoolean("LB_SERVERS_WATCH", true);
+        settleMillis = Math.max(0, config.getLong("LB_SERVERS_SETTLE_MS", 500));
+    }
+
+    public static String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Parses a server list: one "host:port" or "host:port:weight" per line,
+     * blank lines and lines starting with # ignored. Servers before the
+     * first section form the default pool; a "[name]" line starts the pool
+     * called name, which can be given "route <pattern>" lines (any number),
+     * a "strategy <name>" and a "health <path or tcp>". Routes may be given
+     * to the default pool too.
+     */
+    public static ServerList read(Path path) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        Map<String, PoolConfig> pools = new LinkedHashMap<>();
+        PoolConfig pool = new PoolConfig(ServerPool.DEFAULT);
+        pools.put(pool.name, pool);
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String where = path.getFileName() + " line " + number + ": ";
+                if (line.startsWith("[")) {
+                    String name = line.endsWith("]") ? line.substring(1, line.length() - 1).trim() : "";
+                    if (!name.matches("[A-Za-z0-9_.-]+")) {
+                        throw new IOException(where + "expected [pool-name], got \"" + line + "\"");
+                    }
+                    pool = pools.computeIfAbsent(name, PoolConfig::new);
+                    continue;
+                }
+                String[] words = line.split("\\s+", 2);
+                if (words.length == 2 && isDirective(words[0])) {
+                    String value = words[1].trim();
+                    switch (words[0]) {
+                        case "route":
+                            try {
+                                RouteTable.rule(value, 0);
+                            } catch (IllegalArgumentException e) {
+                                throw new IOException(where + e.getMessage());
+                            }
+                            pool.routes.add(value);
+                            break;
+                        case "strategy":
+                            if (BalancingStrategy.forName(value) == null) {
+                                throw new IOException(where + "unknown strategy \"" + value + "\"");
+                            }
+                            pool.strategy = value.toLowerCase();
+                            break;
+                        default:
+                            if (!value.equals("tcp") && !value.startsWith("/")) {
+                                throw new IOException(where + "expected a health check path or tcp, got \"" + value + "\"");
+                            }
+                            pool.healthCheck = value;
+                    }
+                    continue;
+                }
+                String[] parts = line.split(":");
+                try {
+                    if (parts.length < 2 || parts.length > 3 || parts[0].isEmpty()) {
+                        throw new NumberFormatException();
+                    }
+                    int port = Integer.parseInt(parts[1].trim());
+                    int weight = parts.length == 3 ? Integer.parseInt(parts[2].trim()) : 1;
+                    if (port < 1 || port > 65535 || weight < 0) throw new NumberFormatException();
+                    entries.add(new Entry(parts[0].trim(), port, weight, pool.name));
+                } catch (NumberFormatException e) {
+                    throw new IOException(where + "expected host:port[:weight], got \"" + line + "\"");
+                }
+            }
+        }
+        return new ServerList(entries, new ArrayList<>(pools.values()));
+    }
+
+    private static boolean isDirective(String word) {
+        return word.equals("route") || word.equals("strategy") || word.equals("health");
+    }
+
+    /** Starts the watch thread if LB_SERVERS_WATCH is on. */
+    public void start() {
+        if (!watch) return;
+        Path directory = file.getParent();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            // Editors often write a new file and rename it over the old one, hence CREATE too
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.err.println("[Topology] Cannot watch " + file + ": " + e.getMessage());
+            return;
+        }
+        Thread thread = new Thread(this::run, "servers-watch");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("[Topology] Watching " + file + " for changes");
+    }
+
+    public void stop() {
+        try {
+            if (watchService != null) watchService.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = touchesFile(key);
+                // Let the writer finish, and fold the burst of events a save produces into one reload
+                while (changed && (key = watchService.poll(settleMillis, TimeUnit.MILLISECONDS)) != null) {
+                    touchesFile(key);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        }
+    }
+
+    private boolean touchesFile(WatchKey key) {
+        boolean touched = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || (context instanceof Path && ((Path) context).equals(file.getFileName()))) {
+                touched = true;
+            }
+        }
+        key.reset();
+        return touched;
+    }
+
+    /** Reads the file and applies it; also callable directly, e.g. from an admin action. */
+    public void reload() {
+        ServerList servers;
+        try {
+            servers = read(file);
+        } catch (IOException e) {
+            System.err.println("[Topology] Ignoring change to " + file.getFileName() + ": " + e.getMessage());
+            return;
+        }
+        if (servers.entries.isEmpty()) {
+            System.err.println("[Topology] Ignoring change to " + file.getFileName() + ": no servers listed");
+            return;
+        }
+        serverManager.reconcile(servers);
+    }
+}
@@ -1,74 +1,433 @@
 package balancer;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ServerManager {
-    private final List<ServerNode> servers;
-    private final List<ServerNode>  weightedList = new ArrayList<>();
-    private final AtomicInteger index = new AtomicInteger(0);
-    private int totalRequests = 0;
-    private final Map<String, Integer> requestCounts = new HashMap<>();
+    private static final ServerNode[] NONE = new ServerNode[0];
 
-    public ServerManager(List<ServerNode> servers) {
-        this.servers = servers;
-        rebuildWeightedList();
+    // Rebuilt under the lock on membership, weight, health and routing changes and published
+    // whole, so getNextServer never blocks and never allocates
+    private volatile Topology topology = new Topology(0,
+            List.of(new ServerPool(ServerPool.DEFAULT, new RoundRobinStrategy(), null, List.of(), NONE, List.of())),
+            RouteTable.EMPTY);
+    // Strategy for pools that do not name one
+    private final String defaultStrategy;
+    private final LongAdder totalRequests = new LongAdder();
+    // ReentrantLock rather than synchronized so virtual threads are not pinned
+    private final ReentrantLock lock = new ReentrantLock();
+    // Set by the factories before the manager is handed out
+    private OutlierDetector outlierDetector;
+    private final RetryBudget retryBudget = new RetryBudget();
+    // Removed nodes whose in-flight exchanges have not finished yet
+    private final List<ServerNode> draining = new CopyOnWriteArrayList<>();
+
+    private ServerManager(BalancingStrategy strategy) {
+        this.defaultStrategy = strategy.getName();
+    }
+
+    public static ServerManager create(List<ServerNode> servers) {
+        return create(servers, new RoundRobinStrategy());
+    }
+
+    /** One default pool holding servers, without routing rules. */
+    public static ServerManager create(List<ServerNode> servers, BalancingStrategy strategy) {
+        ServerManager manager = new ServerManager(strategy);
+        manager.start(servers, strategy);
+        return manager;
     }
 
-    private void rebuildWeightedList() {
-        synchronized(weightedList){
-            weightedList.clear();
+    /** The pools and routes of a parsed servers.txt; strategy serves the pools that do not name one. */
+    public static ServerManager create(ServerListWatcher.ServerList servers, BalancingStrategy strategy) {
+        ServerManager manager = create(List.of(), strategy);
+        manager.lock.lock();
+        try {
+            manager.apply(servers, false);
+        } finally {
+            manager.lock.unlock();
+        }
+        return manager;
+    }
+
+    /**
+     * Wiring that hands this manager to other objects, kept out of the
+     * constructor so none of them can see it half-built.
+     */
+    private void start(List<ServerNode> servers, BalancingStrategy strategy) {
+        outlierDetector = new OutlierDetector(node -> topology.poolOf(node).getNodes());
         for (ServerNode server : servers) {
-            for (int i = 0; i < server.getWeight(); i++) {
-                weightedList.add(server);
+            server.setHealthChangeListener(this::rebuildSnapshot);
+        }
+        publish(List.of(new ServerPool(ServerPool.DEFAULT, strategy, null, servers, NONE, List.of())), RouteTable.EMPTY);
+    }
+
+    private void rebuildSnapshot() {
+        lock.lock();
+        try {
+            publish(topology.getPools(), topology.getRoutes());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Builds and publishes the next topology from pools (whose available
+     * arrays are recomputed) and routes; callers hold the lock (or are
+     * starting the manager).
+     */
+    private void publish(List<ServerPool> pools, RouteTable routes) {
+        List<ServerPool> built = new ArrayList<>(pools.size());
+        for (ServerPool pool : pools) {
+            List<ServerNode> eligible = new ArrayList<>();
+            for (ServerNode server : pool.getNodes()) {
+                server.setHealthCheck(pool.getHealthCheck());
+                if (server.isAvailable() && server.getWeight() > 0) {
+                    eligible.add(server);
+                }
             }
+            ServerNode[] available = eligible.toArray(NONE);
+            pool.getStrategy().update(available);
+            built.add(new ServerPool(pool.getName(), pool.getStrategy(), pool.getHealthCheck(), pool.getNodes(),
+                    available, pool.getRoutes()));
         }
+        topology = new Topology(topology.getVersion() + 1, built, routes);
+    }
+
+    /** Compiles the route patterns of pools, which have already been validated, into a table of pool indexes. */
+    private static RouteTable compileRoutes(List<ServerPool> pools) {
+        List<RouteTable.Rule> rules = new ArrayList<>();
+        for (int i = 0; i < pools.size(); i++) {
+            for (String route : pools.get(i).getRoutes()) {
+                rules.add(RouteTable.rule(route, i));
+            }
         }
+        return rules.isEmpty() ? RouteTable.EMPTY : new RouteTable(rules);
     }
 
-    public synchronized ServerNode getNextServer() {
-        int maxTries = weightedList.size();
-        for(int i =0; i< maxTries ; i++) {
-            int iNext = index.getAndUpdate(j -> (j + 1) % weightedList.size());
-            ServerNode candidate = weightedList.get(iNext);
-            // Check if the candidate server is healthy
-            if(candidate.isHealthy()) {
-                return candidate;
+    /** Picks from the default pool. */
+    public ServerNode getNextServer() {
+        ServerPool pool = topology.getDefaultPool();
+        return pool.getStrategy().select(pool.getAvailable());
+    }
+
+    /**
+     * Routes one request to its pool by Host and path, then lets the pool's
+     * strategy pick, which key-based strategies do by hashing the request;
+     * request may be null, which selects the default pool.
+     */
+    public ServerNode getNextServer(InetAddress client, HttpHead request) {
+        ServerPool pool = topology.route(request);
+        return pool.getStrategy().select(pool.getAvailable(), client, request);
+    }
+
+    /**
+     * Picks a node other than avoid, from avoid's pool, for a retry, or null
+     * if the strategy keeps returning avoid (e.g. it is the only healthy node).
+     */
+    public ServerNode getNextServer(ServerNode avoid) {
+        ServerPool pool = topology.poolOf(avoid);
+        ServerNode[] nodes = pool.getAvailable();
+        for (int i = 0; i < Math.min(nodes.length, 4); i++) {
+            ServerNode node = pool.getStrategy().select(nodes);
+            if (node != avoid) return node;
+        }
+        for (ServerNode node : nodes) {
+            if (node != avoid && node.isAvailable()) return node;
+        }
+        return null;
+    }
+
+    /**
+     * Takes an in-flight slot on preferred or, if it is at its concurrency
+     * limit, on any other available node of its pool except avoid. Returns
+     * the node now counted as active, or null if every candidate is full.
+     */
+    public ServerNode tryAcquire(ServerNode preferred, ServerNode avoid) {
+        if (preferred != avoid && preferred.tryIncrementActive()) return preferred;
+        ServerNode[] nodes = topology.poolOf(preferred).getAvailable();
+        int start = nodes.length > 1 ? ThreadLocalRandom.current().nextInt(nodes.length) : 0;
+        for (int i = 0; i < nodes.length; i++) {
+            ServerNode node = nodes[(start + i) % nodes.length];
+            if (node != preferred && node != avoid && node.isAvailable() && node.tryIncrementActive()) {
+                return node;
             }
-            // If the candidate is not healthy, we need to skip it
         }
-        return null; // No healthy server found
+        return null;
     }
 
-    public synchronized List<ServerNode> getAllServers() {
-        return servers;
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
     }
-    
-    public synchronized void recordRequest(ServerNode node) {
-        totalRequests++;
-        String key = node.getHost() + ":" + node.getPort();
-        requestCounts.put(key, requestCounts.getOrDefault(key, 0) + 1);
+
+    /** The default pool's strategy. */
+    public BalancingStrategy getStrategy() {
+        return topology.getDefaultPool().getStrategy();
+    }
+
+    /** Switches the default pool's balancing strategy at runtime; in-flight requests are unaffected. */
+    public void setStrategy(BalancingStrategy newStrategy) {
+        setStrategy(ServerPool.DEFAULT, newStrategy);
     }
 
-    public int getTotalRequests() {
-        return totalRequests;
+    /** Switches one pool's strategy; false if there is no such pool. */
+    public boolean setStrategy(String poolName, BalancingStrategy newStrategy) {
+        lock.lock();
+        try {
+            List<ServerPool> pools = new ArrayList<>(topology.getPools());
+            for (int i = 0; i < pools.size(); i++) {
+                ServerPool pool = pools.get(i);
+                if (pool.getName().equals(poolName)) {
+                    pools.set(i, new ServerPool(pool.getName(), newStrategy, pool.getHealthCheck(), pool.getNodes(),
+                            NONE, pool.getRoutes()));
+                    publish(pools, topology.getRoutes());
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public Map<String, Integer> getRequestCounts() {
-        return new HashMap<>(requestCounts);
+    /** Every configured node of every pool in the current topology; an unmodifiable snapshot. */
+    public List<ServerNode> getAllServers() {
+        return topology.getNodes();
     }
 
-    public synchronized void addServer(String host, int port, int weight) {
-        ServerNode node = new ServerNode(host, port, weight);
-        servers.add(node);
-        rebuildWeightedList();
+    public Topology getTopology() {
+        return topology;
     }
-    
-    public synchronized void removeServerByKey(String key) {
-        servers.removeIf(s -> (s.getHost() + ":" + s.getPort()).equals(key));
-        rebuildWeightedList();
+
+    /** The pools of the current topology, the default one first. */
+    public List<ServerPool> getPools() {
+        return topology.getPools();
+    }
+
+    /** Nodes removed from the topology that still have exchanges in flight. */
+    public List<ServerNode> getDraining() {
+        return draining;
+    }
+
+    public void recordRequest(ServerNode node) {
+        totalRequests.increment();
+        node.recordRequest();
+    }
+
+    /** Feeds passive outlier detection with the status of a proxied response. */
+    public void recordResponse(ServerNode node, int status) {
+        outlierDetector.onResponse(node, status);
+    }
+
+    /** Feeds passive outlier detection with a failed exchange (connect or I/O error). */
+    public void recordFailure(ServerNode node) {
+        node.getMetrics().recordError();
+        node.getConcurrencyLimit().onDrop();
+        outlierDetector.onFailure(node);
+    }
+
+    public long getTotalRequests() {
+        return totalRequests.sum();
+    }
+
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        for (ServerNode server : topology.getNodes()) {
+            counts.put(server.getKey(), server.getRequestCount());
+        }
+        return counts;
+    }
+
+    /** Adds a node to the default pool, or changes the weight of the node already at host:port. */
+    public void addServer(String host, int port, int weight) {
+        addServer(ServerPool.DEFAULT, host, port, weight);
+    }
+
+    /**
+     * Adds a node to the named pool, or changes the weight of the node
+     * already at host:port and moves it there. False if there is no such pool.
+     */
+    public boolean addServer(String poolName, String host, int port, int weight) {
+        lock.lock();
+        try {
+            Topology current = topology;
+            if (current.getPool(poolName) == null) return false;
+            String key = host + ":" + port;
+            ServerNode node = null;
+            for (ServerNode existing : current.getNodes()) {
+                if (existing.getKey().equals(key)) node = existing;
+            }
+            if (node == null) {
+                node = new ServerNode(host, port, weight);
+                node.setHealthChangeListener(this::rebuildSnapshot);
+            } else {
+                node.setWeight(weight);
+            }
+            List<ServerPool> pools = new ArrayList<>();
+            for (ServerPool pool : current.getPools()) {
+                List<ServerNode> nodes = new ArrayList<>(pool.getNodes());
+                nodes.remove(node);
+                if (pool.getName().equals(poolName)) nodes.add(node);
+                pools.add(new ServerPool(pool.getName(), pool.getStrategy(), pool.getHealthCheck(), nodes, NONE,
+                        pool.getRoutes()));
+            }
+            publish(pools, current.getRoutes());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void removeServerByKey(String key) {
+        lock.lock();
+        try {
+            List<ServerPool> pools = new ArrayList<>();
+            List<ServerNode> removed = new ArrayList<>();
+            for (ServerPool pool : topology.getPools()) {
+                List<ServerNode> kept = new ArrayList<>();
+                for (ServerNode s : pool.getNodes()) {
+                    (s.getKey().equals(key) ? removed : kept).add(s);
+                }
+                pools.add(new ServerPool(pool.getName(), pool.getStrategy(), pool.getHealthCheck(), kept, NONE,
+                        pool.getRoutes()));
+            }
+            publish(pools, topology.getRoutes());
+            removed.forEach(this::drain);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends requests matching pattern to the named pool, replacing any rule
+     * with the same pattern; a null pool removes the rule. Returns false if
+     * there is no such pool or rule. Throws IllegalArgumentException for a
+     * malformed pattern. The file wins again at its next reload.
+     */
+    public boolean setRoute(String pattern, String poolName) {
+        String normalized = pattern.trim();
+        RouteTable.rule(normalized, 0);
+        lock.lock();
+        try {
+            Topology current = topology;
+            if (poolName != null && current.getPool(poolName) == null) return false;
+            boolean found = false;
+            List<ServerPool> pools = new ArrayList<>();
+            for (ServerPool pool : current.getPools()) {
+                List<String> routes = new ArrayList<>(pool.getRoutes());
+                found |= routes.remove(normalized);
+                if (pool.getName().equals(poolName)) routes.add(normalized);
+                pools.add(new ServerPool(pool.getName(), pool.getStrategy(), pool.getHealthCheck(), pool.getNodes(),
+                        NONE, routes));
+            }
+            if (poolName == null && !found) return false;
+            publish(pools, compileRoutes(pools));
+            System.out.println("[Routing] " + normalized + (poolName == null ? " removed" : " -> " + poolName));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the topology match a server list in one step: listed nodes that
+     * are new are added, known ones keep their state and take the listed
+     * weight and pool, nodes no longer listed are drained, and pools and
+     * routes are replaced by the listed ones. A pool keeps its strategy
+     * instance unless the list names a different one.
+     */
+    public void reconcile(ServerListWatcher.ServerList servers) {
+        lock.lock();
+        try {
+            apply(servers, true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void apply(ServerListWatcher.ServerList servers, boolean announce) {
+        Topology current = topology;
+        Map<String, ServerNode> known = new HashMap<>();
+        for (ServerNode node : current.getNodes()) {
+            known.put(node.getKey(), node);
+        }
+        Map<String, List<ServerNode>> members = new HashMap<>();
+        Map<String, String> listed = new HashMap<>();
+        int added = 0;
+        int reweighted = 0;
+        int moved = 0;
+        for (ServerListWatcher.Entry entry : servers.entries) {
+            // A server listed twice, even under different pools, keeps its first line
+            String first = listed.putIfAbsent(entry.getKey(), entry.pool);
+            if (first != null) {
+                if (!first.equals(entry.pool)) {
+                    System.err.println("[Topology] " + entry.getKey() + " is listed in pools " + first + " and "
+                            + entry.pool + "; it stays in " + first);
+                }
+                continue;
+            }
+            ServerNode node = known.remove(entry.getKey());
+            if (node == null) {
+                node = new ServerNode(entry.host, entry.port, entry.weight);
+                node.setHealthChangeListener(this::rebuildSnapshot);
+                added++;
+            } else {
+                if (node.getWeight() != entry.weight) {
+                    node.setWeight(entry.weight);
+                    reweighted++;
+                }
+                if (!current.poolOf(node).getName().equals(entry.pool)) moved++;
+            }
+            members.computeIfAbsent(entry.pool, p -> new ArrayList<>()).add(node);
+        }
+
+        List<ServerPool> pools = new ArrayList<>();
+        boolean poolsChanged = servers.pools.size() != current.getPools().size();
+        for (ServerListWatcher.PoolConfig config : servers.pools) {
+            ServerPool old = current.getPool(config.name);
+            BalancingStrategy strategy;
+            if (old != null && (config.strategy == null || config.strategy.equals(old.getStrategy().getName()))) {
+                strategy = old.getStrategy();
+            } else {
+                strategy = BalancingStrategy.forName(config.strategy != null ? config.strategy : defaultStrategy);
+            }
+            // Routes point at pools by position, so a reordered list recompiles them too
+            poolsChanged |= old == null || current.getPools().indexOf(old) != pools.size() || strategy != old.getStrategy()
+                    || !Objects.equals(config.healthCheck, old.getHealthCheck()) || !config.routes.equals(old.getRoutes());
+            pools.add(new ServerPool(config.name, strategy, config.healthCheck,
+                    members.getOrDefault(config.name, List.of()), NONE, config.routes));
+        }
+        if (added == 0 && reweighted == 0 && moved == 0 && known.isEmpty() && !poolsChanged) return;
+
+        publish(pools, poolsChanged ? compileRoutes(pools) : current.getRoutes());
+        if (announce) {
+            System.out.println("[Topology] Version " + topology.getVersion() + ": " + added + " added, "
+                    + known.size() + " removed, " + reweighted + " reweighted" + (moved > 0 ? ", " + moved + " moved" : ""));
+        }
+        if (poolsChanged && (announce || pools.size() > 1 || topology.getRoutes().size() > 0)) {
+            System.out.println("[Routing] " + pools.size() + " pool(s), " + topology.getRoutes().size() + " route(s)");
+        }
+        known.values().forEach(this::drain);
+    }
+
+    /**
+     * Out of the published topology, so no new exchanges start on it; its
+     * pool closes once the ones in flight have finished.
+     */
+    private void drain(ServerNode node) {
+        node.setHealthChangeListener(null);
+        draining.add(node);
+        node.drain(() -> {
+            node.getConnectionPool().close();
+            outlierDetector.forget(node);
+            draining.remove(node);
+            System.out.println("[Topology] " + node.getKey() + " drained");
+        });
     }
-    
 }
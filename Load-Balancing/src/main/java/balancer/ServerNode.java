@@ -1,15 +1,39 @@
 package balancer;
-public class ServerNode {
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class ServerNode {
     private final String host;
     private final int port;
-    private final int weight;
+    // Changed only through ServerManager, which republishes the topology for the strategies
+    private volatile int weight;
+    private final String key;
     private volatile boolean healthy = true;
+    private volatile boolean ejected = false;
+    // Set from the node's pool when a topology is published; null uses the LB_HEALTH_* defaults
+    private volatile String healthCheck;
+    private volatile Runnable healthChangeListener;
+    // Set once the node has left the topology; runs when its last exchange ends
+    private final AtomicReference<Runnable> drainAction = new AtomicReference<>();
+    // Out of the topology for good: no new exchanges, even from callers that picked it earlier
+    private volatile boolean retired;
+    private final NodeMetrics metrics = new NodeMetrics();
+    private final AtomicInteger activeConnections = new AtomicInteger(0);
+    // In-flight total of the consistent-hash ring the node is on, if any, moved along with activeConnections
+    private volatile LongAdder ringActive;
+    private final PeakEwma ttfbEwma = new PeakEwma(true);
+    private final PeakEwma responseEwma = new PeakEwma(false);
+    private final ConcurrencyLimit concurrencyLimit = new ConcurrencyLimit();
     private Process process;
+    private final BackendConnectionPool connectionPool = new BackendConnectionPool(this);
 
     public ServerNode(String host, int port, int weight) {
         this.host = host;
         this.port = port;
         this.weight = weight;
+        this.key = host + ":" + port;
     }
 
     public void setProcess(Process process) {
@@ -36,14 +60,172 @@ public class ServerNode {
         return weight;
     }
 
+    void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    /** Health check path, "tcp", or null for the LB_HEALTH_* defaults. */
+    public String getHealthCheck() {
+        return healthCheck;
+    }
+
+    void setHealthCheck(String healthCheck) {
+        this.healthCheck = healthCheck;
+    }
+
+    /** "host:port", the identifier used by servers.txt and the admin API. */
+    public String getKey() {
+        return key;
+    }
+
+    public void recordRequest() {
+        metrics.recordRequest();
+    }
+
+    public long getRequestCount() {
+        return metrics.getRequests();
+    }
+
+    public NodeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Call around every proxied exchange; feeds the least-connections strategies. */
+    public void incrementActive() {
+        activeConnections.incrementAndGet();
+        LongAdder ring = ringActive;
+        if (ring != null) ring.increment();
+    }
+
+    /**
+     * incrementActive, unless the node is already at its ConcurrencyLimit or
+     * has been drained out of the topology.
+     */
+    public boolean tryIncrementActive() {
+        int limit = concurrencyLimit.get();
+        while (true) {
+            int current = activeConnections.get();
+            if (current >= limit) return false;
+            if (activeConnections.compareAndSet(current, current + 1)) {
+                // Checked after the increment: drain() sets the flag before reading the count,
+                // so either it waits for this exchange or this one backs out
+                if (retired) {
+                    if (activeConnections.decrementAndGet() == 0 && drainAction.get() != null) {
+                        runDrainAction();
+                    }
+                    return false;
+                }
+                LongAdder ring = ringActive;
+                if (ring != null) ring.increment();
+                return true;
+            }
+        }
+    }
+
+    public void decrementActive() {
+        int remaining = activeConnections.decrementAndGet();
+        LongAdder ring = ringActive;
+        if (ring != null) ring.decrement();
+        AdmissionControl.onRelease();
+        if (remaining == 0 && drainAction.get() != null) {
+            runDrainAction();
+        }
+    }
+
+    /** Set by ConsistentHashStrategy each time it rebuilds a ring with this node on it. */
+    void setRingActive(LongAdder counter) {
+        ringActive = counter;
+    }
+
+    /**
+     * Called once the node is out of the topology: onDrained runs when the
+     * exchanges still in flight have finished, or right away if there are none.
+     */
+    void drain(Runnable onDrained) {
+        retired = true;
+        drainAction.set(onDrained);
+        if (activeConnections.get() == 0) {
+            runDrainAction();
+        }
+    }
+
+    public boolean isDraining() {
+        return drainAction.get() != null;
+    }
+
+    private void runDrainAction() {
+        Runnable action = drainAction.getAndSet(null);
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /** Records time-to-first-byte and total response time of one proxied exchange. */
+    public void recordLatency(long ttfbNanos, long totalNanos) {
+        ttfbEwma.record(ttfbNanos);
+        responseEwma.record(totalNanos);
+        concurrencyLimit.onSample(ttfbNanos, activeConnections.get());
+        metrics.recordResponseTime(totalNanos);
+    }
+
+    public PeakEwma getTtfbEwma() {
+        return ttfbEwma;
+    }
+
+    public PeakEwma getResponseEwma() {
+        return responseEwma;
+    }
+
+    public ConcurrencyLimit getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public BackendConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
     public boolean isHealthy() {
         return healthy;
     }
     public void setHealthy(boolean healthy) {
+        boolean changed = this.healthy != healthy;
         this.healthy = healthy;
+        Runnable listener = healthChangeListener;
+        if (changed && listener != null) {
+            listener.run();
+        }
     }
+
+    /** Taken out of rotation by passive outlier detection, independently of health checks. */
+    public boolean isEjected() {
+        return ejected;
+    }
+
+    public void setEjected(boolean ejected) {
+        boolean changed = this.ejected != ejected;
+        this.ejected = ejected;
+        Runnable listener = healthChangeListener;
+        if (changed && listener != null) {
+            listener.run();
+        }
+    }
+
+    /** Healthy and not ejected: eligible for new requests. */
+    public boolean isAvailable() {
+        return healthy && !ejected;
+    }
+
+    void setHealthChangeListener(Runnable listener) {
+        this.healthChangeListener = listener;
+    }
+
     @Override
     public String toString() {
-        return host + ":" + port + "(weight" + weight + ")" + (healthy ? " (healthy)" : " (unhealthy)");
+        return host + ":" + port + "(weight" + weight + ")" + (healthy ? " (healthy)" : " (unhealthy)")
+                + (ejected ? " (ejected)" : "");
     }
 }
@@ -0,0 +1,59 @@
+package balancer;
+
+import java.util.List;
+
+/**
+ * One named group of backends within a topology, with the strategy that
+ * balances across it and, optionally, a health check of its own. Requests
+ * reach a pool through the routing rules; the "default" pool takes everything
+ * no rule matches. Immutable: ServerManager builds new pools with every
+ * topology it publishes, carrying the strategy instance (and its state) over.
+ */
+public final class ServerPool {
+    public static final String DEFAULT = "default";
+
+    private final String name;
+    private final BalancingStrategy strategy;
+    private final String healthCheck;
+    private final List<ServerNode> nodes;
+    private final ServerNode[] available;
+    private final List<String> routes;
+
+    ServerPool(String name, BalancingStrategy strategy, String healthCheck, List<ServerNode> nodes,
+               ServerNode[] available, List<String> routes) {
+        this.name = name;
+        this.strategy = strategy;
+        this.healthCheck = healthCheck;
+        this.nodes = List.copyOf(nodes);
+        this.available = available;
+        this.routes = List.copyOf(routes);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public BalancingStrategy getStrategy() {
+        return strategy;
+    }
+
+    /** Health check path, "tcp", or null for the LB_HEALTH_* defaults. */
+    public String getHealthCheck() {
+        return healthCheck;
+    }
+
+    /** Members in servers.txt order; unmodifiable. */
+    public List<ServerNode> getNodes() {
+        return nodes;
+    }
+
+    /** Healthy, non-ejected members with weight; shared, so callers must not modify it. */
+    ServerNode[] getAvailable() {
+        return available;
+    }
+
+    /** Route patterns ("host/prefix", "/prefix", "*.suffix/prefix") that lead here, as configured. */
+    public List<String> getRoutes() {
+        return routes;
+    }
+}
@@ -0,0 +1,326 @@
+package balancer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Request coalescing for the thread engine. While a GET or HEAD is waiting
+ * for its backend, identical requests (same method, host, target and
+ * LB_COALESCE_VARY header values) do not go to a backend themselves: they
+ * follow the first one and receive a copy of its response, streamed to them
+ * as the leader relays it. Followers can join until the response head
+ * arrives; after that a new request starts a new flight.
+ *
+ * The body is retained in memory until the flight ends, up to
+ * LB_COALESCE_MAX_BYTES. A larger response is not shared: followers that
+ * have not written anything yet send their own request instead, and ones
+ * already part-way through are cut off.
+ */
+public final class SingleFlight {
+    private static volatile boolean enabled = false;
+    private static volatile String[] varyHeaders = { "Accept", "Accept-Encoding", "Authorization", "Cookie" };
+    private static volatile long maxBytes = 8L * 1024 * 1024;
+    private static volatile long waitMillis = 30000;
+
+    private static final Map<String, Flight> flights = new ConcurrentHashMap<>();
+    private static final LongAdder led = new LongAdder();
+    private static final LongAdder followed = new LongAdder();
+
+    private SingleFlight() {}
+
+    /**
+     * Applies LB_COALESCE (on/off), LB_COALESCE_VARY (request headers that
+     * must match too), LB_COALESCE_MAX_BYTES and LB_COALESCE_WAIT_MS (how
+     * long a follower waits for the leader's response head).
+     */
+    public static void configure(LoadBalancerConfig config) {
+        enabled = config.getBoolean("LB_COALESCE", false);
+        varyHeaders = Arrays.stream(config.getString("LB_COALESCE_VARY", "Accept,Accept-Encoding,Authorization,Cookie")
+                .split(",")).map(String::trim).filter(s -> !s.isEmpty()).toArray(String[]::new);
+        maxBytes = Math.max(0, config.getLong("LB_COALESCE_MAX_BYTES", 8L * 1024 * 1024));
+        waitMillis = Math.max(0, config.getLong("LB_COALESCE_WAIT_MS", 30000));
+        if (enabled) {
+            System.out.println("[Coalesce] Enabled, varying on " + String.join(", ", varyHeaders));
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Identity of a request for coalescing, or null if it must not be shared. */
+    public static String keyFor(HttpHead request, HttpParser framing) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) return null;
+        if (framing.getBodyLength() != 0) return null;
+        // Partial and conditional requests may get a 206 or 304 that a plain GET must never be sent
+        if (request.get("Range") != null || request.get("If-Range") != null
+                || request.get("If-None-Match") != null || request.get("If-Modified-Since") != null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(64).append(method).append(' ');
+        String host = request.get("Host");
+        key.append(host == null ? "" : host.toLowerCase()).append(request.getTarget());
+        for (String name : varyHeaders) {
+            String value = request.get(name);
+            key.append('\n').append(value == null ? "" : value);
+        }
+        return key.toString();
+    }
+
+    /** The flight the caller can follow, or null. */
+    public static Flight follow(String key) {
+        Flight flight = flights.get(key);
+        if (flight == null || !flight.addFollower()) return null;
+        followed.increment();
+        return flight;
+    }
+
+    /** Starts a flight the caller leads and must finish, or null if one just started. */
+    public static Flight lead(String key) {
+        Flight flight = new Flight(key);
+        if (flights.putIfAbsent(key, flight) != null) return null;
+        led.increment();
+        return flight;
+    }
+
+    public static long getLed() {
+        return led.sum();
+    }
+
+    public static long getFollowed() {
+        return followed.sum();
+    }
+
+    /** One backend exchange shared by a leader and any number of followers. */
+    public static final class Flight {
+        private final String key;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        // All guarded by lock
+        private boolean joinable = true;
+        private HttpHead head;
+        private boolean untilClose;
+        private final List<byte[]> chunks = new ArrayList<>();
+        private long bytes;
+        private boolean complete;
+        private boolean done;
+        private boolean failed;
+
+        private Flight(String key) {
+            this.key = key;
+        }
+
+        private boolean addFollower() {
+            lock.lock();
+            try {
+                return joinable;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Leader: shares the response head and returns the stream its response
+         * should be relayed through. The head is copied, so the leader may
+         * change its own afterwards.
+         */
+        public Tee publish(HttpHead response, HttpParser framing, OutputStream out) {
+            lock.lock();
+            try {
+                joinable = false;
+                flights.remove(key, this);
+                head = response.copy();
+                head.remove("Connection");
+                untilClose = framing.getBodyLength() == HttpParser.UNTIL_CLOSE;
+                if (framing.getBodyLength() > maxBytes || response.get("Set-Cookie") != null
+                        || response.hasToken("Cache-Control", "private")) {
+                    // Too big or meant for one client only; followers send their own requests
+                    failed = true;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            return new Tee(out);
+        }
+
+        /** Leader: the whole response went through. */
+        public void complete() {
+            lock.lock();
+            try {
+                complete = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Leader: always called at the end, in a finally block. */
+        public void finish() {
+            lock.lock();
+            try {
+                joinable = false;
+                flights.remove(key, this);
+                done = true;
+                if (!complete) failed = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Follower: writes the shared response to out. Returns the number of
+         * bytes written, or -1 if nothing was written and the caller should
+         * send its own request. Throws if the flight broke off part-way. The
+         * body is compressed on the way if coding is not null and Compression
+         * takes the response.
+         */
+        public long relay(OutputStream out, ByteBuffer scratch, boolean keepAlive, String coding)
+                throws IOException {
+            HttpHead shared;
+            lock.lock();
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+                while (head == null && !done) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) return -1;
+                    changed.awaitNanos(remaining);
+                }
+                if (head == null || (failed && bytes == 0 && !complete)) return -1;
+                shared = head.copy();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            } finally {
+                lock.unlock();
+            }
+
+            shared.set("Connection", keepAlive && !untilClose ? "keep-alive" : "close");
+            Compression.Encoder encoder = Compression.encoder(coding, shared, out);
+            try {
+                if (encoder != null) {
+                    encoder.rewrite(shared);
+                    out = encoder;
+                }
+                long written = shared.encode(scratch, out);
+                if (encoder != null) {
+                    encoder.setBodyStart(written);
+                }
+                HttpHead.flush(scratch, out);
+                written += relayChunks(out);
+                return encoder != null ? encoder.finish() : written;
+            } finally {
+                if (encoder != null) encoder.close();
+            }
+        }
+
+        private long relayChunks(OutputStream out) throws IOException {
+            long written = 0;
+            for (int next = 0; ; next++) {
+                byte[] chunk;
+                lock.lock();
+                try {
+                    while (next == chunks.size() && !done && !failed) {
+                        changed.await();
+                    }
+                    if (failed) throw new IOException("Coalesced response was cut off");
+                    if (next == chunks.size()) break;
+                    chunk = chunks.get(next);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted following a coalesced response");
+                } finally {
+                    lock.unlock();
+                }
+                out.write(chunk);
+                written += chunk.length;
+            }
+            return written;
+        }
+
+        public int getStatus() {
+            lock.lock();
+            try {
+                return head == null ? 0 : head.getStatusCode();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Whether followers must close their connection after the response. */
+        public boolean isUntilClose() {
+            lock.lock();
+            try {
+                return untilClose;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void append(byte[] b, int off, int len) {
+            lock.lock();
+            try {
+                if (failed) return;
+                bytes += len;
+                if (bytes > maxBytes) {
+                    failed = true;
+                    chunks.clear();
+                } else {
+                    chunks.add(Arrays.copyOfRange(b, off, off + len));
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Relays the leader's response while handing its body bytes to the
+         * followers; head bytes are skipped up to the offset given to setBodyStart.
+         */
+        public final class Tee extends OutputStream {
+            private final OutputStream out;
+            private long position;
+            private long bodyStart = -1;
+
+            private Tee(OutputStream out) {
+                this.out = out;
+            }
+
+            public void setBodyStart(long offset) {
+                bodyStart = offset;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                if (bodyStart >= 0 && position + len > bodyStart) {
+                    int skip = (int) Math.max(0, bodyStart - position);
+                    append(b, off + skip, len - skip);
+                }
+                position += len;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+        }
+    }
+}
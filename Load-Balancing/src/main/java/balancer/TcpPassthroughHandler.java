@@ -0,0 +1,161 @@
+package balancer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Layer-4 counterpart of ClientHandler for passthrough listeners (LB_LISTEN
+ * entries ending in "/tcp"). A backend is picked once per connection and the
+ * bytes are then relayed in both directions at once without being parsed, so
+ * any TCP protocol works: databases, gRPC, TLS passthrough. This thread copies
+ * client to backend while a second one copies backend to client; when one
+ * side shuts down its output the other side's output is shut down in turn,
+ * so half-closes pass through and the connection ends once both directions
+ * have.
+ */
+public class TcpPassthroughHandler implements Runnable {
+    private final Socket clientSocket;
+    private final ServerManager serverManager;
+
+    public TcpPassthroughHandler(Socket clientSocket, ServerManager serverManager) {
+        this.clientSocket = clientSocket;
+        this.serverManager = serverManager;
+    }
+
+    @Override
+    public void run() {
+        InetAddress clientAddress = clientSocket.getInetAddress();
+        ServerNode node = null;
+        Socket backend = null;
+        try {
+            Listeners.configure(clientSocket);
+            // Not HTTP, so a limited or shed connection can only be closed
+            if (RateLimiter.isEnabled() && RateLimiter.check(clientAddress, null) > 0) return;
+
+            RetryBudget budget = serverManager.getRetryBudget();
+            budget.recordRequest();
+            ServerNode target = serverManager.getNextServer(clientAddress, null);
+            if (target == null) {
+                System.err.println("No healthy backend servers available.");
+                return;
+            }
+            node = serverManager.tryAcquire(target, null);
+            if (node == null) {
+                node = AdmissionControl.await(() -> serverManager.tryAcquire(target, null));
+                if (node == null) return;
+            }
+
+            // Nothing has been relayed before the connect succeeds, so a failed one can move to another node
+            for (int attempt = 0; ; attempt++) {
+                serverManager.recordRequest(node);
+                try {
+                    backend = connect(node);
+                    break;
+                } catch (IOException e) {
+                    System.err.println("Error handling client request: " + e.getMessage());
+                    serverManager.recordFailure(node);
+                    ServerNode next = attempt < RetryBudget.getMaxRetries() ? serverManager.getNextServer(node) : null;
+                    next = next != null && budget.tryRetry() ? serverManager.tryAcquire(next, node) : null;
+                    node.decrementActive();
+                    node = next;
+                    if (node == null) return;
+                }
+            }
+            relay(backend, node);
+        } catch (IOException e) {
+            System.err.println("Error handling client request: " + e.getMessage());
+            if (node != null) {
+                node.getMetrics().recordError();
+            }
+        } finally {
+            closeQuietly(clientSocket);
+            closeQuietly(backend);
+            if (node != null) {
+                node.decrementActive();
+            }
+        }
+    }
+
+    private static Socket connect(ServerNode node) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(node.getHost(), node.getPort()),
+                    BackendConnectionPool.getConnectTimeoutMillis());
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw new IOException("Cannot connect to " + node.getKey() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void relay(Socket backend, ServerNode node) throws IOException {
+        long[] received = new long[1];
+        IOException[] failure = new IOException[1];
+        Thread downstream = Thread.ofVirtual().name("tcp-downstream").start(() -> {
+            try {
+                received[0] = pump(backend, clientSocket);
+            } catch (IOException e) {
+                failure[0] = e;
+                // Unblocks the upstream read
+                closeQuietly(clientSocket);
+                closeQuietly(backend);
+            }
+        });
+
+        long sent = 0;
+        try {
+            sent = pump(clientSocket, backend);
+        } catch (IOException e) {
+            if (failure[0] == null && !clientSocket.isClosed()) {
+                failure[0] = e;
+            }
+            closeQuietly(clientSocket);
+            closeQuietly(backend);
+        }
+        try {
+            downstream.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeQuietly(backend);
+        }
+        node.getMetrics().recordBytes(sent, received[0]);
+        if (failure[0] != null) throw failure[0];
+    }
+
+    /**
+     * Copies from one socket to the other until end of stream, then shuts
+     * down the receiving side's output so it sees the end too. Returns the
+     * number of bytes copied.
+     */
+    private static long pump(Socket from, Socket to) throws IOException {
+        ByteBuffer buffer = BufferPool.acquireHeap();
+        try {
+            byte[] bytes = buffer.array();
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            long total = 0;
+            int n;
+            while ((n = in.read(bytes, 0, bytes.length)) >= 0) {
+                out.write(bytes, 0, n);
+                total += n;
+            }
+            to.shutdownOutput();
+            return total;
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
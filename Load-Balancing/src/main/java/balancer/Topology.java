@@ -0,0 +1,82 @@
+package balancer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One immutable view of the backends: the pools with every configured node
+ * and the ones currently eligible for traffic, plus the compiled routing
+ * rules that lead requests to the pools. ServerManager builds a new one under
+ * its lock whenever membership, weights, health, ejection or routing change
+ * and publishes it with a single volatile write, so readers on the hot path
+ * see either the old topology or the new one, never a mix, and never need a
+ * lock.
+ */
+public final class Topology {
+    private final long version;
+    private final List<ServerNode> nodes;
+    // The default pool comes first
+    private final List<ServerPool> pools;
+    private final RouteTable routes;
+    private final Map<ServerNode, ServerPool> membership = new IdentityHashMap<>();
+
+    Topology(long version, List<ServerPool> pools, RouteTable routes) {
+        this.version = version;
+        this.pools = List.copyOf(pools);
+        this.routes = routes;
+        List<ServerNode> all = new ArrayList<>();
+        for (ServerPool pool : pools) {
+            for (ServerNode node : pool.getNodes()) {
+                all.add(node);
+                membership.put(node, pool);
+            }
+        }
+        this.nodes = List.copyOf(all);
+    }
+
+    /** Increases with every published change. */
+    public long getVersion() {
+        return version;
+    }
+
+    /** Every configured node of every pool, in servers.txt order; unmodifiable. */
+    public List<ServerNode> getNodes() {
+        return nodes;
+    }
+
+    /** All pools, the default one first; unmodifiable. */
+    public List<ServerPool> getPools() {
+        return pools;
+    }
+
+    public ServerPool getDefaultPool() {
+        return pools.get(0);
+    }
+
+    /** The pool called name, or null. */
+    public ServerPool getPool(String name) {
+        for (ServerPool pool : pools) {
+            if (pool.getName().equals(name)) return pool;
+        }
+        return null;
+    }
+
+    RouteTable getRoutes() {
+        return routes;
+    }
+
+    /** The pool a request is routed to; the default pool when request is null or no rule matches. */
+    ServerPool route(HttpHead request) {
+        if (request == null || routes.size() == 0) return pools.get(0);
+        int index = routes.match(request.get("Host"), request.getTarget());
+        return pools.get(index < 0 ? 0 : index);
+    }
+
+    /** The pool node belongs to, or the default pool if it is no longer in this topology. */
+    ServerPool poolOf(ServerNode node) {
+        ServerPool pool = membership.get(node);
+        return pool != null ? pool : pools.get(0);
+    }
+}
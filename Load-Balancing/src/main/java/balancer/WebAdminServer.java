@@ -8,7 +8,10 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
 public class WebAdminServer {
@@ -51,6 +54,10 @@ public class WebAdminServer {
         httpServer.createContext("/start", exchange -> requireAuth(this::handleStartServer).handle(exchange));
         httpServer.createContext("/stop", exchange -> requireAuth(this::handleStopServer).handle(exchange));
         httpServer.createContext("/metrics", exchange -> requireAuth(this::handleMetrics).handle(exchange));
+        httpServer.createContext("/strategy", exchange -> requireAuth(this::handleStrategy).handle(exchange));
+        httpServer.createContext("/limits", exchange -> requireAuth(this::handleLimits).handle(exchange));
+        httpServer.createContext("/pools", exchange -> requireAuth(this::handlePools).handle(exchange));
+        httpServer.createContext("/routes", exchange -> requireAuth(this::handleRoutes).handle(exchange));
 
         httpServer.createContext("/", this::handleDashboard);
 
@@ -70,19 +77,321 @@ public class WebAdminServer {
         };
     }
 
+    /**
+     * Request counts, bytes, errors, status classes and response-time
+     * percentiles per backend. JSON by default (total and perServer keep
+     * their original shape for the dashboard); ?format=prometheus gives the
+     * Prometheus text exposition format.
+     */
     private void handleMetrics(HttpExchange exchange) throws IOException {
         if (!"GET".equals(exchange.getRequestMethod())) {
             exchange.sendResponseHeaders(405, -1);
             return;
         }
 
-        Map<String, Integer> perServer = serverManager.getRequestCounts();
-        int total = serverManager.getTotalRequests();
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.contains("format=prometheus")) {
+            byte[] bytes = prometheusMetrics().getBytes();
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+            return;
+        }
+
+        Map<String, Long> perServer = serverManager.getRequestCounts();
+        long total = serverManager.getTotalRequests();
+
+        LatencyHistogram overall = new LatencyHistogram(NodeMetrics.MAX_RESPONSE_NANOS);
+        StringBuilder servers = new StringBuilder();
+        for (ServerNode node : serverManager.getAllServers()) {
+            NodeMetrics metrics = node.getMetrics();
+            LatencyHistogram latency = metrics.getResponseTime();
+            overall.add(latency);
+            if (servers.length() > 0) servers.append(',');
+            servers.append(String.format(Locale.ROOT,
+                    "\"%s\":{\"requests\":%d,\"active\":%d,\"bytesIn\":%d,\"bytesOut\":%d,\"errors\":%d,"
+                            + "\"status\":{\"1xx\":%d,\"2xx\":%d,\"3xx\":%d,\"4xx\":%d,\"5xx\":%d},\"latencyMs\":%s}",
+                    node.getKey(), metrics.getRequests(), node.getActiveConnections(), metrics.getBytesIn(),
+                    metrics.getBytesOut(), metrics.getErrors(), metrics.getStatusCount(0), metrics.getStatusCount(1),
+                    metrics.getStatusCount(2), metrics.getStatusCount(3), metrics.getStatusCount(4),
+                    latencyJson(latency)));
+        }
+
+        String accessLog = String.format("{\"recorded\":%d,\"written\":%d,\"dropped\":%d,\"sampledOut\":%d}",
+                AccessLog.getRecorded(), AccessLog.getWritten(), AccessLog.getDropped(), AccessLog.getSampledOut());
+        RetryBudget budget = serverManager.getRetryBudget();
+        String retries = String.format("{\"retried\":%d,\"denied\":%d}", budget.getRetried(), budget.getDenied());
+        String cache = String.format("{\"enabled\":%b,\"entries\":%d,\"bytes\":%d,\"hits\":%d,\"misses\":%d,"
+                        + "\"revalidated\":%d,\"stored\":%d,\"evicted\":%d,\"collapsed\":%d}",
+                ResponseCache.isEnabled(), ResponseCache.getEntryCount(), ResponseCache.getBytes(),
+                ResponseCache.getHits(), ResponseCache.getMisses(), ResponseCache.getRevalidated(),
+                ResponseCache.getStored(), ResponseCache.getEvicted(), ResponseCache.getCollapsed());
+        String coalesce = String.format("{\"enabled\":%b,\"led\":%d,\"followed\":%d}",
+                SingleFlight.isEnabled(), SingleFlight.getLed(), SingleFlight.getFollowed());
+        String rateLimit = String.format("{\"enabled\":%b,\"clients\":%d,\"limited\":%d,\"topTalkers\":%s}",
+                RateLimiter.isEnabled(), RateLimiter.getClientCount(), RateLimiter.getLimited(),
+                new Gson().toJson(RateLimiter.getTopTalkers()));
+        String topology = String.format("{\"version\":%d,\"draining\":%s}",
+                serverManager.getTopology().getVersion(), new Gson().toJson(serverManager.getDraining().stream()
+                        .map(ServerNode::getKey).collect(Collectors.toList())));
+        String http2 = String.format("{\"enabled\":%b,\"connections\":%d,\"streams\":%d,\"refused\":%d}",
+                Http2Connection.isEnabled(), Http2Connection.getConnections(), Http2Connection.getStreams(),
+                Http2Connection.getRefused());
+        String compression = String.format("{\"enabled\":%b,\"compressed\":%d,\"skipped\":%d,\"bytesIn\":%d,"
+                        + "\"bytesOut\":%d}",
+                Compression.isEnabled(), Compression.getCompressed(), Compression.getSkipped(),
+                Compression.getBytesIn(), Compression.getBytesOut());
+        String json = String.format("{\"total\":%d,\"perServer\":%s,\"latencyMs\":%s,\"servers\":{%s},\"accessLog\":%s,"
+                        + "\"retries\":%s,\"cache\":%s,\"coalesce\":%s,\"rateLimit\":%s,\"topology\":%s,"
+                        + "\"http2\":%s,\"compression\":%s}",
+                total, new Gson().toJson(perServer), latencyJson(overall), servers, accessLog, retries, cache, coalesce,
+                rateLimit, topology, http2, compression);
+        sendJson(exchange, json);
+    }
+
+    private static String latencyJson(LatencyHistogram h) {
+        return String.format(Locale.ROOT,
+                "{\"count\":%d,\"mean\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f}",
+                h.getTotalCount(), h.getMean() / 1e6, h.getValueAtPercentile(50) / 1e6,
+                h.getValueAtPercentile(90) / 1e6, h.getValueAtPercentile(99) / 1e6,
+                h.getValueAtPercentile(99.9) / 1e6, h.getMax() / 1e6);
+    }
+
+    private String prometheusMetrics() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP lb_requests_total Requests routed by the load balancer.\n")
+                .append("# TYPE lb_requests_total counter\n")
+                .append("lb_requests_total ").append(serverManager.getTotalRequests()).append('\n')
+                .append("# HELP lb_access_log_records_total Access log records by outcome.\n")
+                .append("# TYPE lb_access_log_records_total counter\n")
+                .append("lb_access_log_records_total{outcome=\"written\"} ").append(AccessLog.getWritten()).append('\n')
+                .append("lb_access_log_records_total{outcome=\"dropped\"} ").append(AccessLog.getDropped()).append('\n')
+                .append("lb_access_log_records_total{outcome=\"sampled_out\"} ").append(AccessLog.getSampledOut()).append('\n')
+                .append("# HELP lb_retries_total Failover retries, by whether the retry budget allowed them.\n")
+                .append("# TYPE lb_retries_total counter\n")
+                .append("lb_retries_total{outcome=\"retried\"} ").append(serverManager.getRetryBudget().getRetried()).append('\n')
+                .append("lb_retries_total{outcome=\"denied\"} ").append(serverManager.getRetryBudget().getDenied()).append('\n')
+                .append("# HELP lb_cache_requests_total Cacheable requests by outcome.\n")
+                .append("# TYPE lb_cache_requests_total counter\n")
+                .append("lb_cache_requests_total{outcome=\"hit\"} ").append(ResponseCache.getHits()).append('\n')
+                .append("lb_cache_requests_total{outcome=\"miss\"} ").append(ResponseCache.getMisses()).append('\n')
+                .append("lb_cache_requests_total{outcome=\"revalidated\"} ").append(ResponseCache.getRevalidated()).append('\n')
+                .append("lb_cache_requests_total{outcome=\"collapsed\"} ").append(ResponseCache.getCollapsed()).append('\n')
+                .append("# HELP lb_cache_evictions_total Entries evicted to stay within LB_CACHE_MAX_BYTES.\n")
+                .append("# TYPE lb_cache_evictions_total counter\n")
+                .append("lb_cache_evictions_total ").append(ResponseCache.getEvicted()).append('\n')
+                .append("# HELP lb_cache_bytes Bytes held by the response cache.\n")
+                .append("# TYPE lb_cache_bytes gauge\n")
+                .append("lb_cache_bytes ").append(ResponseCache.getBytes()).append('\n')
+                .append("# HELP lb_coalesced_requests_total Requests that led a shared backend exchange or followed one.\n")
+                .append("# TYPE lb_coalesced_requests_total counter\n")
+                .append("lb_coalesced_requests_total{role=\"leader\"} ").append(SingleFlight.getLed()).append('\n')
+                .append("lb_coalesced_requests_total{role=\"follower\"} ").append(SingleFlight.getFollowed()).append('\n')
+                .append("# HELP lb_admission_queue_waiting Requests waiting for a backend slot.\n")
+                .append("# TYPE lb_admission_queue_waiting gauge\n")
+                .append("lb_admission_queue_waiting ").append(AdmissionControl.getWaiting()).append('\n')
+                .append("# HELP lb_shed_total Connections and requests answered 503 by admission control, by reason.\n")
+                .append("# TYPE lb_shed_total counter\n")
+                .append("lb_shed_total{reason=\"accept_rate\"} ").append(AdmissionControl.getShedRate()).append('\n')
+                .append("lb_shed_total{reason=\"queue_full\"} ").append(AdmissionControl.getShedQueueFull()).append('\n')
+                .append("lb_shed_total{reason=\"queue_timeout\"} ").append(AdmissionControl.getShedTimeout()).append('\n')
+                .append("# HELP lb_rate_limited_total Requests answered 429 by the per-client rate limit.\n")
+                .append("# TYPE lb_rate_limited_total counter\n")
+                .append("lb_rate_limited_total ").append(RateLimiter.getLimited()).append('\n')
+                .append("# HELP lb_rate_limit_clients Clients with a rate-limit bucket.\n")
+                .append("# TYPE lb_rate_limit_clients gauge\n")
+                .append("lb_rate_limit_clients ").append(RateLimiter.getClientCount()).append('\n')
+                .append("# HELP lb_topology_version Version of the published backend topology; bumped on membership, weight, health and routing changes.\n")
+                .append("# TYPE lb_topology_version gauge\n")
+                .append("lb_topology_version ").append(serverManager.getTopology().getVersion()).append('\n')
+                .append("# HELP lb_draining_backends Removed backends still finishing in-flight requests.\n")
+                .append("# TYPE lb_draining_backends gauge\n")
+                .append("lb_draining_backends ").append(serverManager.getDraining().size()).append('\n')
+                .append("# HELP lb_http2_connections_total HTTP/2 client connections accepted.\n")
+                .append("# TYPE lb_http2_connections_total counter\n")
+                .append("lb_http2_connections_total ").append(Http2Connection.getConnections()).append('\n')
+                .append("# HELP lb_http2_streams_total HTTP/2 request streams opened.\n")
+                .append("# TYPE lb_http2_streams_total counter\n")
+                .append("lb_http2_streams_total ").append(Http2Connection.getStreams()).append('\n')
+                .append("# HELP lb_http2_refused_streams_total HTTP/2 streams refused over the concurrency limit.\n")
+                .append("# TYPE lb_http2_refused_streams_total counter\n")
+                .append("lb_http2_refused_streams_total ").append(Http2Connection.getRefused()).append('\n')
+                .append("# HELP lb_compressed_responses_total Responses compressed by the balancer, and eligible ones sent uncompressed over the CPU budget.\n")
+                .append("# TYPE lb_compressed_responses_total counter\n")
+                .append("lb_compressed_responses_total{outcome=\"compressed\"} ").append(Compression.getCompressed()).append('\n')
+                .append("lb_compressed_responses_total{outcome=\"over_budget\"} ").append(Compression.getSkipped()).append('\n')
+                .append("# HELP lb_compression_bytes_total Body bytes of compressed responses, before and after compression.\n")
+                .append("# TYPE lb_compression_bytes_total counter\n")
+                .append("lb_compression_bytes_total{stage=\"in\"} ").append(Compression.getBytesIn()).append('\n')
+                .append("lb_compression_bytes_total{stage=\"out\"} ").append(Compression.getBytesOut()).append('\n')
+                .append("# HELP lb_pool_available_backends Backends of a pool currently eligible for traffic.\n")
+                .append("# TYPE lb_pool_available_backends gauge\n");
+        for (ServerPool pool : serverManager.getPools()) {
+            out.append("lb_pool_available_backends{pool=\"").append(pool.getName()).append("\"} ")
+                    .append(pool.getAvailable().length).append('\n');
+        }
+
+        List<ServerNode> nodes = serverManager.getAllServers();
+        appendFamily(out, nodes, "lb_backend_requests_total", "counter", "Requests routed to each backend.",
+                n -> n.getMetrics().getRequests());
+        appendFamily(out, nodes, "lb_backend_active_connections", "gauge", "Exchanges in flight per backend.",
+                n -> n.getActiveConnections());
+        appendFamily(out, nodes, "lb_backend_concurrency_limit", "gauge",
+                "In-flight limit per backend from LB_MAX_INFLIGHT or the adaptive limit; 0 when unlimited.",
+                n -> limitOf(n));
+        appendFamily(out, nodes, "lb_backend_received_bytes_total", "counter", "Bytes received from clients per backend.",
+                n -> n.getMetrics().getBytesIn());
+        appendFamily(out, nodes, "lb_backend_sent_bytes_total", "counter", "Bytes sent to clients per backend.",
+                n -> n.getMetrics().getBytesOut());
+        appendFamily(out, nodes, "lb_backend_errors_total", "counter", "Exchanges that failed inside the proxy.",
+                n -> n.getMetrics().getErrors());
+        appendFamily(out, nodes, "lb_backend_healthy", "gauge", "1 if the backend passes health checks.",
+                n -> n.isHealthy() ? 1 : 0);
+        appendFamily(out, nodes, "lb_backend_ejected", "gauge", "1 if outlier detection has ejected the backend.",
+                n -> n.isEjected() ? 1 : 0);
+
+        out.append("# HELP lb_backend_responses_total Responses per backend by status class.\n")
+                .append("# TYPE lb_backend_responses_total counter\n");
+        for (ServerNode node : nodes) {
+            for (int statusClass = 0; statusClass < 5; statusClass++) {
+                out.append("lb_backend_responses_total{server=\"").append(node.getKey())
+                        .append("\",code=\"").append(statusClass + 1).append("xx\"} ")
+                        .append(node.getMetrics().getStatusCount(statusClass)).append('\n');
+            }
+        }
+
+        out.append("# HELP lb_backend_response_seconds Backend response time.\n")
+                .append("# TYPE lb_backend_response_seconds summary\n");
+        for (ServerNode node : nodes) {
+            LatencyHistogram h = node.getMetrics().getResponseTime();
+            for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+                out.append(String.format(Locale.ROOT, "lb_backend_response_seconds{server=\"%s\",quantile=\"%s\"} %.6f%n",
+                        node.getKey(), q, h.getValueAtPercentile(q * 100) / 1e9));
+            }
+            out.append(String.format(Locale.ROOT, "lb_backend_response_seconds_sum{server=\"%s\"} %.6f%n",
+                    node.getKey(), h.getSum() / 1e9));
+            out.append(String.format(Locale.ROOT, "lb_backend_response_seconds_count{server=\"%s\"} %d%n",
+                    node.getKey(), h.getTotalCount()));
+        }
+        return out.toString();
+    }
+
+    private static void appendFamily(StringBuilder out, List<ServerNode> nodes, String name, String type,
+                                     String help, ToLongFunction<ServerNode> value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (ServerNode node : nodes) {
+            out.append(name).append("{server=\"").append(node.getKey()).append("\"} ")
+                    .append(value.applyAsLong(node)).append('\n');
+        }
+    }
+
+    /** The default pool's strategy, or that of the pool named by ?pool=name. */
+    private void handleStrategy(HttpExchange exchange) throws IOException {
+        String pool = queryParam(exchange, "pool", ServerPool.DEFAULT);
+        if ("POST".equals(exchange.getRequestMethod())) {
+            String body;
+            try (Scanner scanner = new Scanner(exchange.getRequestBody()).useDelimiter("\\A")) {
+                body = scanner.hasNext() ? scanner.next() : "";
+            }
+
+            BalancingStrategy strategy = BalancingStrategy.forName(body);
+            if (strategy == null) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            if (!serverManager.setStrategy(pool, strategy)) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            System.out.println("[WebAdmin] Balancing strategy of pool " + pool + " set to " + strategy.getName());
+        } else if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        ServerPool current = serverManager.getTopology().getPool(pool);
+        if (current == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        String json = String.format("{\"strategy\":\"%s\",\"available\":%s}",
+                current.getStrategy().getName(), new Gson().toJson(BalancingStrategy.NAMES));
+        sendJson(exchange, json);
+    }
+
+    /**
+     * Admission control settings and current usage. POST a form such as
+     * maxInFlight=50&adaptive=true&acceptRate=500&acceptBurst=1000&queueSize=200&queueTimeoutMs=250
+     * to change any of them at runtime; omitted keys keep their values.
+     */
+    private void handleLimits(HttpExchange exchange) throws IOException {
+        if ("POST".equals(exchange.getRequestMethod())) {
+            String body;
+            try (Scanner scanner = new Scanner(exchange.getRequestBody()).useDelimiter("\\A")) {
+                body = scanner.hasNext() ? scanner.next() : "";
+            }
+
+            Map<String, String> form = new HashMap<>();
+            for (String pair : body.trim().split("&")) {
+                String[] kv = pair.split("=", 2);
+                if (kv.length == 2) form.put(kv[0].trim(), kv[1].trim());
+            }
+            try {
+                if (form.containsKey("maxInFlight")) {
+                    ConcurrencyLimit.setMaxInFlight(Integer.parseInt(form.get("maxInFlight")));
+                }
+                if (form.containsKey("adaptive")) {
+                    ConcurrencyLimit.setAdaptive(Boolean.parseBoolean(form.get("adaptive")));
+                }
+                if (form.containsKey("acceptRate") || form.containsKey("acceptBurst")) {
+                    double rate = form.containsKey("acceptRate")
+                            ? Double.parseDouble(form.get("acceptRate")) : AdmissionControl.getAcceptRate();
+                    double burst = form.containsKey("acceptBurst")
+                            ? Double.parseDouble(form.get("acceptBurst")) : Math.max(rate, AdmissionControl.getAcceptBurst());
+                    AdmissionControl.setAcceptRate(rate, burst);
+                }
+                if (form.containsKey("queueSize") || form.containsKey("queueTimeoutMs")) {
+                    AdmissionControl.setQueue(
+                            form.containsKey("queueSize")
+                                    ? Integer.parseInt(form.get("queueSize")) : AdmissionControl.getQueueSize(),
+                            form.containsKey("queueTimeoutMs")
+                                    ? Long.parseLong(form.get("queueTimeoutMs")) : AdmissionControl.getQueueTimeoutMillis());
+                }
+            } catch (NumberFormatException e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            System.out.println("[WebAdmin] Limits updated: " + form.keySet());
+        } else if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
 
-        String json = String.format("{\"total\":%d,\"perServer\":%s}", total, new Gson().toJson(perServer));
+        String nodes = serverManager.getAllServers().stream()
+                .map(n -> String.format("{\"server\":\"%s\",\"inFlight\":%d,\"limit\":%d}",
+                        n.getKey(), n.getActiveConnections(), limitOf(n)))
+                .collect(Collectors.joining(","));
+        String json = String.format(Locale.ROOT,
+                "{\"maxInFlight\":%d,\"adaptive\":%b,\"acceptRate\":%.1f,\"acceptBurst\":%.1f,"
+                        + "\"queue\":{\"size\":%d,\"timeoutMs\":%d,\"waiting\":%d,\"queued\":%d},"
+                        + "\"shed\":{\"acceptRate\":%d,\"queueFull\":%d,\"queueTimeout\":%d},\"nodes\":[%s]}",
+                ConcurrencyLimit.getMaxInFlight(), ConcurrencyLimit.isAdaptive(), AdmissionControl.getAcceptRate(),
+                AdmissionControl.getAcceptBurst(), AdmissionControl.getQueueSize(),
+                AdmissionControl.getQueueTimeoutMillis(), AdmissionControl.getWaiting(), AdmissionControl.getQueued(),
+                AdmissionControl.getShedRate(), AdmissionControl.getShedQueueFull(), AdmissionControl.getShedTimeout(),
+                nodes);
         sendJson(exchange, json);
     }
 
+    /** A node's current in-flight limit, 0 when nothing limits it. */
+    private static long limitOf(ServerNode node) {
+        int limit = node.getConcurrencyLimit().get();
+        return limit == Integer.MAX_VALUE ? 0 : limit;
+    }
+
     private boolean isAuthenticated(HttpExchange exchange) {
         List<String> cookies = exchange.getRequestHeaders().get("Cookie");
         if (cookies != null) {
@@ -162,15 +471,94 @@ public class WebAdminServer {
             return;
         }
 
-        String json = "[" + serverManager.getAllServers().stream()
-                .map(s -> String.format(
-                        "{\"host\":\"%s\",\"port\":%d,\"weight\":%d,\"healthy\":%b}",
-                        s.getHost(), s.getPort(), s.getWeight(), s.isHealthy()))
+        Topology topology = serverManager.getTopology();
+        String json = "[" + topology.getNodes().stream()
+                .map(s -> String.format(Locale.ROOT,
+                        "{\"host\":\"%s\",\"port\":%d,\"pool\":\"%s\",\"weight\":%d,\"healthy\":%b,\"ejected\":%b,\"active\":%d,"
+                                + "\"limit\":%d,\"ttfbMs\":%.2f,\"responseMs\":%.2f,\"p99Ms\":%.2f}",
+                        s.getHost(), s.getPort(), topology.poolOf(s).getName(), s.getWeight(), s.isHealthy(), s.isEjected(), s.getActiveConnections(),
+                        limitOf(s),
+                        s.getTtfbEwma().getMillis(), s.getResponseEwma().getMillis(),
+                        s.getMetrics().getResponseTime().getValueAtPercentile(99) / 1e6))
                 .collect(Collectors.joining(",")) + "]";
 
         sendJson(exchange, json);
     }
 
+    /** Every pool with its strategy, health check, routes and members. */
+    private void handlePools(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        Gson gson = new Gson();
+        String json = "[" + serverManager.getPools().stream()
+                .map(p -> String.format("{\"name\":%s,\"strategy\":\"%s\",\"health\":%s,\"routes\":%s,"
+                                + "\"servers\":%s,\"available\":%d}",
+                        gson.toJson(p.getName()), p.getStrategy().getName(), gson.toJson(p.getHealthCheck()),
+                        gson.toJson(p.getRoutes()),
+                        gson.toJson(p.getNodes().stream().map(ServerNode::getKey).collect(Collectors.toList())),
+                        p.getAvailable().length))
+                .collect(Collectors.joining(",")) + "]";
+        sendJson(exchange, json);
+    }
+
+    /**
+     * Routing rules as pattern to pool. POST route=pattern&pool=name to add
+     * or repoint a rule, or just route=pattern to remove it; servers.txt
+     * replaces these changes when it is next reloaded.
+     */
+    private void handleRoutes(HttpExchange exchange) throws IOException {
+        if ("POST".equals(exchange.getRequestMethod())) {
+            String body;
+            try (Scanner scanner = new Scanner(exchange.getRequestBody()).useDelimiter("\\A")) {
+                body = scanner.hasNext() ? scanner.next() : "";
+            }
+
+            Map<String, String> form = new HashMap<>();
+            for (String pair : body.trim().split("&")) {
+                String[] kv = pair.split("=", 2);
+                if (kv.length == 2) form.put(kv[0].trim(), URLDecoder.decode(kv[1].trim(), StandardCharsets.UTF_8));
+            }
+            String route = form.get("route");
+            if (route == null || route.isBlank()) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            try {
+                if (!serverManager.setRoute(route, form.get("pool"))) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+        } else if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        Map<String, String> routes = new LinkedHashMap<>();
+        for (ServerPool pool : serverManager.getPools()) {
+            for (String route : pool.getRoutes()) {
+                routes.put(route, pool.getName());
+            }
+        }
+        sendJson(exchange, new Gson().toJson(routes));
+    }
+
+    private static String queryParam(HttpExchange exchange, String name, String fallback) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query == null) return fallback;
+        for (String pair : query.split("&")) {
+            String[] kv = pair.split("=", 2);
+            if (kv.length == 2 && kv[0].equals(name)) return kv[1];
+        }
+        return fallback;
+    }
+
     private void handleAdd(HttpExchange exchange) throws IOException {
         if (!"POST".equals(exchange.getRequestMethod())) {
             exchange.sendResponseHeaders(405, -1);
@@ -188,7 +576,12 @@ public class WebAdminServer {
             return;
         }
 
-        serverManager.addServer(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        // host:port:weight, optionally followed by :pool
+        String pool = parts.length > 3 ? parts[3].trim() : ServerPool.DEFAULT;
+        if (!serverManager.addServer(pool, parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]))) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
         sendJson(exchange, "{\"status\":\"added\"}");
     }
 
@@ -0,0 +1,88 @@
+package balancer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * ChunkedDecoder must hand on exactly the chunk data however the framing is
+ * split: inside a chunk-size line, between CR and LF, inside an extension or
+ * a trailer, and a byte at a time.
+ */
+class ChunkedDecoderTest {
+    private static final String BODY = ""
+            + "1A\r\nabcdefghijklmnopqrstuvwxyz\r\n"
+            + "5;name=\"quoted;value\"\r\nhello\r\n"
+            + "a\r\n0123456789\r\n"
+            + "0;last\r\nTrailer-A: 1\r\nTrailer-B: two\r\n\r\n";
+    private static final String DATA = "abcdefghijklmnopqrstuvwxyz" + "hello" + "0123456789";
+
+    @Test
+    void decodesInOnePiece() throws IOException {
+        assertDecodes(BODY, DATA);
+    }
+
+    @Test
+    void decodesAtEverySplitPoint() throws IOException {
+        for (int cut = 0; cut <= BODY.length(); cut++) {
+            assertDecodes(BODY, DATA, cut);
+        }
+    }
+
+    @Test
+    void decodesAByteAtATime() throws IOException {
+        int[] cuts = new int[BODY.length()];
+        for (int i = 0; i < cuts.length; i++) {
+            cuts[i] = i;
+        }
+        assertDecodes(BODY, DATA, cuts);
+    }
+
+    @Test
+    void decodesWithoutTrailers() throws IOException {
+        String body = "3\r\nabc\r\n0\r\n\r\n";
+        for (int cut = 0; cut <= body.length(); cut++) {
+            assertDecodes(body, "abc", cut);
+        }
+    }
+
+    @Test
+    void ignoresWhatFollowsTheBody() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedDecoder decoder = new ChunkedDecoder(out::write);
+        byte[] bytes = "2\r\nok\r\n0\r\n\r\n5\r\nextra\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        decoder.write(bytes, 0, bytes.length);
+        assertTrue(decoder.isDone());
+        assertEquals("ok", out.toString(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void isNotDoneBeforeTheEmptyLine() throws IOException {
+        ChunkedDecoder decoder = new ChunkedDecoder((b, off, n) -> { });
+        byte[] bytes = "0\r\nTrailer: x\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        decoder.write(bytes, 0, bytes.length);
+        assertFalse(decoder.isDone());
+    }
+
+    /** Feeds body to a decoder in pieces ending at the given offsets, then checks what came out. */
+    private static void assertDecodes(String body, String expected, int... cuts) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedDecoder decoder = new ChunkedDecoder(out::write);
+        int offset = 0;
+        for (int cut : cuts) {
+            decoder.write(bytes, offset, cut);
+            offset = cut;
+        }
+        decoder.write(bytes, offset, bytes.length);
+        assertEquals(expected, out.toString(StandardCharsets.ISO_8859_1), Arrays.toString(cuts));
+        assertTrue(decoder.isDone(), Arrays.toString(cuts));
+    }
+}
@@ -0,0 +1,105 @@
+package balancer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * HPACK decoding against the examples of RFC 7541 appendix C, which carry
+ * the dynamic table from one header block to the next, and encode/decode
+ * round trips through the Huffman code for every octet.
+ */
+class HpackTest {
+    private static final long SEED = 20261018L;
+
+    @Test
+    void decodesRequestExamplesWithoutHuffman() throws IOException {
+        // RFC 7541 C.3.1 to C.3.3, one decoder for all three
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        assertEquals(List.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+                decode(decoder, "828684410f7777772e6578616d706c652e636f6d"));
+        assertEquals(List.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache"), decode(decoder, "828684be58086e6f2d6361636865"));
+        assertEquals(List.of(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value"),
+                decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"));
+    }
+
+    @Test
+    void decodesRequestExamplesWithHuffman() throws IOException {
+        // RFC 7541 C.4.1 to C.4.3
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        assertEquals(List.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"),
+                decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+        assertEquals(List.of(":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache"), decode(decoder, "828684be5886a8eb10649cbf"));
+        assertEquals(List.of(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value"),
+                decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+    }
+
+    @Test
+    void roundTripsEveryOctet() throws IOException {
+        StringBuilder all = new StringBuilder(256);
+        for (int c = 0; c < 256; c++) {
+            all.append((char) c);
+        }
+        assertRoundTrip("x-all", all.toString());
+        // Common characters have short codes, so these go out Huffman-coded, padded to a byte
+        for (String value : new String[] {"", "a", "no-cache", "www.example.com", "/index.html?q=1&r=2",
+                "text/html; charset=utf-8", "Mon, 21 Oct 2013 20:13:21 GMT"}) {
+            assertRoundTrip("x-value", value);
+        }
+        Random random = new Random(SEED);
+        for (int round = 0; round < 200; round++) {
+            char[] value = new char[random.nextInt(64)];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = (char) (round % 2 == 0 ? 'a' + random.nextInt(26) : random.nextInt(256));
+            }
+            assertRoundTrip("x-random", new String(value));
+        }
+    }
+
+    @Test
+    void roundTripsStaticTableFields() throws IOException {
+        assertRoundTrip(":status", "200");
+        assertRoundTrip(":status", "418");
+        assertRoundTrip("content-type", "application/json");
+    }
+
+    @Test
+    void rejectsMalformedBlocks() {
+        // Index beyond the empty dynamic table
+        assertThrows(IOException.class, () -> decode(new Hpack.Decoder(4096), "be"));
+        // String length running past the block
+        assertThrows(IOException.class, () -> decode(new Hpack.Decoder(4096), "400a6162"));
+        // Huffman padding of zeros instead of the EOS prefix
+        assertThrows(IOException.class, () -> decode(new Hpack.Decoder(4096), "4001618100"));
+        // Table size update above the advertised limit
+        assertThrows(IOException.class, () -> decode(new Hpack.Decoder(4096), "3fe21f"));
+    }
+
+    private static void assertRoundTrip(String name, String value) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        Hpack.encode(name, value, block);
+        List<String> fields = new ArrayList<>();
+        byte[] bytes = block.toByteArray();
+        new Hpack.Decoder(4096).decode(bytes, 0, bytes.length, fields);
+        assertEquals(List.of(name, value), fields);
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, String hex) throws IOException {
+        byte[] block = HexFormat.of().parseHex(hex);
+        List<String> fields = new ArrayList<>();
+        decoder.decode(block, 0, block.length, fields);
+        return fields;
+    }
+}
@@ -0,0 +1,241 @@
+package balancer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * What an HTTP/2 request may turn into on a backend's HTTP/1.1 connection:
+ * header lists HTTP/1.1 cannot carry as-is are refused, and a stream whose
+ * DATA disagrees with its Content-Length is reset before the extra bytes can
+ * reach the backend as a request of their own.
+ */
+class Http2ConnectionTest {
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int END_STREAM = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PROTOCOL_ERROR = 0x1;
+
+    private static final String SMUGGLED = "GET /smuggled HTTP/1.1\r\nHost: backend\r\n\r\n";
+
+    private ServerSocket backend;
+    private final ByteArrayOutputStream backendReceived = new ByteArrayOutputStream();
+    private ServerSocket front;
+    private Socket client;
+
+    @Test
+    void convertsAWellFormedHeaderList() throws IOException {
+        HttpHead request = Http2Connection.toRequest(List.of(":method", "POST", ":scheme", "http",
+                ":path", "/upload?x=1", ":authority", "example.com", "content-length", "5",
+                "cookie", "a=1", "cookie", "b=2", "x-empty", ""));
+        assertNotNull(request);
+        assertEquals("POST /upload?x=1 HTTP/1.1\r\ncontent-length: 5\r\nx-empty: \r\nhost: example.com\r\n"
+                + "cookie: a=1; b=2\r\nConnection: keep-alive\r\n\r\n", encode(request));
+        assertNotNull(Http2Connection.toRequest(List.of(":method", "OPTIONS", ":path", "*")));
+    }
+
+    @Test
+    void refusesWhatHttp11CannotCarry() {
+        String[][] malformed = {
+                // CR, LF or NUL in a value would split the head on the backend connection
+                {"x-a", "1\r\nx-injected: 2"},
+                {"x-a", "1\n"},
+                {"x-a", "1\u0000"},
+                {"x-a", " padded"},
+                {"x-a", "padded\t"},
+                // Names: lower-case tokens only
+                {"X-Upper", "1"},
+                {"x a", "1"},
+                {"x:a", "1"},
+                {"", "1"},
+                {"x-é", "1"},
+                // Content-Length: digits, once
+                {"content-length", "abc"},
+                {"content-length", "-1"},
+                {"content-length", "1, 1"},
+                {"content-length", "99999999999999999999"},
+        };
+        for (String[] field : malformed) {
+            assertNull(Http2Connection.toRequest(List.of(":method", "GET", ":path", "/", field[0], field[1])),
+                    field[0] + ": " + field[1]);
+        }
+        assertNull(Http2Connection.toRequest(List.of(":method", "POST", ":path", "/",
+                "content-length", "1", "content-length", "1")));
+
+        String[][] pseudo = {
+                {"GET /x HTTP/1.1\r\n", "/"},
+                {"G T", "/"},
+                {"GET", "/a b"},
+                {"GET", "/a\tb"},
+                {"GET", "relative"},
+                {"GET", "*"},
+                {"GET", ""},
+                {"GET", "/ÿ"},
+        };
+        for (String[] request : pseudo) {
+            assertNull(Http2Connection.toRequest(List.of(":method", request[0], ":path", request[1])),
+                    request[0] + " " + request[1]);
+        }
+        assertNull(Http2Connection.toRequest(List.of(":method", "GET", ":path", "/", ":authority", "a b")));
+        assertNull(Http2Connection.toRequest(List.of(":method", "GET", ":path", "/", "x-a", "1", ":scheme", "http")));
+    }
+
+    @BeforeEach
+    void startProxy() throws IOException {
+        backend = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread.ofVirtual().start(this::serveBackend);
+        ServerManager manager = ServerManager.create(List.of(new ServerNode("127.0.0.1", backend.getLocalPort(), 1)));
+
+        front = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread.ofVirtual().start(() -> {
+            try (Socket socket = front.accept()) {
+                new Http2Connection(socket, socket.getInputStream(), manager).serve(null);
+            } catch (IOException ignored) {
+                // The test closed the connection
+            }
+        });
+        client = new Socket(InetAddress.getLoopbackAddress(), front.getLocalPort());
+        client.setSoTimeout(5000);
+        client.getOutputStream().write(Http2Connection.PREFACE);
+        writeFrame(0x4, 0, 0, new byte[0]);
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        client.close();
+        front.close();
+        backend.close();
+    }
+
+    @Test
+    void resetsABodyBeyondContentLength() throws IOException {
+        // H2.CL: the head says there is no body, the DATA frame is another request
+        writeHeaders(1, "POST", "0", false);
+        writeFrame(DATA, END_STREAM, 1, SMUGGLED.getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(PROTOCOL_ERROR, awaitReset(1));
+        assertFalse(backendReceived().contains("/smuggled"), backendReceived());
+    }
+
+    @Test
+    void resetsABodyShortOfContentLength() throws IOException {
+        writeHeaders(1, "POST", "10", false);
+        writeFrame(DATA, END_STREAM, 1, "12345".getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(PROTOCOL_ERROR, awaitReset(1));
+    }
+
+    @Test
+    void resetsAContentLengthWithoutBody() throws IOException {
+        writeHeaders(1, "POST", "10", true);
+        assertEquals(PROTOCOL_ERROR, awaitReset(1));
+    }
+
+    @Test
+    void resetsAHeaderThatWouldInjectAnother() throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        Hpack.encode(":method", "GET", block);
+        Hpack.encode(":path", "/", block);
+        Hpack.encode("x-a", "1\r\nTransfer-Encoding: chunked", block);
+        writeFrame(HEADERS, END_HEADERS | END_STREAM, 1, block.toByteArray());
+        assertEquals(PROTOCOL_ERROR, awaitReset(1));
+    }
+
+    @Test
+    void relaysABodyMatchingContentLength() throws IOException {
+        writeHeaders(1, "POST", "5", false);
+        writeFrame(DATA, 0, 1, "12".getBytes(StandardCharsets.ISO_8859_1));
+        writeFrame(DATA, END_STREAM, 1, "345".getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(-1, awaitReset(1));
+        assertTrue(backendReceived().endsWith("\r\n\r\n12345"), backendReceived());
+    }
+
+    private void writeHeaders(int streamId, String method, String contentLength, boolean endStream)
+            throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        Hpack.encode(":method", method, block);
+        Hpack.encode(":scheme", "http", block);
+        Hpack.encode(":path", "/", block);
+        Hpack.encode(":authority", "backend", block);
+        Hpack.encode("content-length", contentLength, block);
+        writeFrame(HEADERS, END_HEADERS | (endStream ? END_STREAM : 0), streamId, block.toByteArray());
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        OutputStream out = client.getOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(9);
+        header.put((byte) (payload.length >>> 16)).put((byte) (payload.length >>> 8)).put((byte) payload.length);
+        header.put((byte) type).put((byte) flags).putInt(streamId);
+        out.write(header.array());
+        out.write(payload);
+        out.flush();
+    }
+
+    /** The error code of the stream's RST_STREAM, or -1 once its response headers arrive instead. */
+    private int awaitReset(int streamId) throws IOException {
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        byte[] header = new byte[9];
+        while (true) {
+            in.readFully(header);
+            int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            int id = ByteBuffer.wrap(header, 5, 4).getInt() & 0x7fffffff;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            if (id != streamId) continue;
+            if (header[3] == RST_STREAM) return ByteBuffer.wrap(payload).getInt();
+            if (header[3] == HEADERS) return -1;
+        }
+    }
+
+    /** Reads requests and answers each with an empty 200, recording every byte that arrives. */
+    private void serveBackend() {
+        while (true) {
+            try (Socket socket = backend.accept()) {
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    synchronized (backendReceived) {
+                        backendReceived.write(buffer, 0, n);
+                    }
+                    if (backendReceived().endsWith("12345")) {
+                        socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"
+                                .getBytes(StandardCharsets.ISO_8859_1));
+                    }
+                }
+            } catch (IOException e) {
+                if (backend.isClosed()) return;
+            }
+        }
+    }
+
+    private String backendReceived() {
+        synchronized (backendReceived) {
+            return backendReceived.toString(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static String encode(HttpHead head) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        head.writeTo(out, ByteBuffer.allocate(64));
+        return out.toString(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,296 @@
+package balancer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Property tests for HttpParser as driven by HttpInput: every corpus, cut at
+ * every split point, byte by byte and at random points, must parse to exactly
+ * what it parses to when read in one piece. The one-piece results are checked
+ * against hand-written expectations, so a split that changes nothing cannot
+ * hide a parse that is wrong everywhere.
+ */
+class HttpParserTest {
+    private static final long SEED = 20261018L;
+    private static final int RANDOM_ROUNDS = 200;
+
+    // Several requests on one connection, pipelined back to back
+    private static final String PIPELINED_REQUESTS = ""
+            + "\r\n"
+            + "GET /a HTTP/1.1\r\nHost: example.com\r\n\r\n"
+            + "POST /upload HTTP/1.1\r\nHost: example.com\r\nContent-Length: 11\r\n\r\nhello world"
+            + "PUT /chunked HTTP/1.1\r\nHost: example.com\r\ntransfer-encoding: gzip, Chunked\r\n\r\n"
+            + "5;name=value\r\nhello\r\n6\r\n world\r\n0\r\nX-Trailer: yes\r\n\r\n"
+            + "HEAD /h HTTP/1.1\r\nHost: example.com\r\nCONTENT-length:   0  \r\n\r\n"
+            + "GET /last HTTP/1.1\r\nHost: example.com\r\nConnection: keep-alive, Close\r\n\r\n";
+
+    private static final String HTTP10_REQUESTS = ""
+            + "GET /old HTTP/1.0\r\n\r\n"
+            + "GET /kept HTTP/1.0\r\nConnection: keep-alive\r\n\r\n";
+
+    // Transfer-Encoding wins over Content-Length and the connection must close afterwards
+    private static final String SMUGGLING_REQUEST = ""
+            + "POST /x HTTP/1.1\r\nHost: a\r\nContent-Length: 3\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "3\r\nabc\r\n0\r\n\r\n";
+
+    private static final String PIPELINED_RESPONSES = ""
+            + "HTTP/1.1 100 Continue\r\n\r\n"
+            + "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nContent-Type: text/plain\r\n\r\nhello"
+            + "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "A\r\n0123456789\r\n1;ext\r\nx\r\n0\r\nTrailer-A: 1\r\nTrailer-B: 2\r\n\r\n"
+            + "HTTP/1.1 204 No Content\r\n\r\n"
+            + "HTTP/1.1 304 Not Modified\r\nContent-Length: 99\r\n\r\n"
+            + "HTTP/1.1 200 OK\r\nContent-Length: 1234\r\n\r\n"
+            + "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n";
+
+    // The fifth response answers a HEAD request, so its Content-Length announces no body
+    private static final Set<Integer> HEAD_RESPONSES = Set.of(5);
+
+    private static final String UNTIL_CLOSE_RESPONSE = ""
+            + "HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n\r\nbody until the connection closes";
+
+    private static final String[] MALFORMED_REQUESTS = {
+            "GET  /double-space HTTP/1.1\r\n\r\n",
+            "GET /x HTTP/2.0\r\n\r\n",
+            "GET /x HTTP/1.1\r\nBad Header: x\r\n\r\n",
+            "GET /x HTTP/1.1\r\nA: b\r\n folded\r\n\r\n",
+            "GET /x HTTP/1.1\r\n: empty\r\n\r\n",
+            "POST /x HTTP/1.1\r\nContent-Length: 12x\r\n\r\n",
+            "POST /x HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\nab",
+            "POST /x HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n",
+    };
+
+    private static final String[] MALFORMED_RESPONSES = {
+            "HTTP/1.1 20 OK\r\n\r\n",
+            "HTTP/1.1 2000 OK\r\n\r\n",
+            "HTTQ/1.1 200 OK\r\n\r\n",
+    };
+
+    @Test
+    void pipelinedRequestsParseAsExpected() throws IOException {
+        List<String> messages = parse(bytes(PIPELINED_REQUESTS), true, Set.of(), new int[0]);
+        assertEquals(List.of(
+                "GET /a HTTP/1.1|Host=example.com|len=0|keepAlive=true|head=false|body=",
+                "POST /upload HTTP/1.1|Host=example.com|Content-Length=11|len=11|keepAlive=true|head=false"
+                        + "|body=hello world",
+                "PUT /chunked HTTP/1.1|Host=example.com|transfer-encoding=gzip, Chunked|len=-1|keepAlive=true"
+                        + "|head=false|body=5;name=value\r\nhello\r\n6\r\n world\r\n0\r\nX-Trailer: yes\r\n\r\n",
+                "HEAD /h HTTP/1.1|Host=example.com|CONTENT-length=0|len=0|keepAlive=true|head=true|body=",
+                "GET /last HTTP/1.1|Host=example.com|Connection=keep-alive, Close|len=0|keepAlive=false"
+                        + "|head=false|body=",
+                "EOF"), messages);
+    }
+
+    @Test
+    void http10RequestsParseAsExpected() throws IOException {
+        List<String> messages = parse(bytes(HTTP10_REQUESTS), true, Set.of(), new int[0]);
+        assertEquals(List.of(
+                "GET /old HTTP/1.0|len=0|keepAlive=false|head=false|body=",
+                "GET /kept HTTP/1.0|Connection=keep-alive|len=0|keepAlive=true|head=false|body=",
+                "EOF"), messages);
+    }
+
+    @Test
+    void transferEncodingOverridesContentLength() throws IOException {
+        List<String> messages = parse(bytes(SMUGGLING_REQUEST), true, Set.of(), new int[0]);
+        assertEquals(List.of(
+                "POST /x HTTP/1.1|Host=a|Content-Length=3|Transfer-Encoding=chunked|len=-1|keepAlive=false"
+                        + "|head=false|body=3\r\nabc\r\n0\r\n\r\n",
+                "EOF"), messages);
+    }
+
+    @Test
+    void contentLengthIsNotForwardedNextToTransferEncoding() throws IOException {
+        HttpInput input = new HttpInput(new SplitInputStream(bytes(SMUGGLING_REQUEST), new int[0]), true);
+        try {
+            HttpHead request = input.readHead(false);
+            request.removeHopByHop();
+            ByteArrayOutputStream forwarded = new ByteArrayOutputStream();
+            request.writeTo(forwarded, ByteBuffer.allocate(64));
+            assertEquals("POST /x HTTP/1.1\r\nHost: a\r\nTransfer-Encoding: chunked\r\n\r\n",
+                    forwarded.toString(StandardCharsets.ISO_8859_1));
+        } finally {
+            input.release();
+        }
+    }
+
+    @Test
+    void pipelinedResponsesParseAsExpected() throws IOException {
+        List<String> messages = parse(bytes(PIPELINED_RESPONSES), false, HEAD_RESPONSES, new int[0]);
+        assertEquals(List.of(
+                "HTTP/1.1 100 Continue|len=0|keepAlive=true|status=100|interim=true|body=",
+                "HTTP/1.1 200 OK|Content-Length=5|Content-Type=text/plain|len=5|keepAlive=true|status=200"
+                        + "|interim=false|body=hello",
+                "HTTP/1.1 200 OK|Transfer-Encoding=chunked|len=-1|keepAlive=true|status=200|interim=false"
+                        + "|body=A\r\n0123456789\r\n1;ext\r\nx\r\n0\r\nTrailer-A: 1\r\nTrailer-B: 2\r\n\r\n",
+                "HTTP/1.1 204 No Content|len=0|keepAlive=true|status=204|interim=false|body=",
+                "HTTP/1.1 304 Not Modified|Content-Length=99|len=0|keepAlive=true|status=304|interim=false|body=",
+                "HTTP/1.1 200 OK|Content-Length=1234|len=0|keepAlive=true|status=200|interim=false|body=",
+                "HTTP/1.1 200 OK|Content-Length=0|len=0|keepAlive=true|status=200|interim=false|body=",
+                "EOF"), messages);
+    }
+
+    @Test
+    void untilCloseResponseParsesAsExpected() throws IOException {
+        List<String> messages = parse(bytes(UNTIL_CLOSE_RESPONSE), false, Set.of(), new int[0]);
+        assertEquals(List.of(
+                "HTTP/1.0 200 OK|Content-Type=text/plain|len=-2|keepAlive=false|status=200|interim=false"
+                        + "|body=body until the connection closes",
+                "EOF"), messages);
+    }
+
+    @Test
+    void requestsAreIndependentOfSplitPoints() throws IOException {
+        assertSplitInvariant(bytes(PIPELINED_REQUESTS), true, Set.of());
+        assertSplitInvariant(bytes(HTTP10_REQUESTS), true, Set.of());
+        assertSplitInvariant(bytes(SMUGGLING_REQUEST), true, Set.of());
+    }
+
+    @Test
+    void responsesAreIndependentOfSplitPoints() throws IOException {
+        assertSplitInvariant(bytes(PIPELINED_RESPONSES), false, HEAD_RESPONSES);
+        assertSplitInvariant(bytes(UNTIL_CLOSE_RESPONSE), false, Set.of());
+    }
+
+    @Test
+    void malformedMessagesFailAtEverySplitPoint() {
+        for (String message : MALFORMED_REQUESTS) {
+            assertFailsAtEverySplit(bytes(message), true);
+        }
+        for (String message : MALFORMED_RESPONSES) {
+            assertFailsAtEverySplit(bytes(message), false);
+        }
+    }
+
+    @Test
+    void truncatedBodiesFailAtEverySplitPoint() {
+        assertFailsAtEverySplit(bytes("POST /x HTTP/1.1\r\nContent-Length: 10\r\n\r\nshort"), true);
+        assertFailsAtEverySplit(bytes("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nab"), false);
+    }
+
+    /** Whole, every single split point, one byte per read, and random multi-way splits. */
+    private static void assertSplitInvariant(byte[] data, boolean requests, Set<Integer> headResponses)
+            throws IOException {
+        List<String> whole = parse(data, requests, headResponses, new int[0]);
+        for (int cut = 1; cut < data.length; cut++) {
+            assertEquals(whole, parse(data, requests, headResponses, new int[] { cut }), "split at " + cut);
+        }
+        int[] everyByte = new int[data.length - 1];
+        for (int i = 0; i < everyByte.length; i++) {
+            everyByte[i] = i + 1;
+        }
+        assertEquals(whole, parse(data, requests, headResponses, everyByte), "one byte per read");
+        Random random = new Random(SEED);
+        for (int round = 0; round < RANDOM_ROUNDS; round++) {
+            int[] cuts = randomCuts(random, data.length);
+            assertEquals(whole, parse(data, requests, headResponses, cuts), "splits at " + Arrays.toString(cuts));
+        }
+    }
+
+    private static void assertFailsAtEverySplit(byte[] data, boolean requests) {
+        String message = new String(data, StandardCharsets.ISO_8859_1);
+        assertThrows(IOException.class, () -> parse(data, requests, Set.of(), new int[0]), message);
+        for (int cut = 1; cut < data.length; cut++) {
+            int[] cuts = { cut };
+            assertThrows(IOException.class, () -> parse(data, requests, Set.of(), cuts),
+                    message + " split at " + cut);
+        }
+    }
+
+    private static int[] randomCuts(Random random, int length) {
+        int count = 1 + random.nextInt(Math.max(1, length / 4));
+        int[] cuts = random.ints(count, 1, length).sorted().distinct().toArray();
+        return cuts;
+    }
+
+    /**
+     * Reads every message in data through an HttpInput whose reads end at
+     * the given cut offsets, and describes each one: start line, headers,
+     * framing facts and the body bytes relayed. Ends with "EOF" once the
+     * stream is exhausted between messages.
+     */
+    private static List<String> parse(byte[] data, boolean requests, Set<Integer> headResponses, int[] cuts)
+            throws IOException {
+        HttpInput input = new HttpInput(new SplitInputStream(data, cuts), requests);
+        try {
+            List<String> messages = new ArrayList<>();
+            ByteBuffer pending = ByteBuffer.allocate(BufferPool.getBufferSize());
+            while (true) {
+                HttpHead head = input.readHead(!requests && headResponses.contains(messages.size()));
+                if (head == null) {
+                    messages.add("EOF");
+                    return messages;
+                }
+                HttpParser parser = input.getParser();
+                StringBuilder description = new StringBuilder(head.getStartLine());
+                for (int i = 0; i < head.size(); i++) {
+                    description.append('|').append(head.getName(i)).append('=').append(head.getValue(i));
+                }
+                description.append("|len=").append(parser.getBodyLength())
+                        .append("|keepAlive=").append(parser.isKeepAlive());
+                if (requests) {
+                    description.append("|head=").append(parser.isHeadMethod());
+                } else {
+                    description.append("|status=").append(parser.getStatus())
+                            .append("|interim=").append(parser.isInterim());
+                }
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                pending.clear();
+                long relayed = input.relayBody(body, pending);
+                assertEquals(body.size(), relayed, "relayed byte count");
+                description.append("|body=").append(body.toString(StandardCharsets.ISO_8859_1));
+                messages.add(description.toString());
+            }
+        } finally {
+            input.release();
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /** Serves data with each read stopping at the next cut, as a socket might. */
+    private static final class SplitInputStream extends InputStream {
+        private final byte[] data;
+        private final int[] cuts;
+        private int position;
+        private int nextCut;
+
+        SplitInputStream(byte[] data, int[] cuts) {
+            this.data = data;
+            this.cuts = cuts;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= data.length) return -1;
+            while (nextCut < cuts.length && cuts[nextCut] <= position) {
+                nextCut++;
+            }
+            int end = nextCut < cuts.length ? cuts[nextCut] : data.length;
+            int n = Math.min(len, end - position);
+            System.arraycopy(data, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+}
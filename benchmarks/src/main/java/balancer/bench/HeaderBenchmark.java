@@ -0,0 +1,87 @@
+package balancer.bench;
+
+import balancer.HttpHead;
+import balancer.HttpParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Head handling as ClientHandler does it: framing with HttpParser alone,
+ * materializing an HttpHead, and rewriting plus encoding it for the next hop.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderBenchmark {
+    private static final String REQUEST =
+            "GET /api/v1/orders?page=2&size=50 HTTP/1.1\r\n"
+            + "Host: shop.example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/124.0\r\n"
+            + "Accept: application/json, text/plain, */*\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cookie: session=5f2b8c1e9a7d4e3f; theme=dark\r\n"
+            + "X-Request-Id: 8d1f2c3b-4a5e-6f70-8192-a3b4c5d6e7f8\r\n"
+            + "\r\n";
+
+    private static final String RESPONSE =
+            "HTTP/1.1 200 OK\r\n"
+            + "Date: Sat, 18 Oct 2025 10:00:00 GMT\r\n"
+            + "Content-Type: application/json\r\n"
+            + "Transfer-Encoding: chunked\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Keep-Alive: timeout=5\r\n"
+            + "Cache-Control: no-cache\r\n"
+            + "\r\n";
+
+    private static final OutputStream DISCARD = OutputStream.nullOutputStream();
+
+    private final ByteBuffer request = ByteBuffer.wrap(REQUEST.getBytes(StandardCharsets.ISO_8859_1));
+    private final ByteBuffer response = ByteBuffer.wrap(RESPONSE.getBytes(StandardCharsets.ISO_8859_1));
+    private final HttpParser requestParser = new HttpParser(true, 16 * 1024);
+    private final HttpParser responseParser = new HttpParser(false, 16 * 1024);
+    private final ByteBuffer scratch = ByteBuffer.allocate(16 * 1024);
+
+    @Benchmark
+    public long frameRequest() throws IOException {
+        requestParser.reset();
+        requestParser.parseHead(request, 0, request.limit());
+        return requestParser.getBodyLength();
+    }
+
+    @Benchmark
+    public long frameResponse() throws IOException {
+        responseParser.reset();
+        responseParser.parseHead(response, 0, response.limit());
+        return responseParser.getBodyLength();
+    }
+
+    @Benchmark
+    public HttpHead parseRequest() throws IOException {
+        requestParser.reset();
+        requestParser.parseHead(request, 0, request.limit());
+        return requestParser.toHead(request, 0);
+    }
+
+    @Benchmark
+    public int rewriteAndEncodeResponse() throws IOException {
+        responseParser.reset();
+        responseParser.parseHead(response, 0, response.limit());
+        HttpHead head = responseParser.toHead(response, 0);
+        head.removeHopByHop();
+        head.set("X-Load-Balancer", "MyLoadBalancer JavaLB");
+        head.set("Connection", "keep-alive");
+        scratch.clear();
+        head.encode(scratch, DISCARD);
+        return scratch.position();
+    }
+}
@@ -0,0 +1,191 @@
+package balancer.bench;
+
+import balancer.ClientHandler;
+import balancer.HttpHead;
+import balancer.HttpInput;
+import balancer.NioProxyEngine;
+import balancer.RoundRobinStrategy;
+import balancer.ServerManager;
+import balancer.ServerNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end requests per second through the real proxy code on loopback.
+ * Two in-process stub backends answer every request with a fixed body, and
+ * each benchmark thread is one keep-alive client connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(8)
+public class ProxyThroughputBenchmark {
+    @Param({ "thread", "nio" })
+    public String engine;
+
+    @Param({ "128", "16384" })
+    public int bodySize;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private ServerSocket[] backends;
+    private ServerSocket threadListener;
+    private NioProxyEngine nioEngine;
+    private int port;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] response = stubResponse(bodySize);
+        backends = new ServerSocket[] { new ServerSocket(0), new ServerSocket(0) };
+        for (ServerSocket backend : backends) {
+            executor.execute(() -> acceptLoop(backend, socket -> serveStub(socket, response)));
+        }
+        ServerManager serverManager = ServerManager.create(List.of(
+                new ServerNode("127.0.0.1", backends[0].getLocalPort(), 1),
+                new ServerNode("127.0.0.1", backends[1].getLocalPort(), 1)), new RoundRobinStrategy());
+
+        if ("nio".equals(engine)) {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            nioEngine = new NioProxyEngine(serverManager, port, 2);
+            Thread acceptor = new Thread(() -> {
+                try {
+                    nioEngine.serve();
+                } catch (IOException e) {
+                    System.err.println("[Bench] NIO engine stopped: " + e.getMessage());
+                }
+            }, "bench-nio-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            awaitListening(port);
+        } else {
+            threadListener = new ServerSocket(0);
+            port = threadListener.getLocalPort();
+            executor.execute(() -> acceptLoop(threadListener, socket -> new ClientHandler(socket, serverManager).run()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (nioEngine != null) {
+            nioEngine.close();
+        }
+        if (threadListener != null) {
+            threadListener.close();
+        }
+        for (ServerSocket backend : backends) {
+            backend.close();
+        }
+        executor.shutdownNow();
+    }
+
+    /** One keep-alive client connection per benchmark thread. */
+    @State(Scope.Thread)
+    public static class Client {
+        private static final byte[] REQUEST =
+                "GET /bench HTTP/1.1\r\nHost: localhost\r\nUser-Agent: jmh\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+        private Socket socket;
+        private OutputStream out;
+        private HttpInput in;
+        private final ByteBuffer scratch = ByteBuffer.allocate(16 * 1024);
+
+        @Setup
+        public void connect(ProxyThroughputBenchmark benchmark) throws IOException {
+            socket = new Socket("127.0.0.1", benchmark.port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new HttpInput(socket.getInputStream(), false);
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            socket.close();
+            in.release();
+        }
+    }
+
+    @Benchmark
+    public int request(Client client) throws IOException {
+        client.out.write(Client.REQUEST);
+        HttpHead response = client.in.readHead();
+        if (response == null) throw new IOException("Proxy closed the connection");
+        client.scratch.clear();
+        client.in.relayBody(OutputStream.nullOutputStream(), client.scratch);
+        return client.in.getParser().getStatus();
+    }
+
+    private interface Handler {
+        void handle(Socket socket) throws IOException;
+    }
+
+    private void acceptLoop(ServerSocket listener, Handler handler) {
+        while (!listener.isClosed()) {
+            try {
+                Socket socket = listener.accept();
+                executor.execute(() -> {
+                    try (socket) {
+                        handler.handle(socket);
+                    } catch (IOException ignored) {
+                        // Connection torn down at the end of an iteration
+                    }
+                });
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /** Loopback backend stand-in: keep-alive, fixed response, request bodies discarded. */
+    private static void serveStub(Socket socket, byte[] response) throws IOException {
+        socket.setTcpNoDelay(true);
+        HttpInput in = new HttpInput(socket.getInputStream(), true);
+        OutputStream out = socket.getOutputStream();
+        ByteBuffer scratch = ByteBuffer.allocate(1024);
+        try {
+            while (in.readHead() != null) {
+                scratch.clear();
+                in.relayBody(OutputStream.nullOutputStream(), scratch);
+                out.write(response);
+            }
+        } finally {
+            in.release();
+        }
+    }
+
+    private static byte[] stubResponse(int bodySize) {
+        byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: "
+                + bodySize + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] response = new byte[head.length + bodySize];
+        System.arraycopy(head, 0, response, 0, head.length);
+        for (int i = head.length; i < response.length; i++) {
+            response[i] = (byte) ('a' + i % 26);
+        }
+        return response;
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Proxy did not start listening on " + port);
+    }
+}
@@ -0,0 +1,61 @@
+package balancer.bench;
+
+import balancer.BalancingStrategy;
+import balancer.ServerManager;
+import balancer.ServerNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request selection cost: getNextServer plus the bookkeeping every
+ * request does around it (recordRequest and the in-flight counter). Run with
+ * -t 1, 4, 16 and 64 to see how each strategy behaves under contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SelectionBenchmark {
+    @Param({ "round-robin", "least-connections", "weighted-least-connections", "p2c", "peak-ewma" })
+    public String strategy;
+
+    @Param({ "2", "16", "128" })
+    public int nodes;
+
+    /** equal: every node weight 1; skewed: weights 1..10 cycling. */
+    @Param({ "equal", "skewed" })
+    public String weights;
+
+    private ServerManager serverManager;
+
+    @Setup
+    public void setup() {
+        List<ServerNode> servers = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            int weight = "equal".equals(weights) ? 1 : 1 + (i % 10);
+            ServerNode node = new ServerNode("10.0.0." + i, 9000, weight);
+            node.recordLatency(1_000_000L + i * 10_000L, 2_000_000L + i * 10_000L);
+            servers.add(node);
+        }
+        serverManager = ServerManager.create(servers, BalancingStrategy.forName(strategy));
+    }
+
+    @Benchmark
+    public ServerNode selectOnly() {
+        return serverManager.getNextServer();
+    }
+
+    @Benchmark
+    public ServerNode selectAndRecord() {
+        ServerNode node = serverManager.getNextServer();
+        serverManager.recordRequest(node);
+        node.incrementActive();
+        node.decrementActive();
+        return node;
+    }
+}